@@ -76,6 +76,21 @@ public class BlockOutputStream extends OutputStream {
 		write(new byte[] { b }, 0, 1);
 	}
 
+	/**
+	 * Wrap the contents without copying.  The buffers share the blocks, so
+	 * nothing may be written to the stream while they are in use.
+	 * @return one buffer per block
+	 */
+	public ByteBuffer[] toByteBuffers() {
+		ByteBuffer[] ret=new ByteBuffer[blocks.size()];
+		for (int i=0; i<ret.length; i++) {
+			byte[] block=blocks.get(i);
+			int length=(i==ret.length-1 && currentBlock!=null) ? currentPos : blockSize;
+			ret[i]=ByteBuffer.wrap(block, 0, length);
+		}
+		return ret;
+	}
+	
 	public InputStream openInput() {
 		return new BlockInputStream(blocks.toArray(new byte[blocks.size()][]), 
 				blockSize, 
@@ -144,6 +159,7 @@ public class BlockOutputStream extends OutputStream {
 			currentPos+=consumed;
 			total+=consumed;
 			len-=consumed;
+			streamLength+=consumed;
 			
 			if (currentPos>=blockSize) {
 				currentBlock=null;
@@ -172,6 +188,7 @@ public class BlockOutputStream extends OutputStream {
 			buffer.get(currentBlock, currentPos, remain);
 			
 			currentPos+=remain;
+			streamLength+=remain;
 			
 			if (currentPos>=blockSize) {
 				currentBlock=null;
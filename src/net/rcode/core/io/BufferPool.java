@@ -0,0 +1,145 @@
+package net.rcode.core.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of ByteBuffers in power of two size classes.  Buffers are acquired for
+ * a requested size and handed back with release() when no longer referenced.
+ * Requests larger than the biggest size class are allocated on demand and are
+ * not retained on release.
+ * <p>
+ * Each size class is a small stack guarded by its own monitor, so acquiring and
+ * releasing a buffer does not allocate.  Hits, misses and the bytes held in
+ * the free lists are counted so that the pool can be sized.
+ * 
+ * @author stella
+ *
+ */
+public class BufferPool {
+	public static final int DEFAULT_MIN_SIZE=64;
+	public static final int DEFAULT_MAX_SIZE=65536;
+	public static final int DEFAULT_MAX_PER_CLASS=64;
+	
+	private static class SizeClass {
+		ByteBuffer[] free;
+		int count;
+		
+		SizeClass(int maxCount) {
+			free=new ByteBuffer[maxCount];
+		}
+	}
+	
+	private boolean direct;
+	private int minShift;
+	private int maxShift;
+	private SizeClass[] classes;
+	
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong pooledBytes=new AtomicLong();
+	
+	/**
+	 * @param direct true to pool direct buffers
+	 * @param minSize smallest buffer size (rounded up to a power of two)
+	 * @param maxSize largest pooled buffer size (rounded up to a power of two)
+	 * @param maxPerClass maximum number of free buffers retained per size class
+	 */
+	public BufferPool(boolean direct, int minSize, int maxSize, int maxPerClass) {
+		this.direct=direct;
+		this.minShift=shiftFor(minSize);
+		this.maxShift=shiftFor(maxSize);
+		this.classes=new SizeClass[maxShift-minShift+1];
+		for (int i=0; i<classes.length; i++) {
+			classes[i]=new SizeClass(maxPerClass);
+		}
+	}
+	
+	public BufferPool(boolean direct) {
+		this(direct, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_PER_CLASS);
+	}
+	
+	public boolean isDirect() {
+		return direct;
+	}
+	
+	/**
+	 * @return the log2 of the smallest power of two >= size
+	 */
+	private static int shiftFor(int size) {
+		if (size<=1) return 0;
+		return 32 - Integer.numberOfLeadingZeros(size-1);
+	}
+	
+	/**
+	 * Get a cleared buffer with a capacity of at least size
+	 * @param size
+	 * @return buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		int shift=Math.max(shiftFor(size), minShift);
+		if (shift>maxShift) {
+			// Too big to pool.  Large direct buffers are expensive to create and free
+			// so just use the heap.
+			misses.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+		
+		SizeClass sizeClass=classes[shift-minShift];
+		synchronized (sizeClass) {
+			if (sizeClass.count>0) {
+				ByteBuffer buffer=sizeClass.free[--sizeClass.count];
+				sizeClass.free[sizeClass.count]=null;
+				buffer.clear();
+				hits.incrementAndGet();
+				pooledBytes.addAndGet(-buffer.capacity());
+				return buffer;
+			}
+		}
+		
+		misses.incrementAndGet();
+		int capacity=1<<shift;
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+	
+	/**
+	 * Return a buffer to the pool.  Buffers that did not come from this pool
+	 * are ignored.  The caller must not use the buffer after this.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity=buffer.capacity();
+		if (buffer.isDirect()!=direct || Integer.bitCount(capacity)!=1) return;
+		int shift=shiftFor(capacity);
+		if (shift<minShift || shift>maxShift) return;
+		
+		SizeClass sizeClass=classes[shift-minShift];
+		synchronized (sizeClass) {
+			if (sizeClass.count<sizeClass.free.length) {
+				sizeClass.free[sizeClass.count++]=buffer;
+				pooledBytes.addAndGet(capacity);
+			}
+		}
+	}
+	
+	/**
+	 * @return number of acquires served from a free list
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return number of acquires that had to allocate
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return bytes of free buffers held by the pool
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+}
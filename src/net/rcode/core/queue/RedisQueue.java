@@ -5,9 +5,11 @@ import java.util.Map;
 import net.rcode.core.async.AsyncMap;
 import net.rcode.core.async.Flow;
 import net.rcode.core.async.Promise;
-import net.rcode.core.redis.Redis;
 import net.rcode.core.redis.RedisAsyncMap;
+import net.rcode.core.redis.RedisCodec;
+import net.rcode.core.redis.RedisCodecs;
 import net.rcode.core.redis.RedisConversions;
+import net.rcode.core.redis.RedisExecutor;
 import net.rcode.core.redis.RedisResult;
 import net.rcode.core.redis.RedisSteps;
 
@@ -22,12 +24,23 @@ import org.slf4j.LoggerFactory;
 public class RedisQueue {
 	static final Logger logger=LoggerFactory.getLogger(RedisQueue.class);
 	
-	private Redis connection;
+	private RedisExecutor connection;
 	private String queuePrefix;
+	private RedisCodec<String> valueCodec;
 	
-	public RedisQueue(Redis connection, String queuePrefix) {
+	public RedisQueue(RedisExecutor connection, String queuePrefix) {
+		this(connection, queuePrefix, RedisCodecs.STRING);
+	}
+	
+	/**
+	 * @param connection
+	 * @param queuePrefix
+	 * @param valueCodec Codec applied to the values of items, ie. a RedisCompressionCodec
+	 */
+	public RedisQueue(RedisExecutor connection, String queuePrefix, RedisCodec<String> valueCodec) {
 		this.connection=connection;
 		this.queuePrefix=queuePrefix;
+		this.valueCodec=valueCodec;
 	}
 	
 	/**
@@ -67,7 +80,7 @@ public class RedisQueue {
 			
 			void readEntry() {
 				add(connection.execute("HGETALL", queuePrefix + ':' + itemId));
-				add(RedisConversions.INTERLEAVED_MULTIBULK_TO_MAP);
+				add(RedisConversions.interleavedMultiBulkToMap(valueCodec));
 				add(new Consumer<Map<String,String>>() {
 					@Override
 					public void run(Map<String, String> entry) throws Throwable {
@@ -125,11 +138,11 @@ public class RedisQueue {
 	 */
 	public Promise<String> put(final Map<String,String> item, final int ttl) {
 		Flow<String> flow=new Flow<String>() {
-			String itemId;
+			long itemId;
 			
 			@Override
 			protected void init() {
-				add(connection.executeStep("INCR", queuePrefix + ":id"));
+				add(RedisSteps.executeStep(connection, "INCR", queuePrefix + ":id"));
 				
 				// Get the id and write the item hash
 				add(new AsyncTransform<RedisResult,Void>() {
@@ -137,10 +150,10 @@ public class RedisQueue {
 					public Promise<Void> run(RedisResult result) throws Throwable {
 						result.ifError();
 						
-						itemId=result.getString();
+						itemId=result.getLong();
 						
 						// Write the main item
-						AsyncMap map=new RedisAsyncMap(connection, queuePrefix + ':' + String.valueOf(itemId));
+						AsyncMap map=new RedisAsyncMap(connection, queuePrefix + ':' + itemId, valueCodec);
 						return map.putAll(item);
 					}
 				});
@@ -150,7 +163,7 @@ public class RedisQueue {
 					add(new Initiator<RedisResult>() {
 						@Override
 						public Promise<RedisResult> run() throws Throwable {
-							return connection.execute("EXPIRE", queuePrefix + ':' + String.valueOf(itemId), ttl);
+							return connection.execute("EXPIRE", queuePrefix + ':' + itemId, ttl);
 						}
 					});
 					add(RedisSteps.FAIL_ON_ERROR);
@@ -160,7 +173,7 @@ public class RedisQueue {
 				add(new Initiator<RedisResult>() {
 					@Override
 					public Promise<RedisResult> run() throws Throwable {
-						return connection.execute("LPUSH", queuePrefix, String.valueOf(itemId));
+						return connection.execute("LPUSH", queuePrefix, itemId);
 					}
 				});
 				
@@ -170,10 +183,10 @@ public class RedisQueue {
 					@Override
 					public void run(RedisResult result) throws Throwable {
 						result.ifError();
-						if (result.getInteger()==1) {
+						if (result.getLong()==1) {
 							publishReady();
 						} else {
-							resolve(itemId);
+							resolve(String.valueOf(itemId));
 						}
 					}
 				});
@@ -183,17 +196,17 @@ public class RedisQueue {
 			 * Publishes the queue ready event and resolves the flow
 			 */
 			void publishReady() {
-				add(connection.executeStep("PUBLISH", queuePrefix + ":ready", "1"));
+				add(RedisSteps.executeStep(connection, "PUBLISH", queuePrefix + ":ready", "1"));
 				add(new Consumer<RedisResult>() {
 					@Override
 					public void run(RedisResult result) throws Throwable {
 						result.ifError();
 						
-						if (logger.isDebugEnabled() && result.getInteger()>0) {
+						if (logger.isDebugEnabled() && result.getLong()>0) {
 							logger.debug("Triggered queue " + queuePrefix);
 						}
 						
-						resolve(itemId);
+						resolve(String.valueOf(itemId));
 					}
 				});
 			}
@@ -1,11 +1,11 @@
 package net.rcode.core.redis;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import net.rcode.core.redis.RedisParser.Events;
 
 import org.apache.commons.lang.StringEscapeUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
 
 public class DebugEvents implements Events {
 	static final Charset UTF8=Charset.forName("UTF-8");
@@ -14,15 +14,15 @@ public class DebugEvents implements Events {
 		System.err.println("RedisParser: " + msg);
 	}
 	
-	protected String decodeBuffer(ByteBuffer buffer) {
+	protected String decodeBuffer(ChannelBuffer buffer) {
 		if (buffer==null) return "<null>";
 		
-		String s=UTF8.decode(buffer).toString();
+		String s=buffer.toString(UTF8);
 		return StringEscapeUtils.escapeJava(s);
 	}
 	
 	@Override
-	public void handleBulk(ByteBuffer contents) {
+	public void handleBulk(ChannelBuffer contents) {
 		print("handleBulk(" + decodeBuffer(contents) + ")");
 	}
 
@@ -32,12 +32,12 @@ public class DebugEvents implements Events {
 	}
 
 	@Override
-	public void handleError(ByteBuffer contents) {
+	public void handleError(ChannelBuffer contents) {
 		print("handleError(" + decodeBuffer(contents) + ")");
 	}
 
 	@Override
-	public void handleInteger(int value) {
+	public void handleInteger(long value) {
 		print("handleInteger(" + value + ")");
 	}
 
@@ -47,7 +47,7 @@ public class DebugEvents implements Events {
 	}
 
 	@Override
-	public void handleStatus(ByteBuffer contents) {
+	public void handleStatus(ChannelBuffer contents) {
 		print("handleStatus(" + decodeBuffer(contents) + ")");
 	}
 	
@@ -0,0 +1,85 @@
+package net.rcode.core.redis;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rcode.core.redis.Redis.QueuedCommand;
+
+/**
+ * Fixed capacity single-producer, single-consumer ring of commands that
+ * have been written to the connection and are awaiting a reply.  The
+ * transmitter produces and the I/O thread consumes as replies are parsed.
+ * Neither side takes a lock.
+ * 
+ * @author stella
+ *
+ */
+final class InFlightRing {
+	private final QueuedCommand[] slots;
+	private final int mask;
+	private final AtomicLong head=new AtomicLong();
+	private final AtomicLong tail=new AtomicLong();
+	
+	/**
+	 * @param capacity Rounded up to a power of two
+	 */
+	InFlightRing(int capacity) {
+		int size=1;
+		while (size<capacity) size<<=1;
+		slots=new QueuedCommand[size];
+		mask=size-1;
+	}
+	
+	int capacity() {
+		return slots.length;
+	}
+	
+	/**
+	 * @return number of free slots.  Exact for the producer, a lower bound
+	 * for anyone else.
+	 */
+	int free() {
+		return slots.length - (int)(tail.get()-head.get());
+	}
+	
+	int size() {
+		return (int)(tail.get()-head.get());
+	}
+	
+	/**
+	 * Producer only.
+	 * @param qc
+	 * @return false if the ring is full
+	 */
+	boolean offer(QueuedCommand qc) {
+		long t=tail.get();
+		if (t-head.get()>=slots.length) return false;
+		slots[(int)t & mask]=qc;
+		tail.lazySet(t+1);
+		return true;
+	}
+	
+	/**
+	 * Consumer only.
+	 * @return the oldest command or null
+	 */
+	QueuedCommand peek() {
+		long h=head.get();
+		if (h==tail.get()) return null;
+		return slots[(int)h & mask];
+	}
+	
+	/**
+	 * Consumer only.
+	 * @return the oldest command or null
+	 */
+	QueuedCommand poll() {
+		long h=head.get();
+		if (h==tail.get()) return null;
+		int index=(int)h & mask;
+		QueuedCommand qc=slots[index];
+		slots[index]=null;
+		// A full store so that the producer's full flag is read after it
+		head.set(h+1);
+		return qc;
+	}
+}
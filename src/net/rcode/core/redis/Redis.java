@@ -4,55 +4,189 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.rcode.core.async.Flow;
 import net.rcode.core.async.Promise;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Manage a streaming connection to a single redis instance.
+ * <p>
+ * Nothing on the command path takes a lock.  Callers link commands onto a
+ * lock-free submission queue and then request a drain.  A drain counter
+ * ensures exactly one thread runs the transmitter at a time and that it
+ * makes another pass for every request that arrived while it was running,
+ * so no submission is stranded.  Written commands move to a single-producer,
+ * single-consumer ring that the I/O thread pops as replies are parsed.
+ * <p>
+ * If the connection drops it is re-established with jittered exponential
+ * backoff.  Commands that were already written are failed since there is no
+ * telling whether they were applied.  Commands not yet written wait for the
+ * new connection, up to a bounded number, and are sent after the setup
+ * commands and subscriptions have been re-applied.
  * @author stella
  *
  */
-public final class Redis extends RedisResultBuilder implements RedisExecutor {
+public final class Redis extends RedisResultBuilder implements RedisStreamingExecutor {
 	static final Logger logger=LoggerFactory.getLogger(Redis.class);
-	static final int COMBINE_BUFFER_LIMIT=1300;
+	public static final int DEFAULT_TRANSMIT_BUDGET=65536;
+	public static final int DEFAULT_WRITE_LOW_WATERMARK=65536;
+	public static final int DEFAULT_WRITE_HIGH_WATERMARK=262144;
+	public static final int DEFAULT_MAX_IN_FLIGHT=16384;
+	public static final int DEFAULT_MAX_OFFLINE_COMMANDS=10000;
+	public static final long DEFAULT_RECONNECT_MIN_DELAY=100;
+	public static final long DEFAULT_RECONNECT_MAX_DELAY=30000;
+	public static final long DEFAULT_CIRCUIT_PROBE_INTERVAL=1000;
+	
+	private static final Random JITTER=new Random();
+	
+	/**
+	 * Order in which state commands are replayed.  AUTH has to come first since
+	 * a server with a password refuses SELECT until it is given.
+	 */
+	private static final String[] STATE_COMMAND_ORDER=new String[] { "AUTH", "SELECT" };
 	
 	
 	Object lock=this;
 	RedisManager manager;
 	RedisSerializer serializer;
 	RedisParser parser;
-	ConnectionState connectionState;
-	ByteBuffer combineBuffer=ByteBuffer.allocateDirect(COMBINE_BUFFER_LIMIT);
-	int transmissionLock;
+	volatile ConnectionState connectionState;
+	
+	// - transmission
+	final SubmissionQueue submissions=new SubmissionQueue();
+	final InFlightRing inFlight=new InFlightRing(DEFAULT_MAX_IN_FLIGHT);
+	final AtomicInteger drainRequests=new AtomicInteger();
+	
+	/**
+	 * Commands submitted but not yet answered
+	 */
+	final AtomicInteger outstanding=new AtomicInteger();
+	
+	/**
+	 * Bytes written to the channel but not yet completed
+	 */
+	final AtomicLong transmitting=new AtomicLong();
+	
+	/**
+	 * Set when transmitting reaches the high watermark and cleared when
+	 * it drains to the low watermark
+	 */
+	volatile boolean writeSuspended;
+	
+	/**
+	 * Set when the transmitter stopped because every in flight slot was taken.
+	 * Cleared by the I/O thread when a reply frees one.
+	 */
+	volatile boolean inFlightFull;
+	
+	// - transmit tuning
+	volatile int transmitBudget=DEFAULT_TRANSMIT_BUDGET;
+	volatile int writeLowWatermark=DEFAULT_WRITE_LOW_WATERMARK;
+	volatile int writeHighWatermark=DEFAULT_WRITE_HIGH_WATERMARK;
+	
+	// - reconnection.  Either address or host and port are set by the manager.
+	SocketAddress address;
+	String host;
+	int port;
+	volatile boolean reconnect=true;
+	volatile boolean quitting;
+	
+	/**
+	 * Set once a connection attempt has failed or the connection has dropped and
+	 * cleared on bind.  Queued commands are only bounded while offline so that a
+	 * burst issued before the first connect completes is not rejected.
+	 */
+	volatile boolean offline;
+	volatile int maxOfflineCommands=DEFAULT_MAX_OFFLINE_COMMANDS;
+	long reconnectMinDelay=DEFAULT_RECONNECT_MIN_DELAY;
+	long reconnectMaxDelay=DEFAULT_RECONNECT_MAX_DELAY;
+	int reconnectAttempts;
+	Timeout reconnectTimeout;
+	
+	// - deadlines and circuit breaker
+	volatile long commandTimeout;
+	volatile int circuitThreshold;
+	volatile long circuitProbeInterval=DEFAULT_CIRCUIT_PROBE_INTERVAL;
+	final AtomicInteger consecutiveTimeouts=new AtomicInteger();
+	volatile boolean circuitOpen;
 	
 	/**
 	 * Some commands change the connection state.  When one of those comes through, we
 	 * add it to the setupCommands hash keyed by the command name.  When a new connection
 	 * is made, the setupCommands will be re-applied to the connection prior to
-	 * anything else.
+	 * anything else.  Preloaded scripts are kept here too, keyed by their SHA1.
 	 */
 	LinkedHashMap<String, RedisCommand> setupCommands=new LinkedHashMap<String, RedisCommand>();
-
-	// - subscription management
-	HashMap<String, List<SubscriptionHandler>> subscribedChannels=new HashMap<String, List<SubscriptionHandler>>();
+	
+	/**
+	 * Setup commands issued while disconnected, keyed like setupCommands.  The
+	 * replay of the next connection sends them, so they are not submitted as well,
+	 * and its replies are passed on to these.
+	 */
+	LinkedHashMap<String, List<QueuedCommand>> pendingSetup=new LinkedHashMap<String, List<QueuedCommand>>();
+	
+	// - subscription management.  Handler arrays are copy-on-write under lock
+	// so that dispatch can read them without one.
+	final ConcurrentHashMap<String, SubscriptionHandler[]> subscribedChannels=new ConcurrentHashMap<String, SubscriptionHandler[]>();
+	final ConcurrentHashMap<String, SubscriptionHandler[]> subscribedPatterns=new ConcurrentHashMap<String, SubscriptionHandler[]>();
+	volatile RedisSubscriptionDispatcher subscriptionDispatcher;
 	
 	public static interface SubscriptionHandler {
 		public void handleMessage(String channel, RedisResult message);
 	}
 	
-	static class QueuedCommand {
+	static class QueuedCommand implements TimerTask {
+		private static final AtomicIntegerFieldUpdater<QueuedCommand> CLAIMED=
+			AtomicIntegerFieldUpdater.newUpdater(QueuedCommand.class, "claimed");
+		
 		public RedisCommand command;
 		public Promise<RedisResult> result;
+		public RedisStreamConsumer stream;
+		
+		/**
+		 * Link to the next command in the submission queue
+		 */
+		volatile QueuedCommand next;
+		
+		// - deadline.  Only commands with a deadline race the timer so only they
+		// pay for the claim.
+		long timeoutMillis;
+		Redis owner;
+		volatile Timeout timeout;
+		volatile int claimed;
+		
+		/**
+		 * Set on circuit probes, which are let through an open circuit
+		 */
+		boolean probe;
+		
+		/**
+		 * Part of a batch or a setup command, so still written if it expires
+		 * while queued
+		 */
+		boolean batched;
 		
 		public QueuedCommand(RedisCommand command) {
 			this.command=command;
@@ -62,29 +196,331 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 			this.command=command;
 			this.result=result;
 		}
+		public QueuedCommand(RedisCommand command, RedisStreamConsumer stream) {
+			this.command=command;
+			this.stream=stream;
+		}
+		
+		/**
+		 * Take the right to complete this command away from the deadline
+		 * @return false if the deadline already expired
+		 */
+		boolean claim() {
+			if (timeoutMillis<=0) return true;
+			if (!CLAIMED.compareAndSet(this, 0, 1)) return false;
+			
+			Timeout localTimeout=timeout;
+			if (localTimeout!=null) localTimeout.cancel();
+			return true;
+		}
+		
+		/**
+		 * Claim the command for a reply that has started to stream.  The deadline no
+		 * longer applies and the command behaves as if it never had one.
+		 * @return false if the deadline already expired
+		 */
+		boolean detachDeadline() {
+			if (!claim()) return false;
+			timeoutMillis=0;
+			return true;
+		}
+		
+		/**
+		 * @return true if the command has a deadline and has been completed or expired
+		 */
+		boolean isClaimed() {
+			return timeoutMillis>0 && claimed!=0;
+		}
+		
+		/**
+		 * Deliver a complete reply to whatever is waiting on this command
+		 * @param reply
+		 * @return false if the command had already expired
+		 */
+		boolean complete(RedisResult reply) {
+			if (!claim()) return false;
+			
+			if (stream!=null) {
+				completeStream(reply);
+			} else if (result!=null) {
+				result.resolve(reply);
+			}
+			return true;
+		}
+		
+		/**
+		 * Fail the command with an exception rather than an error reply
+		 * @param error
+		 */
+		void fail(Throwable error) {
+			if (!claim()) return;
+			failClaimed(error);
+		}
+		
+		void failClaimed(Throwable error) {
+			if (stream!=null) {
+				try {
+					stream.handleError(error);
+				} catch (Throwable t) {
+					logger.error("Error in stream consumer", t);
+				}
+			} else if (result!=null) {
+				result.resolveError(error);
+			}
+		}
+		
+		/**
+		 * Deadline expiry.  The command stays in its reply slot and its reply is
+		 * discarded when it arrives.
+		 */
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			if (!CLAIMED.compareAndSet(this, 0, 1)) return;
+			// Count it first so that the circuit is already open when the caller hears
+			owner.commandTimedOut(this);
+			owner.expire(new Runnable() {
+				@Override
+				public void run() {
+					failClaimed(new RedisTimeoutException("Redis command " + command.command + " timed out after " + timeoutMillis + "ms"));
+				}
+			});
+		}
+		
+		/**
+		 * Deliver a reply that was not streamed as it was parsed (ie. a primitive
+		 * or error) to the stream
+		 */
+		private void completeStream(RedisResult reply) {
+			try {
+				try {
+					reply.ifError();
+				} catch (RuntimeException e) {
+					stream.handleError(e);
+					return;
+				}
+				
+				RedisMultiResult multi=reply.getAsMulti();
+				for (int i=0; i<multi.getCount(); i++) {
+					stream.handleElement(multi.get(i));
+				}
+				stream.handleEnd();
+			} catch (Throwable t) {
+				logger.error("Error in stream consumer", t);
+			}
+		}
+	}
+	
+	/**
+	 * A command of a pipeline.  Its reply goes into a slot of the shared results
+	 * instead of a promise of its own.
+	 */
+	static final class PipelineCommand extends QueuedCommand {
+		final RedisPipeline.Results results;
+		final int index;
+		
+		PipelineCommand(RedisCommand command, RedisPipeline.Results results, int index) {
+			super(command, (Promise<RedisResult>)null);
+			this.results=results;
+			this.index=index;
+			// The pipeline has one deadline for all of its commands
+			this.timeoutMillis=-1;
+		}
+		
+		@Override
+		boolean complete(RedisResult reply) {
+			results.fill(index, reply);
+			return true;
+		}
+		
+		@Override
+		void failClaimed(Throwable error) {
+			results.fail(error);
+		}
+	}
+	
+	/**
+	 * Collects the commands of a batch into a linked chain so that they can be
+	 * appended to the submission queue with one atomic operation
+	 */
+	class BatchCollector implements RedisExecutor {
+		QueuedCommand first;
+		QueuedCommand last;
+		int count;
+		
+		void add(QueuedCommand qc) {
+			checkGenericCommand(qc.command);
+			if (RedisConstants.STATE_COMMANDS.contains(qc.command.command)) {
+				registerSetupCommand(qc.command);
+			}
+			if (last==null) first=qc;
+			else last.next=qc;
+			last=qc;
+			count++;
+		}
+		
+		@Override
+		public Promise<RedisResult> execute(RedisCommand command) {
+			Promise<RedisResult> result=new Promise<RedisResult>();
+			execute(result, command);
+			return result;
+		}
+		
+		@Override
+		public void execute(Promise<RedisResult> result, RedisCommand command) {
+			add(new QueuedCommand(command, result));
+		}
+		
+		@Override
+		public Promise<RedisResult> execute(String command, Object... arguments) {
+			return execute(new RedisCommand(serializer, command, arguments));
+		}
+		
+		@Override
+		public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+			execute(result, new RedisCommand(serializer, command, arguments));
+		}
+		
+		@Override
+		public void executeAndForget(String command, Object... arguments) {
+			execute((Promise<RedisResult>)null, new RedisCommand(serializer, command, arguments));
+		}
 	}
 	
 	public Redis(RedisManager manager, int database) {
 		this.manager=manager;
-		this.parser=new RedisParser(this);
-		this.serializer=new RedisSerializer();
+		this.parser=manager.createParser(this);
+		this.serializer=manager.getSerializer();
 		this.connectionState=new DisconnectedConnectionState();
 		if (database!=0) {
-			execute("SELECT", String.valueOf(database));
+			// Applied ahead of everything else on each connection
+			RedisCommand select=new RedisCommand(serializer, "SELECT", String.valueOf(database));
+			registerSetupCommand(select);
+			select.release();
 		}
 	}
 	
-	void suspendTransmit() {
+	/**
+	 * Enable or disable reconnecting when the connection is lost.  When disabled
+	 * all waiting commands are failed instead.
+	 * @param reconnect
+	 */
+	public void setReconnect(boolean reconnect) {
+		this.reconnect=reconnect;
+	}
+	
+	/**
+	 * Set the bounds of the reconnect backoff.  The delay doubles with each failed
+	 * attempt from min up to max and each wait is drawn from the upper half of the
+	 * current delay so that clients dropped together do not return together.
+	 * @param min milliseconds
+	 * @param max milliseconds
+	 */
+	public void setReconnectDelay(long min, long max) {
+		if (min<=0 || min>max) throw new IllegalArgumentException("Illegal reconnect delay bounds");
 		synchronized (lock) {
-			transmissionLock++;
+			this.reconnectMinDelay=min;
+			this.reconnectMaxDelay=max;
 		}
 	}
 	
-	void resumeTransmit() {
-		synchronized (lock) {
-			if (--transmissionLock == 0) {
-				connectionState.queueCommand(null, false);
+	/**
+	 * Set the deadline applied to commands that do not specify their own.  A
+	 * command that misses its deadline fails with a RedisTimeoutException.  Its
+	 * reply, if it ever comes, is discarded.
+	 * @param millis 0 for no deadline
+	 */
+	public void setCommandTimeout(long millis) {
+		this.commandTimeout=millis;
+	}
+	
+	/**
+	 * Open the circuit after the given number of consecutive timeouts.  While
+	 * open, commands fail immediately with a RedisTimeoutException and a PING
+	 * is sent every probeInterval until one succeeds and closes it again.
+	 * @param consecutiveTimeouts 0 to disable
+	 * @param probeInterval milliseconds
+	 */
+	public void setCircuitBreaker(int consecutiveTimeouts, long probeInterval) {
+		this.circuitThreshold=consecutiveTimeouts;
+		this.circuitProbeInterval=probeInterval;
+	}
+	
+	public boolean isCircuitOpen() {
+		return circuitOpen;
+	}
+	
+	/**
+	 * Bound the number of commands held while there is no connection.  Commands
+	 * beyond this fail immediately.
+	 * @param maxOfflineCommands
+	 */
+	public void setMaxOfflineCommands(int maxOfflineCommands) {
+		this.maxOfflineCommands=maxOfflineCommands;
+	}
+	
+	/**
+	 * Set the maximum number of bytes of commands gathered into a single write.
+	 * A single command larger than this is still written on its own.
+	 * @param transmitBudget
+	 */
+	public void setTransmitBudget(int transmitBudget) {
+		this.transmitBudget=transmitBudget;
+	}
+	
+	/**
+	 * Bound the number of bytes in flight to the channel.  Once high bytes are
+	 * outstanding no more writes are issued until completions bring it down to low.
+	 * @param low
+	 * @param high
+	 */
+	public void setWriteWatermarks(int low, int high) {
+		if (low>high) throw new IllegalArgumentException("Low watermark must not exceed high watermark");
+		this.writeLowWatermark=low;
+		this.writeHighWatermark=high;
+	}
+	
+	/**
+	 * Run the transmitter until no drain requests remain.  If another thread
+	 * is already draining this just records the request and returns.
+	 */
+	void drain() {
+		if (drainRequests.getAndIncrement()!=0) return;
+		
+		int missed=1;
+		for (;;) {
+			try {
+				connectionState.transmit();
+			} catch (Throwable t) {
+				logger.error("Error transmitting redis commands", t);
 			}
+			
+			missed=drainRequests.addAndGet(-missed);
+			if (missed==0) break;
+		}
+	}
+	
+	/**
+	 * @return the number of commands submitted to this connection that have
+	 * not yet been answered.  Used by pools to route work.
+	 */
+	public int getOutstandingCount() {
+		return outstanding.get();
+	}
+	
+	/**
+	 * @return true if there is a live connection that has not been quit
+	 */
+	public boolean isConnected() {
+		return !quitting && connectionState.getState()==STATE_CONNECTED;
+	}
+	
+	/**
+	 * Called by the I/O thread after popping the in flight ring
+	 */
+	void replyConsumed() {
+		if (inFlightFull) {
+			inFlightFull=false;
+			drain();
 		}
 	}
 	
@@ -93,10 +529,20 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 		connectionState.handleResult(result);
 	}
 	
+	@Override
+	protected RedisStreamConsumer beginStream() {
+		return connectionState.beginStream();
+	}
+	
+	@Override
+	protected void handleStreamEnd(RedisStreamConsumer consumer) {
+		connectionState.handleStreamEnd(consumer);
+	}
+	
 	public void subscribe(SubscriptionHandler handler, String... channels) {
 		synchronized (lock) {
 			for (String channel: channels) {
-				subscribeChannel(handler, channel);
+				addHandler(subscribedChannels, "SUBSCRIBE", handler, channel);
 			}
 		}
 	}
@@ -104,106 +550,272 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 	public void unsubscribe(SubscriptionHandler handler, String... channels) {
 		synchronized (lock) {
 			for (String channel: channels) {
-				unsubscribeChannel(handler, channel);
+				removeHandler(subscribedChannels, "UNSUBSCRIBE", handler, channel);
 			}
 		}
 	}
 	
-	private void unsubscribeChannel(SubscriptionHandler handler, String channel) {
-		List<SubscriptionHandler> handlers=subscribedChannels.get(channel);
+	/**
+	 * Subscribe to every channel matching the glob-style patterns.  The handler
+	 * is passed the name of the channel each message was published to.
+	 * @param handler
+	 * @param patterns
+	 */
+	public void psubscribe(SubscriptionHandler handler, String... patterns) {
+		synchronized (lock) {
+			for (String pattern: patterns) {
+				addHandler(subscribedPatterns, "PSUBSCRIBE", handler, pattern);
+			}
+		}
+	}
+	
+	public void punsubscribe(SubscriptionHandler handler, String... patterns) {
+		synchronized (lock) {
+			for (String pattern: patterns) {
+				removeHandler(subscribedPatterns, "PUNSUBSCRIBE", handler, pattern);
+			}
+		}
+	}
+	
+	/**
+	 * Deliver messages through the dispatcher instead of calling handlers on the
+	 * I/O thread.  Pass null to go back to inline delivery.
+	 * @param dispatcher
+	 */
+	public void setSubscriptionDispatcher(RedisSubscriptionDispatcher dispatcher) {
+		if (dispatcher!=null) dispatcher.attach(this);
+		this.subscriptionDispatcher=dispatcher;
+	}
+	
+	public RedisSubscriptionDispatcher getSubscriptionDispatcher() {
+		return subscriptionDispatcher;
+	}
+	
+	/**
+	 * Suspend or resume reading from the current connection
+	 * @param readable
+	 */
+	void setReadable(boolean readable) {
+		ConnectionState state=connectionState;
+		if (state instanceof ConnectedConnectionState) {
+			((ConnectedConnectionState)state).channel.setReadable(readable);
+		}
+	}
+	
+	/**
+	 * @return true if there are any channel or pattern subscriptions
+	 */
+	boolean isSubscribed() {
+		return !subscribedChannels.isEmpty() || !subscribedPatterns.isEmpty();
+	}
+	
+	private void removeHandler(ConcurrentHashMap<String, SubscriptionHandler[]> map, String command,
+			SubscriptionHandler handler, String name) {
+		SubscriptionHandler[] handlers=map.get(name);
 		if (handlers==null) return;
 		
-		int index=handlers.indexOf(handler);
+		int index=-1;
+		for (int i=0; i<handlers.length; i++) {
+			if (handlers[i]==handler) {
+				index=i;
+				break;
+			}
+		}
 		if (index<0) return;
 		
-		handlers.remove(index);
-		if (handlers.isEmpty()) {
+		if (handlers.length==1) {
 			// Unsubscribe
-			subscribedChannels.remove(channel);
-			queueCommand(new QueuedCommand(new RedisCommand("UNSUBSCRIBE", channel)));
+			map.remove(name);
+			queueCommand(new QueuedCommand(new RedisCommand(serializer, command, name)));
+		} else {
+			SubscriptionHandler[] newHandlers=new SubscriptionHandler[handlers.length-1];
+			System.arraycopy(handlers, 0, newHandlers, 0, index);
+			System.arraycopy(handlers, index+1, newHandlers, index, newHandlers.length-index);
+			map.put(name, newHandlers);
 		}
 	}
 	
-	private void subscribeChannel(SubscriptionHandler handler, String channel) {
-		List<SubscriptionHandler> handlers=subscribedChannels.get(channel);
+	private void addHandler(ConcurrentHashMap<String, SubscriptionHandler[]> map, String command,
+			SubscriptionHandler handler, String name) {
+		SubscriptionHandler[] handlers=map.get(name);
 		if (handlers==null) {
-			// Need to issue a subscribe
-			handlers=new ArrayList<SubscriptionHandler>(1);
-			handlers.add(handler);
-			queueCommand(new QueuedCommand(new RedisCommand("SUBSCRIBE", channel)));
-			subscribedChannels.put(channel, handlers);
+			// Need to issue a subscribe.  Register first so that no message is missed.
+			map.put(name, new SubscriptionHandler[] { handler });
+			queueCommand(new QueuedCommand(new RedisCommand(serializer, command, name)));
 		} else {
-			handlers.add(handler);
+			SubscriptionHandler[] newHandlers=new SubscriptionHandler[handlers.length+1];
+			System.arraycopy(handlers, 0, newHandlers, 0, handlers.length);
+			newHandlers[handlers.length]=handler;
+			map.put(name, newHandlers);
 		}
 	}
-
+	
+	/**
+	 * Deliver a message to the handlers of its channel, or of the pattern
+	 * it matched.  Inline delivery takes no lock and allocates nothing.
+	 */
 	void dispatchMessage(String channel, String pattern, RedisResult message) {
-		List<SubscriptionHandler> handlers;
+		SubscriptionHandler[] handlers=pattern==null ?
+				subscribedChannels.get(channel) : subscribedPatterns.get(pattern);
+		if (handlers==null) return;
 		
-		synchronized (lock) {
-			if (pattern==null) {
-				// Dispatch to channel listener
-				handlers=subscribedChannels.get(channel);
-			} else {
-				// TODO: Patterns
-				handlers=null;
-			}
+		RedisSubscriptionDispatcher dispatcher=subscriptionDispatcher;
+		if (dispatcher!=null) {
+			dispatcher.dispatch(pattern!=null ? pattern : channel, handlers, channel, message);
+			return;
 		}
 		
-		if (handlers!=null) {
-			for (SubscriptionHandler handler: handlers) {
-				try {
-					handler.handleMessage(channel, message);
-				} catch (Throwable t) {
-					logger.error("Error in message handler", t);
-				}
+		for (SubscriptionHandler handler: handlers) {
+			try {
+				handler.handleMessage(channel, message);
+			} catch (Throwable t) {
+				logger.error("Error in message handler", t);
 			}
 		}
 	}
 	
 	public Promise<Boolean> quit() throws IOException {
-		synchronized (lock) {
-			// Not quite right - race condition on start
-			if (connectionState instanceof DisconnectedConnectionState) {
-				return Promise.fixed(true);
-			} else {
-				QueuedCommand qc=new QueuedCommand(new RedisCommand("QUIT"));
-				queueCommand(qc);
-				return qc.result.chain(new Promise.Chain<RedisResult,Boolean>() {
-					@Override
-					public Boolean chain(RedisResult input) throws Throwable {
-						return true;
-					}
-				});
+		quitting=true;
+		if (connectionState.getState()!=STATE_CONNECTED) {
+			synchronized (lock) {
+				if (reconnectTimeout!=null) reconnectTimeout.cancel();
 			}
+			connectionState=new ClosedConnectionState();
+			drain();
+			return Promise.fixed(true);
+		} else {
+			QueuedCommand qc=new QueuedCommand(new RedisCommand("QUIT"));
+			queueCommand(qc);
+			return qc.result.chain(new Promise.Chain<RedisResult,Boolean>() {
+				@Override
+				public Boolean chain(RedisResult input) throws Throwable {
+					return true;
+				}
+			});
 		}
 	}
 	
 	/**
-	 * Execute a batch of commands atomically
+	 * Execute a batch of commands atomically.  The batch is collected privately
+	 * and then appended to the submission queue as one contiguous run.
 	 * @param commands
 	 */
 	public void execute(RedisBatchSource source) {
-		synchronized (lock) {
-			try {
-				suspendTransmit();
-				source.submitBatch(this);
-			} finally {
-				resumeTransmit();
+		BatchCollector batch=new BatchCollector();
+		source.submitBatch(batch);
+		if (batch.first==null) return;
+		
+		if (!admit(batch.count)) {
+			RedisResult error=offlineError();
+			for (QueuedCommand qc=batch.first; qc!=null; qc=qc.next) {
+				qc.complete(error);
 			}
-			
+			return;
+		}
+		if (circuitOpen) {
+			RedisTimeoutException error=circuitOpenError();
+			for (QueuedCommand qc=batch.first; qc!=null; qc=qc.next) {
+				qc.fail(error);
+			}
+			return;
+		}
+		for (QueuedCommand qc=batch.first; qc!=null; qc=qc.next) {
+			qc.batched=true;
+			startDeadline(qc);
 		}
+		outstanding.addAndGet(batch.count);
+		submissions.add(batch.first, batch.last);
+		drain();
 	}
 	
-	/* (non-Javadoc)
-	 * @see net.rcode.mrsession.util.redis.RedisExecutor#execute(java.lang.String, java.lang.Object)
+	/**
+	 * Walk the keys of the selected database a page at a time with SCAN
+	 * @param match Glob pattern or null for all keys
+	 * @param count COUNT hint per page
+	 * @return cursor
 	 */
-	public void execute(Promise<RedisResult> result, RedisCommand rc) {
+	public RedisCursor<Collection<String>> scan(String match, int count) {
+		return RedisCursor.scan(this, match, count);
+	}
+	
+	/**
+	 * @return an empty pipeline using this connection's serializer
+	 */
+	public RedisPipeline pipeline() {
+		return new RedisPipeline(serializer);
+	}
+	
+	/**
+	 * Send all of the commands of a pipeline without interruption.  They are
+	 * appended to the submission queue with one atomic operation and share one
+	 * promise, resolved when the last reply arrives.  The connection's command
+	 * timeout, if any, applies to the pipeline as a whole.
+	 * @param pipeline
+	 * @return results
+	 */
+	public Promise<RedisPipeline.Results> execute(RedisPipeline pipeline) {
+		int count=pipeline.size();
+		final RedisPipeline.Results results=new RedisPipeline.Results(count);
+		if (count==0) return results.promise;
+		
+		QueuedCommand first=null, last=null;
+		for (int i=0; i<count; i++) {
+			RedisCommand rc=pipeline.get(i);
+			checkGenericCommand(rc);
+			if (RedisConstants.STATE_COMMANDS.contains(rc.command)) {
+				registerSetupCommand(rc);
+			}
+			QueuedCommand qc=new PipelineCommand(rc, results, i);
+			if (last==null) first=qc;
+			else last.next=qc;
+			last=qc;
+		}
+		
+		if (!admit(count)) {
+			RedisResult error=offlineError();
+			for (QueuedCommand qc=first; qc!=null; qc=qc.next) {
+				qc.complete(error);
+			}
+			return results.promise;
+		}
+		if (circuitOpen) {
+			results.fail(circuitOpenError());
+			return results.promise;
+		}
+		
+		final long timeoutMillis=commandTimeout;
+		if (timeoutMillis>0) {
+			results.timeout=manager.getTimer().newTimeout(new TimerTask() {
+				@Override
+				public void run(Timeout timeout) throws Exception {
+					expire(new Runnable() {
+						@Override
+						public void run() {
+							results.fail(new RedisTimeoutException("Redis pipeline timed out after " + timeoutMillis + "ms"));
+						}
+					});
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		outstanding.addAndGet(count);
+		submissions.add(first, last);
+		drain();
+		return results.promise;
+	}
+	
+	private void checkGenericCommand(RedisCommand rc) {
 		if (RedisConstants.SUBSCRIBE_COMMANDS.contains(rc.command)) {
 			throw new IllegalStateException("Cannot execute subscribe commands with generic execute() method");
-		} else if (!subscribedChannels.isEmpty()) {
+		} else if (isSubscribed()) {
 			throw new IllegalStateException("Cannot issue generic commands while in pub/sub state");
 		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see net.rcode.mrsession.util.redis.RedisExecutor#execute(java.lang.String, java.lang.Object)
+	 */
+	public void execute(Promise<RedisResult> result, RedisCommand rc) {
+		checkGenericCommand(rc);
 		
 		QueuedCommand qc=new QueuedCommand(rc, result);
 		queueCommand(qc);
@@ -215,45 +827,225 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 		return result;
 	}
 	
+	/**
+	 * Execute a command, streaming the elements of its reply to the consumer
+	 * as they arrive instead of resolving a promise with the whole reply.
+	 * @param consumer
+	 * @param rc
+	 */
+	public void execute(RedisStreamConsumer consumer, RedisCommand rc) {
+		checkGenericCommand(rc);
+		queueCommand(new QueuedCommand(rc, consumer));
+	}
+	
+	public void execute(RedisStreamConsumer consumer, String command, Object... arguments) {
+		execute(consumer, new RedisCommand(serializer, command, arguments));
+	}
+	
 	@Override
 	public void execute(Promise<RedisResult> result, String command,
 			Object... arguments) {
-		execute(result, new RedisCommand(command, arguments));
+		execute(result, new RedisCommand(serializer, command, arguments));
 	}
 	
 	@Override
 	public Promise<RedisResult> execute(String command, Object... arguments) {
-		return execute(new RedisCommand(command, arguments));
+		return execute(new RedisCommand(serializer, command, arguments));
+	}
+	
+	/**
+	 * Execute a command with its own deadline instead of the connection default
+	 * @param timeoutMillis
+	 * @param command
+	 * @param arguments
+	 * @return promise failing with a RedisTimeoutException if the deadline passes
+	 */
+	public Promise<RedisResult> executeWithTimeout(long timeoutMillis, String command, Object... arguments) {
+		RedisCommand rc=new RedisCommand(serializer, command, arguments);
+		checkGenericCommand(rc);
+		
+		QueuedCommand qc=new QueuedCommand(rc);
+		qc.timeoutMillis=timeoutMillis>0 ? timeoutMillis : -1;
+		queueCommand(qc);
+		return qc.result;
 	}
 	
 	public void executeAndForget(String command, Object...arguments) {
-		execute(command, arguments);
+		execute((Promise<RedisResult>)null, command, arguments);
 	}
 	
-	public Flow.Initiator<RedisResult> executeStep(final String command, final Object... arguments) {
-		final RedisCommand commandObject=new RedisCommand(command, arguments);
-		return new Flow.Initiator<RedisResult>() {
-			@Override
-			public Promise<RedisResult> run() throws Throwable {
-				return execute(commandObject);
-			}
-			
-			@Override
-			public String toString() {
-				return "RedisExecute " + commandObject;
+	public Flow.Initiator<RedisResult> executeStep(String command, Object... arguments) {
+		return RedisSteps.executeStep(this, command, arguments);
+	}
+	
+	void registerSetupCommand(RedisCommand command) {
+		registerSetupCommand(command.command, command);
+	}
+	
+	/**
+	 * Keep a copy of a command to apply to each new connection, replacing any
+	 * earlier one under the same key.  The copy is outside of the pool, so the
+	 * command itself is released as usual once written and a replaced copy is
+	 * simply dropped.
+	 */
+	void registerSetupCommand(String key, RedisCommand command) {
+		synchronized (lock) {
+			setupCommands.put(key, command.copy());
+		}
+	}
+	
+	/**
+	 * Register a setup command issued by a caller.  While disconnected it is only
+	 * sent as part of the next connection's replay.
+	 * @return true if the command waits for the replay instead of being submitted
+	 */
+	private boolean queueSetupCommand(String key, QueuedCommand qc) {
+		synchronized (lock) {
+			registerSetupCommand(key, qc.command);
+			if (qc.stream==null && connectionState.getState()==STATE_DISCONNECTED) {
+				List<QueuedCommand> waiting=pendingSetup.get(key);
+				if (waiting==null) {
+					waiting=new ArrayList<QueuedCommand>();
+					pendingSetup.put(key, waiting);
+				}
+				waiting.add(qc);
+				qc.command.release();
+				return true;
 			}
-		};
+		}
+		
+		// Already registered for new connections, so the live one must see it too
+		qc.batched=true;
+		return false;
+	}
+	
+	/**
+	 * Load a script into the server's script cache now and again each time the
+	 * connection is re-established, so that EVALSHA finds it even after a
+	 * server restart.
+	 * @param script
+	 */
+	public void loadScript(RedisScript script) {
+		QueuedCommand qc=new QueuedCommand(script.createLoadCommand(serializer), (Promise<RedisResult>)null);
+		if (queueSetupCommand("SCRIPT " + script.getSha(), qc)) return;
+		queueCommand(qc);
 	}
 	
 	void queueCommand(QueuedCommand qc) {
-		synchronized (lock) {
-			if (RedisConstants.STATE_COMMANDS.contains(qc.command.command)) {
-				setupCommands.put(qc.command.command, qc.command);
+		if (RedisConstants.STATE_COMMANDS.contains(qc.command.command)) {
+			if (queueSetupCommand(qc.command.command, qc)) return;
+		}
+		if (!admit(1)) {
+			qc.complete(offlineError());
+			return;
+		}
+		if (circuitOpen && !qc.probe) {
+			qc.fail(circuitOpenError());
+			return;
+		}
+		startDeadline(qc);
+		outstanding.incrementAndGet();
+		submissions.add(qc);
+		drain();
+	}
+	
+	private void startDeadline(QueuedCommand qc) {
+		if (qc.timeoutMillis==0) qc.timeoutMillis=commandTimeout;
+		if (qc.timeoutMillis>0) {
+			qc.owner=this;
+			qc.timeout=manager.getTimer().newTimeout(qc, qc.timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private RedisTimeoutException circuitOpenError() {
+		return new RedisTimeoutException("Redis circuit open after repeated timeouts");
+	}
+	
+	/**
+	 * Run the failure of an expired deadline on the manager's deadline
+	 * executor.  Callbacks of the failed promise would otherwise run on the
+	 * timer thread and hold up every other deadline and reconnect.
+	 * @param failure
+	 */
+	void expire(Runnable failure) {
+		try {
+			manager.getDeadlineExecutor().execute(failure);
+		} catch (RejectedExecutionException e) {
+			// The manager has been closed
+			failure.run();
+		}
+	}
+	
+	/**
+	 * Called on the timer thread when a command misses its deadline
+	 * @param qc
+	 */
+	void commandTimedOut(QueuedCommand qc) {
+		if (qc.probe) return;
+		
+		int count=consecutiveTimeouts.incrementAndGet();
+		int threshold=circuitThreshold;
+		if (threshold>0 && count>=threshold) {
+			synchronized (lock) {
+				if (circuitOpen) return;
+				circuitOpen=true;
 			}
-			connectionState.queueCommand(qc, transmissionLock>0);
+			logger.warn("Opening redis circuit after " + count + " consecutive timeouts");
+			scheduleProbe();
 		}
 	}
-
+	
+	/**
+	 * Called on the I/O thread when a reply completes a live command
+	 */
+	void replySucceeded() {
+		if (consecutiveTimeouts.get()!=0) consecutiveTimeouts.set(0);
+	}
+	
+	private void scheduleProbe() {
+		if (quitting) return;
+		manager.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				sendProbe();
+			}
+		}, circuitProbeInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	private void sendProbe() {
+		if (quitting) return;
+		
+		QueuedCommand qc=new QueuedCommand(new RedisCommand(serializer, "PING"));
+		qc.probe=true;
+		qc.timeoutMillis=circuitProbeInterval;
+		qc.result.force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				if (!promise.isError() && promise.getResolution().getType()!=RedisResult.TYPE_ERROR) {
+					consecutiveTimeouts.set(0);
+					circuitOpen=false;
+					logger.info("Closed redis circuit");
+				} else {
+					scheduleProbe();
+				}
+			}
+		});
+		queueCommand(qc);
+	}
+	
+	/**
+	 * @return true if count more commands may be queued.  Only bounded while
+	 * offline.
+	 */
+	private boolean admit(int count) {
+		if (!offline) return true;
+		return outstanding.get()+count<=maxOfflineCommands;
+	}
+	
+	private RedisResult offlineError() {
+		return new RedisPrimitiveResult(RedisResult.TYPE_ERROR, "Redis not connected and offline buffer full");
+	}
+	
 	/**
 	 * Called by RedisManager to associate a connection with this instance.  This also moves the client
 	 * to the connected state
@@ -261,106 +1053,278 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 	 * @param connection
 	 */
 	void bind(SocketAddress address, Channel channel) throws IOException {
-		DisconnectedConnectionState dcs;
-		try {
-			dcs=(DisconnectedConnectionState) connectionState;
-		} catch (ClassCastException e) {
+		if (quitting) {
+			channel.close();
+			return;
+		}
+		if (!(connectionState instanceof DisconnectedConnectionState)) {
 			logger.error("Attempt to bind Redis connection that is already connected");
 			channel.close();
 			throw new IllegalStateException("Attempt to bind Redis connection that is already connected");
 		}
 		
-		dcs.bind(address, channel);
+		// Start the new stream from a clean slate
+		parser.discard();
+		parser=manager.createParser(this);
+		reset();
+		transmitting.set(0);
+		writeSuspended=false;
+		inFlightFull=false;
+		offline=false;
+		
+		// Setup commands and subscriptions go ahead of anything queued
+		List<QueuedCommand> replay=new ArrayList<QueuedCommand>();
+		synchronized (lock) {
+			reconnectAttempts=0;
+			reconnectTimeout=null;
+			// Authenticate before selecting the database, whatever order they were issued in
+			for (String name: STATE_COMMAND_ORDER) {
+				RedisCommand command=setupCommands.get(name);
+				if (command!=null) replay.add(new QueuedCommand(command, replyTo(pendingSetup.get(name))));
+			}
+			for (Map.Entry<String, RedisCommand> entry: setupCommands.entrySet()) {
+				if (RedisConstants.STATE_COMMANDS.contains(entry.getKey())) continue;
+				replay.add(new QueuedCommand(entry.getValue(), replyTo(pendingSetup.get(entry.getKey()))));
+			}
+			pendingSetup.clear();
+			for (String channelName: subscribedChannels.keySet()) {
+				replay.add(new QueuedCommand(new RedisCommand(serializer, "SUBSCRIBE", channelName), (Promise<RedisResult>)null));
+			}
+			for (String pattern: subscribedPatterns.keySet()) {
+				replay.add(new QueuedCommand(new RedisCommand(serializer, "PSUBSCRIBE", pattern), (Promise<RedisResult>)null));
+			}
+			outstanding.addAndGet(replay.size());
+			QueuedCommand[] replayCommands=replay.toArray(new QueuedCommand[replay.size()]);
+			
+			// Under the lock so that no setup command issued from here on waits
+			// for a replay that has already been taken
+			connectionState=isSubscribed() ? new SubscriptionConnectionState(channel, replayCommands) :
+				new ConnectedConnectionState(channel, replayCommands);
+		}
+		RedisSubscriptionDispatcher dispatcher=subscriptionDispatcher;
+		if (dispatcher!=null && dispatcher.isPaused()) {
+			// Still backed up from the previous connection
+			channel.setReadable(false);
+		}
+		logger.info("Connected redis");
+		drain();
 	}
 	
-	void connectionClosed() {
-		try {
-			((ConnectedConnectionState)connectionState).connectionClosed();
-		} catch (ClassCastException e) {
-			logger.error("Connection closed in illegal connection state");
+	/**
+	 * @param waiting Callers of a setup command waiting for its replay, or null
+	 * @return promise passing the reply of the replayed command on to them, or null
+	 */
+	private static Promise<RedisResult> replyTo(final List<QueuedCommand> waiting) {
+		if (waiting==null) return null;
+		
+		Promise<RedisResult> reply=new Promise<RedisResult>();
+		reply.force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				for (QueuedCommand qc: waiting) {
+					if (promise.isError()) qc.fail(promise.getError());
+					else qc.complete(promise.getResolution());
+				}
+			}
+		});
+		return reply;
+	}
+	
+	void connectionClosed(Channel channel) {
+		ConnectionState state=connectionState;
+		if (!(state instanceof ConnectedConnectionState) || ((ConnectedConnectionState)state).channel!=channel) {
+			if (logger.isDebugEnabled()) logger.debug("Ignoring close of channel not bound to this connection");
+			return;
 		}
+		
+		((ConnectedConnectionState)state).abandonReplay();
+		
+		// The I/O thread delivers no more replies after this so the drainer
+		// may take over the consumer side of the in flight ring
+		if (quitting || !reconnect) {
+			connectionState=new ClosedConnectionState();
+			logger.info("Redis connection closed");
+			drain();
+		} else {
+			offline=true;
+			connectionState=new DisconnectedConnectionState();
+			logger.warn("Redis connection lost");
+			drain();
+			scheduleReconnect();
+		}
+	}
+	
+	/**
+	 * Called by the manager when a connection attempt fails
+	 * @param cause
+	 */
+	void connectFailed(Throwable cause) {
+		logger.warn("Error connecting to redis: " + cause);
+		if (quitting) return;
+		offline=true;
+		if (!reconnect) {
+			connectionState=new ClosedConnectionState();
+			drain();
+			return;
+		}
+		scheduleReconnect();
+	}
+	
+	private void scheduleReconnect() {
+		long delay;
+		synchronized (lock) {
+			if (quitting) return;
+			
+			long ceiling=Math.min(reconnectMaxDelay, reconnectMinDelay << Math.min(reconnectAttempts, 20));
+			reconnectAttempts++;
+			delay=ceiling/2 + (long)(JITTER.nextDouble() * (ceiling - ceiling/2));
+			
+			reconnectTimeout=manager.getTimer().newTimeout(new TimerTask() {
+				@Override
+				public void run(Timeout timeout) throws Exception {
+					if (!quitting) manager.open(Redis.this);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		logger.info("Reconnecting to redis in " + delay + "ms");
 	}
 	
 	void writeComplete(long amountWritten) {
-		try {
-			((ConnectedConnectionState)connectionState).writeComplete(amountWritten);
-		} catch (ClassCastException e) {
-			logger.error("Connection write complete in illegal connection state");
+		long remaining=transmitting.addAndGet(-amountWritten);
+		if (remaining>writeLowWatermark) return;
+		
+		// Resume after a suspension.  Also pick up commands that were held back
+		// while earlier writes were in flight, ie. a subscribe waiting to divert.
+		if (writeSuspended || !submissions.isEmpty()) {
+			writeSuspended=false;
+			drain();
 		}
 	}
 	
 	// -- state classes
 	public static final int STATE_DISCONNECTED=0;
 	public static final int STATE_CONNECTED=1;
+	public static final int STATE_CLOSED=2;
 	
 	abstract class ConnectionState {
 		abstract int getState();
-		abstract void queueCommand(QueuedCommand qc, boolean disableTransmit);
+		
+		/**
+		 * Move submitted commands along.  Only ever called by the drainer.
+		 */
+		abstract void transmit();
+		
 		void handleResult(RedisResult result) {
 			throw new IllegalStateException("Results not supported in this connection state");
 		}
+		RedisStreamConsumer beginStream() {
+			return null;
+		}
+		void handleStreamEnd(RedisStreamConsumer consumer) {
+			throw new IllegalStateException("Results not supported in this connection state");
+		}
 	}
 	
 	class DisconnectedConnectionState extends ConnectionState {
-		LinkedList<QueuedCommand> pendingCommands=new LinkedList<QueuedCommand>();
-		
 		@Override
 		int getState() {
 			return STATE_DISCONNECTED;
 		}
 		
 		@Override
-		public void queueCommand(QueuedCommand qc, boolean disableTransmit) {
-			if (qc!=null) pendingCommands.add(qc);
+		void transmit() {
+			// Anything in flight went out on a connection that has since dropped.
+			// Commands not yet written wait in the submission queue until bound.
+			RedisResult error=null;
+			QueuedCommand qc;
+			while ((qc=inFlight.poll())!=null) {
+				if (error==null) error=new RedisPrimitiveResult(RedisResult.TYPE_ERROR, "Connection Closed");
+				outstanding.decrementAndGet();
+				qc.complete(error);
+			}
+		}
+	}
+	
+	class ClosedConnectionState extends ConnectionState {
+		@Override
+		int getState() {
+			return STATE_CLOSED;
 		}
 		
-		void bind(SocketAddress address, Channel channel) {
+		@Override
+		void transmit() {
+			RedisResult error=new RedisPrimitiveResult(RedisResult.TYPE_ERROR, "Connection Closed");
+			List<QueuedCommand> abandoned=new ArrayList<QueuedCommand>();
 			synchronized (lock) {
-				ConnectedConnectionState ccs=new ConnectedConnectionState(channel);
-				connectionState=ccs;
-				if (!pendingCommands.isEmpty()) {
-					for (QueuedCommand qc: pendingCommands) {
-						ccs.queueCommand(qc, false);
-					}
+				for (List<QueuedCommand> waiting: pendingSetup.values()) {
+					abandoned.addAll(waiting);
 				}
+				pendingSetup.clear();
+			}
+			for (QueuedCommand qc: abandoned) {
+				qc.complete(error);
+			}
+			
+			QueuedCommand qc;
+			while ((qc=inFlight.poll())!=null) {
+				outstanding.decrementAndGet();
+				qc.complete(error);
+			}
+			while ((qc=submissions.poll())!=null) {
+				outstanding.decrementAndGet();
+				qc.complete(error);
 			}
-			logger.info("Connected redis");
 		}
 	}
 	
+	/**
+	 * Message kinds compared without decoding
+	 */
+	static final ChannelBuffer MESSAGE_KIND=ChannelBuffers.copiedBuffer("message", CharsetUtil.US_ASCII);
+	static final ChannelBuffer PMESSAGE_KIND=ChannelBuffers.copiedBuffer("pmessage", CharsetUtil.US_ASCII);
+	
 	class SubscriptionConnectionState extends ConnectedConnectionState {
-
-		SubscriptionConnectionState(ConnectedConnectionState other) {
-			super(other);
-		}
+		
 		public SubscriptionConnectionState(Channel channel) {
 			super(channel);
 		}
 		
-		@Override
-		boolean divertTransmission(QueuedCommand next) {
-			return false;
+		SubscriptionConnectionState(Channel channel, QueuedCommand[] replay) {
+			super(channel, replay);
 		}
-
+		
+		@Override
 		boolean willDivert(QueuedCommand next) {
 			return false;
 		}
-
+		
+		@Override
+		RedisStreamConsumer beginStream() {
+			// Messages are never streamed
+			return null;
+		}
+		
 		@Override
 		void handleResult(RedisResult result) {
+			if (result.getType()!=RedisResult.TYPE_MULTI) {
+				// A plain reply to a command, ie. a replayed setup command
+				super.handleResult(result);
+				return;
+			}
+			
 			RedisMultiResult multi=result.getAsMulti();
-			String kind=multi.get(0).getString();
+			ChannelBuffer kind=multi.get(0).getChannelBuffer();
 			String channel, pattern;
 			RedisResult payload;
 			
-			if ("message".equals(kind)) {
+			if (MESSAGE_KIND.equals(kind)) {
 				// Dispatch message
 				channel=multi.get(1).getString();
 				pattern=null;
 				payload=multi.get(2);
 				dispatchMessage(channel, pattern, payload);
 				return;
-			} else if ("pmessage".equals(kind)) {
+			} else if (PMESSAGE_KIND.equals(kind)) {
 				// Dispatch pattern message
 				pattern=multi.get(1).getString();
 				channel=multi.get(2).getString();
@@ -369,130 +1333,111 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 				return;
 			}
 			
-			synchronized (lock) {
-				// Subscription management.  All we really care about is
-				// the resultant count.
-				if (RedisConstants.SUBSCRIPTION_MESSAGE_TYPES.contains(kind)) {
-					// Count is last
-					int remaining=multi.get(multi.getCount()-1).getInteger();
-					if (remaining==0) {
-						// Get out of this state
-						ConnectedConnectionState csc=new ConnectedConnectionState(this);
-						connectionState=csc;
-						logger.info("Left subscription state");
-					}
-					
-					// Pop an active message and acknowledge it
-					QueuedCommand ackQc=activeCommands.removeFirst();
-					if (ackQc.result!=null) ackQc.result.resolve(result);
+			// Subscription management.  All we really care about is
+			// the resultant count.
+			if (RedisConstants.SUBSCRIPTION_MESSAGE_TYPES.contains(kind.toString(CharsetUtil.UTF_8))) {
+				// Count is last
+				long remaining=multi.get(multi.getCount()-1).getLong();
+				if (remaining==0) {
+					// Get out of this state
+					connectionState=new ConnectedConnectionState(this.channel);
+					logger.info("Left subscription state");
+				}
+				
+				// Pop an active message and acknowledge it
+				QueuedCommand ackQc=inFlight.poll();
+				if (ackQc==null) {
+					logger.error("Subscription acknowledgement received when no active commands");
+					forceClose();
+					return;
 				}
+				outstanding.decrementAndGet();
+				ackQc.complete(result);
+				replyConsumed();
 			}
 		}
 	}
 	
 	class ConnectedConnectionState extends ConnectionState  {
-		Channel channel;
+		final Channel channel;
 		
 		/**
-		 * Commands which have not yet been sent to the pipeline
+		 * Commands written ahead of the submission queue on a new connection
 		 */
-		LinkedList<QueuedCommand> pendingCommands;
-		LinkedList<QueuedCommand> activeCommands;
-		QueuedCommand transmittingCommand;
-		long transmitting;
+		QueuedCommand[] replay;
 		
-		private long writeStartTime;
+		/**
+		 * How many of the replay commands have been written
+		 */
+		int replayed;
 		
 		ConnectedConnectionState(Channel channel) {
 			this.channel=channel;
-			this.pendingCommands=new LinkedList<QueuedCommand>();
-			this.activeCommands=new LinkedList<QueuedCommand>();
 		}
 		
-		ConnectedConnectionState(ConnectedConnectionState other) {
-			this.channel=other.channel;
-			this.pendingCommands=other.pendingCommands;
-			this.activeCommands=other.activeCommands;
+		ConnectedConnectionState(Channel channel, QueuedCommand[] replay) {
+			this.channel=channel;
+			if (replay.length>0) this.replay=replay;
 		}
 		
-		void connectionClosed() {
-			DisconnectedConnectionState dcs=new DisconnectedConnectionState();
-			
-			RedisResult error=new RedisPrimitiveResult(RedisResult.TYPE_ERROR, "Connection Closed");
-			for (QueuedCommand qc: activeCommands) {
-				if (qc.result!=null) qc.result.resolve(error);
-			}
-			for (QueuedCommand qc: pendingCommands) {
-				if (qc.result!=null) qc.result.resolve(error);
+		@Override
+		void handleResult(RedisResult result) {
+			QueuedCommand next=inFlight.poll();
+			if (next==null) {
+				logger.error("Command received when no active commands");
+				forceClose();
+				return;
 			}
 			
-			/*
-			int carriedForward;
-			dcs.pendingCommands.addAll(activeCommands);
-			dcs.pendingCommands.addAll(pendingCommands);
-			
-			carriedForward=dcs.pendingCommands.size();
-			connectionState=dcs;
+			outstanding.decrementAndGet();
+			if (next.complete(result)) replySucceeded();
+			replyConsumed();
+		}
+		
+		@Override
+		RedisStreamConsumer beginStream() {
+			QueuedCommand head=inFlight.peek();
+			if (head==null || head.stream==null) return null;
 			
-			logger.info("Redis connection closed with " + carriedForward + " neglected commands");
-			*/
+			// Once the reply starts arriving the deadline no longer applies.  An
+			// expired command has its reply built and discarded instead.
+			return head.detachDeadline() ? head.stream : null;
 		}
 		
 		@Override
-		void handleResult(RedisResult result) {
+		void handleStreamEnd(RedisStreamConsumer consumer) {
+			inFlight.poll();
+			outstanding.decrementAndGet();
+			replyConsumed();
+			
 			try {
-				QueuedCommand next;
-				
-				synchronized (lock) {
-					next=activeCommands.removeFirst();
-				}
-				
-				if (next.result!=null) next.result.resolve(result);
-			} catch (NoSuchElementException e) {
-				logger.error("Command received when no active commands");
-				forceClose();
+				consumer.handleEnd();
+			} catch (Throwable t) {
+				logger.error("Error in stream consumer", t);
 			}
 		}
 		
 		void forceClose() {
 			try {
 				channel.close();
-				channel=null;
 			} catch (Exception e) {
 				logger.error("Error force closing connection", e);
 			}
 		}
-
+		
 		@Override
 		int getState() {
 			return STATE_CONNECTED;
 		}
-
-		@Override
-		public void queueCommand(QueuedCommand qc, boolean disableTransmit) {
-			if (qc!=null) pendingCommands.add(qc);
-			if (transmitting<=0 && !disableTransmit) {
-				transmitNext();
-			}
-		}
 		
-		boolean divertTransmission(QueuedCommand next) {
-			String commandName=next.command.command;
-			if ("SUBSCRIBE".equals(commandName) || "PSUBSCRIBE".equals(commandName)) {
-				// Need to enter sub state
-				SubscriptionConnectionState scs=new SubscriptionConnectionState(this);
-				scs.activeCommands=activeCommands;
-				scs.pendingCommands=pendingCommands;
-				scs.transmitting=transmitting;
-				connectionState=scs;
-				
-				// Note that the writeComplete may happen in the scope of this call
-				scs.transmitNext();
-				if (logger.isDebugEnabled()) logger.debug("Entered subscription state");
-				return true;
-			} else {
-				return false;
-			}	
+		void divertTransmission() {
+			// Need to enter sub state
+			SubscriptionConnectionState scs=new SubscriptionConnectionState(channel);
+			connectionState=scs;
+			
+			// Note that the writeComplete may happen in the scope of this call
+			scs.transmit();
+			if (logger.isDebugEnabled()) logger.debug("Entered subscription state");
 		}
 		
 		boolean willDivert(QueuedCommand next) {
@@ -500,75 +1445,161 @@ public final class Redis extends RedisResultBuilder implements RedisExecutor {
 			return "SUBSCRIBE".equals(commandName) || "PSUBSCRIBE".equals(commandName);
 		}
 		
-		void transmitNext() {
-			combineBuffer.clear();
-			while (!pendingCommands.isEmpty()) {
-				QueuedCommand next=pendingCommands.getFirst();
+		/**
+		 * Write submitted commands until they run out or the write high watermark
+		 * is reached
+		 */
+		@Override
+		void transmit() {
+			if (replay!=null && !transmitReplay()) return;
+			
+			while (!writeSuspended) {
+				if (!transmitBatch()) break;
+			}
+		}
+		
+		/**
+		 * Write as much of the replay as the in flight ring has room for.  The
+		 * rest is written by later passes as replies free slots.
+		 * @return true once the whole replay has been written
+		 */
+		synchronized boolean transmitReplay() {
+			if (replay==null) return true;
+			while (replayed<replay.length && !writeSuspended) {
+				int slots=freeSlots();
+				if (slots==0) return false;
 				
+				int count=Math.min(slots, replay.length-replayed);
+				QueuedCommand[] batch=new QueuedCommand[count];
+				for (int i=0; i<count; i++) {
+					batch[i]=replay[replayed++];
+					inFlight.offer(batch[i]);
+				}
+				write(batch, count);
+			}
+			if (replayed<replay.length) return false;
+			
+			replay=null;
+			return true;
+		}
+		
+		/**
+		 * Fail the replay commands that were never written.  Called when the
+		 * channel closes, since no later pass will write them.
+		 */
+		synchronized void abandonReplay() {
+			if (replay==null) return;
+			RedisResult error=new RedisPrimitiveResult(RedisResult.TYPE_ERROR, "Connection Closed");
+			for (; replayed<replay.length; replayed++) {
+				QueuedCommand qc=replay[replayed];
+				outstanding.decrementAndGet();
+				qc.command.release();
+				qc.complete(error);
+			}
+			replay=null;
+		}
+		
+		/**
+		 * @return free in flight slots.  If there are none the I/O thread drains
+		 * again once a reply frees one.
+		 */
+		int freeSlots() {
+			int slots=inFlight.free();
+			if (slots==0) {
+				// Check after raising the flag in case a reply has already
+				// freed a slot
+				inFlightFull=true;
+				slots=inFlight.free();
+				if (slots==0) return 0;
+				inFlightFull=false;
+			}
+			return slots;
+		}
+		
+		/**
+		 * Gather submitted commands up to the transmit budget and write them as one
+		 * composite buffer.  The command buffers are not copied.  They are released
+		 * when the write completes.
+		 * @return true if anything was written
+		 */
+		boolean transmitBatch() {
+			if (submissions.isEmpty()) return false;
+			
+			int slots=freeSlots();
+			if (slots==0) return false;
+			
+			int budget=transmitBudget;
+			int bytes=0;
+			int count=0;
+			
+			// Size the batch
+			for (QueuedCommand next=submissions.peek(); next!=null && count<slots; next=next.next) {
 				// Does the next command signal a state change?
-				// If so, dump what we have thus far and only change state
-				// if there is nothing pending
+				// If so, send what we have thus far and only change state
+				// if there is nothing in flight
 				if (willDivert(next)) {
-					// Flush the current combineBuffer and bail
-					if (combineBuffer.position()>0) {
-						break;
-					} else {
-						divertTransmission(next);
+					if (count==0 && transmitting.get()<=0) {
+						divertTransmission();
 					}
-					return;
+					break;
 				}
 				
-				// Will the next buffer fit onto the current combineBuffer?
-				ByteBuffer nextBuffer=next.command.getBuffer();
-				if (nextBuffer.remaining()<combineBuffer.remaining()) {
-					// It fits.  Combine it with the previous.
-					//if (logger.isDebugEnabled() && combineBuffer.position()>0) {
-					//	logger.debug("Combining transmission packet with previous");
-					//}
-					combineBuffer.put(nextBuffer);
-					pendingCommands.removeFirst();
-					activeCommands.add(next);
-					continue;
-				}
-				
-				// It doesn't fit.  If we have anything pending in the combined buffer,
-				// just break to transmit that.  Otherwise, transmit this.
-				if (combineBuffer.position()>0) break;
-				
-				// Transmit this packet
-				pendingCommands.removeFirst();
-				activeCommands.add(next);
-				writeBuffer(nextBuffer);
-				return;
+				int size=next.command.getBuffer().remaining();
+				if (count>0 && bytes+size>budget) break;
+				bytes+=size;
+				count++;
 			}
+			if (count==0) return false;
 			
-			// If we have anything pending in the combineBuffer, send it
-			if (combineBuffer.position()>0) {
-				combineBuffer.flip();
-				writeBuffer(combineBuffer);
+			// Gather
+			QueuedCommand[] batch=new QueuedCommand[count];
+			int live=0;
+			for (int i=0; i<count; i++) {
+				QueuedCommand next=submissions.poll();
+				if (next.isClaimed() && !next.batched) {
+					// Expired before it was written.  Spare the server the work.
+					outstanding.decrementAndGet();
+					next.command.release();
+					continue;
+				}
+				inFlight.offer(next);
+				batch[live++]=next;
 			}
+			if (live>0) write(batch, live);
+			return true;
 		}
 		
-		void writeBuffer(ByteBuffer buffer) {
-			synchronized (lock) {
-				writeStartTime=System.currentTimeMillis();
-				transmitting+=buffer.remaining();
+		/**
+		 * Write commands as one composite buffer, releasing them once written
+		 */
+		void write(QueuedCommand[] batch, int count) {
+			ByteBuffer[] buffers=new ByteBuffer[count];
+			final RedisCommand[] commands=new RedisCommand[count];
+			for (int i=0; i<count; i++) {
+				commands[i]=batch[i].command;
+				buffers[i]=commands[i].getBuffer();
 			}
-			channel.write(buffer);
-		}
-
-		void writeComplete(long amountWritten) {
-			// Hairpin another write
-			synchronized (lock) {
-				transmitting-=amountWritten;
-				if (transmitting<=0) {
-					//System.err.println("Pending write complete");
-					transmitting=0;
-					if (!pendingCommands.isEmpty()) {
-						transmitNext();
+			
+			writeBuffer(ChannelBuffers.wrappedBuffer(buffers)).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future) throws Exception {
+					for (RedisCommand command: commands) {
+						command.release();
 					}
 				}
+			});
+		}
+		
+		ChannelFuture writeBuffer(ChannelBuffer buffer) {
+			long pending=transmitting.addAndGet(buffer.readableBytes());
+			if (pending>=writeHighWatermark) {
+				writeSuspended=true;
+				// Completions may have brought it down before the flag was visible
+				if (transmitting.get()<=writeLowWatermark) {
+					writeSuspended=false;
+				}
 			}
+			return channel.write(buffer);
 		}
 	}
 }
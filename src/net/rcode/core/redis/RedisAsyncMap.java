@@ -8,12 +8,23 @@ import net.rcode.core.async.AsyncMap;
 import net.rcode.core.async.Promise;
 
 public class RedisAsyncMap extends AsyncMap {
-	protected Redis connection;
+	protected RedisExecutor connection;
 	protected String key;
+	protected RedisCodec<String> valueCodec;
 	
-	public RedisAsyncMap(Redis connection, String key) {
+	public RedisAsyncMap(RedisExecutor connection, String key) {
+		this(connection, key, RedisCodecs.STRING);
+	}
+	
+	/**
+	 * @param connection
+	 * @param key
+	 * @param valueCodec Codec applied to values, ie. a RedisCompressionCodec
+	 */
+	public RedisAsyncMap(RedisExecutor connection, String key, RedisCodec<String> valueCodec) {
 		this.connection=connection;
 		this.key=key;
+		this.valueCodec=valueCodec;
 	}
 
 	@Override
@@ -23,17 +34,26 @@ public class RedisAsyncMap extends AsyncMap {
 
 	@Override
 	public Promise<String> get(String name) {
-		return connection.execute("HGET", key, name).chain(RedisConversions.BULK_TO_STRING);
+		if (valueCodec==RedisCodecs.STRING) {
+			return connection.execute("HGET", key, name).chain(RedisConversions.BULK_TO_STRING);
+		}
+		return connection.execute("HGET", key, name).chain(new Promise.Chain<RedisResult, String>() {
+			@Override
+			public String chain(RedisResult input) throws Throwable {
+				input.ifError();
+				return input.isNull() ? null : valueCodec.decode(input);
+			}
+		});
 	}
 
 	@Override
 	public Promise<Map<String, String>> getAll() {
-		return connection.execute("HGETALL", key).chain(RedisConversions.INTERLEAVED_MULTIBULK_TO_MAP);
+		return connection.execute("HGETALL", key).chain(RedisConversions.interleavedMultiBulkToMap(valueCodec));
 	}
 
 	@Override
 	public Promise<Boolean> put(String name, String value) {
-		return connection.execute("HSET", key, name, value).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+		return connection.execute("HSET", key, name, valueCodec.encode(value)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
 	}
 
 	@Override
@@ -47,10 +67,20 @@ public class RedisAsyncMap extends AsyncMap {
 		arguments.add(key);
 		for (Map.Entry<String, String> entry: updates.entrySet()) {
 			arguments.add(entry.getKey());
-			arguments.add(entry.getValue());
+			arguments.add(valueCodec.encode(entry.getValue()));
 		}
 		return connection.execute(new RedisCommand("HMSET", arguments)).chain(RedisConversions.RESULT_TO_VOID);
 	}
+	
+	/**
+	 * Walk the hash a page at a time with HSCAN instead of fetching it whole
+	 * @param count COUNT hint per page
+	 * @return cursor over pages of fields and values
+	 */
+	public RedisCursor<Map<String,String>> scan(int count) {
+		return new RedisCursor<Map<String,String>>(connection, "HSCAN", key, null, count,
+				RedisConversions.interleavedMultiBulkToMap(valueCodec));
+	}
 
 	
 }
@@ -6,15 +6,16 @@ import net.rcode.core.async.AsyncSet;
 import net.rcode.core.async.Promise;
 
 /**
- * Provide an async set backed by a redis set
+ * Provide an async set backed by a redis set.  Members are streamed when the
+ * executor supports it (ie. a Redis or RedisPool) and fetched whole otherwise.
  * @author stella
  *
  */
 public class RedisAsyncSet extends AsyncSet {
-	protected Redis connection;
+	protected RedisExecutor connection;
 	protected String key;
 	
-	public RedisAsyncSet(Redis connection, String key) {
+	public RedisAsyncSet(RedisExecutor connection, String key) {
 		this.connection=connection;
 		this.key=key;
 	}
@@ -36,9 +37,24 @@ public class RedisAsyncSet extends AsyncSet {
 
 	@Override
 	public Promise<Collection<String>> members() {
+		if (connection instanceof RedisStreamingExecutor) {
+			// Stream the members so that only the decoded strings are held
+			RedisStreamCollector collector=new RedisStreamCollector();
+			((RedisStreamingExecutor)connection).execute(collector, "SMEMBERS", key);
+			return collector.getResult();
+		}
 		return connection.execute("SMEMBERS", key).chain(RedisConversions.MULTI_BULK_RESULT_TO_STRINGS);
 	}
 	
+	/**
+	 * Walk the set a page at a time with SSCAN instead of fetching it whole
+	 * @param count COUNT hint per page
+	 * @return cursor over pages of members
+	 */
+	public RedisCursor<Collection<String>> scan(int count) {
+		return RedisCursor.sscan(connection, key, null, count);
+	}
+	
 	@Override
 	public Promise<Integer> size() {
 		return connection.execute("SCARD", key).chain(RedisConversions.INTEGER_RESULT_TO_INTEGER);
@@ -0,0 +1,118 @@
+package net.rcode.core.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * A RedisAsyncMap whose reads are served from a RedisNearCache.  A miss loads
+ * the whole hash with HGETALL, so this suits small hashes that are read much
+ * more often than they are written.  Writes go straight to redis and then
+ * invalidate the local entry and, if an invalidation channel is given, publish
+ * the key so that other processes drop their copies too.
+ *
+ * @author stella
+ *
+ */
+public class RedisCachedAsyncMap extends RedisAsyncMap {
+	private final RedisNearCache cache;
+	private final String invalidationChannel;
+	
+	public RedisCachedAsyncMap(RedisExecutor connection, String key, RedisNearCache cache) {
+		this(connection, key, cache, null);
+	}
+	
+	/**
+	 * @param connection
+	 * @param key
+	 * @param cache
+	 * @param invalidationChannel Channel to publish the key on after writes or null
+	 */
+	public RedisCachedAsyncMap(RedisExecutor connection, String key, RedisNearCache cache, String invalidationChannel) {
+		super(connection, key);
+		this.cache=cache;
+		this.invalidationChannel=invalidationChannel;
+	}
+	
+	/**
+	 * @return read-only fields of the hash, from the cache if present
+	 */
+	protected Promise<Map<String,String>> load() {
+		Map<String,String> cached=cache.get(key);
+		if (cached!=null) return Promise.fixed(cached);
+		
+		final RedisNearCache.Load load=cache.beginLoad(key);
+		return super.getAll().chain(new Promise.Chain<Map<String,String>, Map<String,String>>() {
+			@Override
+			public Map<String, String> chain(Map<String, String> input) throws Throwable {
+				cache.put(key, input, load);
+				return input;
+			}
+		});
+	}
+	
+	@Override
+	public Promise<String> get(final String name) {
+		return load().chain(new Promise.Chain<Map<String,String>, String>() {
+			@Override
+			public String chain(Map<String, String> input) throws Throwable {
+				return input.get(name);
+			}
+		});
+	}
+	
+	@Override
+	public Promise<Boolean> contains(final String value) {
+		return load().chain(new Promise.Chain<Map<String,String>, Boolean>() {
+			@Override
+			public Boolean chain(Map<String, String> input) throws Throwable {
+				return input.containsKey(value);
+			}
+		});
+	}
+	
+	@Override
+	public Promise<Map<String, String>> getAll() {
+		return load().chain(new Promise.Chain<Map<String,String>, Map<String,String>>() {
+			@Override
+			public Map<String, String> chain(Map<String, String> input) throws Throwable {
+				// Callers are free to modify what they get back
+				return new HashMap<String,String>(input);
+			}
+		});
+	}
+	
+	@Override
+	public Promise<Boolean> put(String name, String value) {
+		return written(super.put(name, value));
+	}
+	
+	@Override
+	public Promise<Boolean> remove(String value) {
+		return written(super.remove(value));
+	}
+	
+	@Override
+	public Promise<Void> putAll(Map<String, String> updates) {
+		return written(super.putAll(updates));
+	}
+	
+	/**
+	 * Invalidate once a write has been applied
+	 */
+	private <T> Promise<T> written(Promise<T> write) {
+		cache.invalidate(key);
+		return write.chain(new Promise.Chain<T, T>() {
+			@Override
+			public T chain(T input) throws Throwable {
+				// Again, in case a load raced the write
+				cache.invalidate(key);
+				if (invalidationChannel!=null) {
+					connection.executeAndForget("PUBLISH", invalidationChannel, key);
+				}
+				return input;
+			}
+		});
+	}
+}
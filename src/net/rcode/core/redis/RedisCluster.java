@@ -0,0 +1,324 @@
+package net.rcode.core.redis;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.rcode.core.async.Flow;
+import net.rcode.core.async.Promise;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor for a Redis Cluster.  Each command is sent straight to the node
+ * owning its hash slot (see RedisKeys.slot) over one pipelined connection per
+ * node.  The slot table is fetched with CLUSTER SLOTS when the cluster is
+ * created and again whenever a node answers MOVED.  Refreshes run in the
+ * background: until one completes, commands go to the node last known to own
+ * the slot (or the first seed) and any misrouting is corrected by redirects.
+ * <p>
+ * MOVED and ASK replies are followed transparently, up to MAX_REDIRECTS times
+ * per command.  MOVED also updates the table entry for the slot so later
+ * commands go straight to the new owner.  ASK is a one-off for a slot being
+ * migrated: the command is resent to the target preceded by ASKING.
+ * <p>
+ * As with RedisShards, multi-key commands and scripts are only accepted if
+ * all of their keys hash to the same slot.  Commands without arguments go to
+ * the first seed.  Commands given as a RedisCommand are retained so that they
+ * can be resent, which means their buffer is not returned to the pool.
+ *
+ * @author stella
+ *
+ */
+public class RedisCluster implements RedisExecutor {
+	private static final Logger logger=LoggerFactory.getLogger(RedisCluster.class);
+	
+	public static final int MAX_REDIRECTS=5;
+	
+	private final RedisManager manager;
+	private final String[] seeds;
+	
+	/**
+	 * Connections by "host:port"
+	 */
+	private final ConcurrentHashMap<String, Redis> nodes=new ConcurrentHashMap<String, Redis>();
+	
+	/**
+	 * Owner of each slot or null if not known
+	 */
+	private final AtomicReferenceArray<Redis> slots=new AtomicReferenceArray<Redis>(RedisKeys.SLOT_COUNT);
+	
+	private final AtomicBoolean refreshing=new AtomicBoolean();
+	private final AtomicInteger refreshCount=new AtomicInteger();
+	
+	/**
+	 * @param manager
+	 * @param seeds "host:port" of one or more nodes of the cluster
+	 */
+	public RedisCluster(RedisManager manager, String... seeds) {
+		if (seeds.length==0) throw new IllegalArgumentException("At least one seed is required");
+		this.manager=manager;
+		this.seeds=new String[seeds.length];
+		for (int i=0; i<seeds.length; i++) {
+			this.seeds[i]=seeds[i].indexOf(':')<0 ? seeds[i] + ':' + RedisManager.DEFAULT_PORT : seeds[i];
+			getNode(this.seeds[i]);
+		}
+		refresh();
+	}
+	
+	/**
+	 * @param address "host:port"
+	 * @return connection to the node, opened on first use
+	 */
+	public Redis getNode(String address) {
+		Redis node=nodes.get(address);
+		if (node!=null) return node;
+		
+		int colon=address.lastIndexOf(':');
+		node=manager.connect(address.substring(0, colon), Integer.parseInt(address.substring(colon+1)));
+		Redis existing=nodes.putIfAbsent(address, node);
+		if (existing!=null) {
+			try {
+				node.quit();
+			} catch (IOException e) {
+				// Never used
+			}
+			return existing;
+		}
+		return node;
+	}
+	
+	/**
+	 * @param slot
+	 * @return connection to the node believed to own the slot
+	 */
+	public Redis getSlotOwner(int slot) {
+		Redis node=slot>=0 ? slots.get(slot) : null;
+		return node!=null ? node : getNode(seeds[0]);
+	}
+	
+	/**
+	 * Fetch the slot table in the background.  Does nothing if a refresh is
+	 * already in flight.  The current table stays in use until the new one
+	 * has been read and is kept if the refresh fails.
+	 */
+	public void refresh() {
+		if (!refreshing.compareAndSet(false, true)) return;
+		
+		// Rotate through the seeds so that one dead seed does not stop refreshes
+		final String seed=seeds[(refreshCount.getAndIncrement() & Integer.MAX_VALUE) % seeds.length];
+		getNode(seed).execute("CLUSTER", "SLOTS").force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				try {
+					if (promise.isError()) throw promise.getError();
+					RedisResult reply=promise.getResolution();
+					reply.ifError();
+					updateSlots(seed, reply.getAsMulti());
+				} catch (Throwable t) {
+					if (logger.isDebugEnabled()) logger.debug("Error refreshing cluster slots from " + seed + ": " + t);
+				} finally {
+					refreshing.set(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Apply a CLUSTER SLOTS reply.  Each entry is [start, end, master, replicas...]
+	 * where each node is [ip, port, ...].
+	 */
+	private void updateSlots(String seed, RedisMultiResult ranges) {
+		for (int i=0; i<ranges.getCount(); i++) {
+			RedisMultiResult range=ranges.get(i).getAsMulti();
+			int start=range.get(0).getInteger();
+			int end=range.get(1).getInteger();
+			RedisMultiResult master=range.get(2).getAsMulti();
+			String host=master.get(0).getString();
+			if (host==null || host.length()==0) {
+				// The node answering may not know its own address
+				host=seed.substring(0, seed.lastIndexOf(':'));
+			}
+			Redis owner=getNode(host + ':' + master.get(1).getInteger());
+			for (int slot=start; slot<=end; slot++) {
+				slots.set(slot, owner);
+			}
+		}
+	}
+	
+	/**
+	 * @param command Upper-cased command
+	 * @param arguments
+	 * @return slot of the command's keys or -1 if it has none
+	 */
+	private static int slot(String command, Object[] arguments) {
+		if (arguments.length==0) return -1;
+		
+		if (RedisConstants.SCRIPT_COMMANDS.contains(command)) {
+			int keyCount=arguments.length>1 ? Integer.parseInt(String.valueOf(arguments[1])) : 0;
+			if (keyCount<=0 || arguments.length<2+keyCount) return -1;
+			int slot=RedisKeys.slot(arguments[2]);
+			for (int i=3; i<2+keyCount; i++) {
+				if (RedisKeys.slot(arguments[i])!=slot) {
+					throw new IllegalArgumentException("Keys of " + command + " span slots");
+				}
+			}
+			return slot;
+		}
+		
+		int slot=RedisKeys.slot(arguments[0]);
+		if (RedisKeys.isMultiKey(command)) {
+			for (int i=1; i<arguments.length; i++) {
+				if (RedisKeys.isKey(command, i, arguments.length) && RedisKeys.slot(arguments[i])!=slot) {
+					throw new IllegalArgumentException("Keys of " + command + " span slots");
+				}
+			}
+		}
+		return slot;
+	}
+	
+	private static int slot(RedisCommand command) {
+		if (RedisKeys.isMultiKey(command.command)) {
+			// Only the first argument is kept so the others cannot be checked
+			throw new IllegalArgumentException("Multi-key command " + command.command + " must be executed with its arguments");
+		}
+		Object key=command.getKey();
+		return key!=null ? RedisKeys.slot(key) : -1;
+	}
+	
+	/**
+	 * A command in flight, resent on each redirect
+	 */
+	private final class Request implements Promise.Callback<RedisResult> {
+		final Promise<RedisResult> result;
+		final String command;
+		final Object[] arguments;
+		final RedisCommand prepared;
+		int redirects;
+		
+		Request(Promise<RedisResult> result, String command, Object[] arguments, RedisCommand prepared) {
+			this.result=result;
+			this.command=command;
+			this.arguments=arguments;
+			this.prepared=prepared;
+		}
+		
+		void send(Redis node, boolean asking) {
+			final Promise<RedisResult> reply=new Promise<RedisResult>();
+			reply.force(this);
+			if (!asking) {
+				submit(node, reply);
+				return;
+			}
+			
+			node.execute(new RedisBatchSource() {
+				@Override
+				public void submitBatch(RedisExecutor executor) {
+					executor.executeAndForget("ASKING");
+					submit(executor, reply);
+				}
+			});
+		}
+		
+		private void submit(RedisExecutor node, Promise<RedisResult> reply) {
+			if (prepared!=null) node.execute(reply, prepared);
+			else node.execute(reply, command, arguments);
+		}
+		
+		@Override
+		public void complete(Promise<RedisResult> promise) {
+			if (promise.isError()) {
+				if (result!=null) result.resolveError(promise.getError());
+				return;
+			}
+			
+			RedisResult reply=promise.getResolution();
+			if (reply.getType()==RedisResult.TYPE_ERROR && redirects<MAX_REDIRECTS && redirect(reply.getString())) {
+				return;
+			}
+			if (result!=null) result.resolve(reply);
+		}
+		
+		/**
+		 * @param error "MOVED slot host:port" or "ASK slot host:port"
+		 * @return true if the command was resent
+		 */
+		private boolean redirect(String error) {
+			boolean moved=error.startsWith("MOVED ");
+			if (!moved && !error.startsWith("ASK ")) return false;
+			
+			int space=error.indexOf(' ', moved ? 6 : 4);
+			if (space<0) return false;
+			int slot;
+			try {
+				slot=Integer.parseInt(error.substring(moved ? 6 : 4, space));
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (slot<0 || slot>=RedisKeys.SLOT_COUNT) return false;
+			
+			Redis target=getNode(error.substring(space+1).trim());
+			redirects++;
+			if (moved) {
+				slots.set(slot, target);
+				refresh();
+			}
+			send(target, !moved);
+			return true;
+		}
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(RedisCommand command) {
+		Promise<RedisResult> result=new Promise<RedisResult>();
+		execute(result, command);
+		return result;
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, RedisCommand command) {
+		Redis node=getSlotOwner(slot(command));
+		command.retain();
+		new Request(result, command.command, null, command).send(node, false);
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(String command, Object... arguments) {
+		Promise<RedisResult> result=new Promise<RedisResult>();
+		execute(result, command, arguments);
+		return result;
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+		Redis node=getSlotOwner(slot(command.toUpperCase(), arguments));
+		new Request(result, command, arguments, null).send(node, false);
+	}
+	
+	@Override
+	public void executeAndForget(String command, Object... arguments) {
+		// Replies are still watched for redirects
+		execute((Promise<RedisResult>) null, command, arguments);
+	}
+	
+	public Flow.Initiator<RedisResult> executeStep(String command, Object... arguments) {
+		return RedisSteps.executeStep(this, command, arguments);
+	}
+	
+	/**
+	 * Quit every node connection
+	 * @return
+	 * @throws IOException
+	 */
+	public Promise<Boolean> quit() throws IOException {
+		Flow<Boolean> flow=new Flow<Boolean>();
+		for (Redis node: nodes.values()) {
+			flow.add(node.quit());
+		}
+		flow.finish(true);
+		return flow;
+	}
+}
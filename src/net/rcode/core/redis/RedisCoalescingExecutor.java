@@ -0,0 +1,302 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.rcode.core.async.Promise;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+/**
+ * Opt-in executor that merges independent single-key reads.  GET, HGET,
+ * SISMEMBER and friends are held for a short window (or until maxBatch are
+ * held) and then sent together: GETs as one MGET, HGETs of the same hash as
+ * one HMGET and the rest pipelined as they are.  Replies are fanned back out
+ * to the original promises.
+ * <p>
+ * Identical reads that are held or in flight at the same time share one
+ * request and one reply.  Any other command flushes the held reads first and
+ * stops later reads from sharing an earlier reply, so reads and writes issued
+ * through this executor are still applied in the order they were issued.
+ * <p>
+ * The window is measured on the given timer, so it is no finer than the
+ * timer's tick.  The delegate must address a single server (ie. a Redis or a
+ * RedisPool), since MGET keys are not split by shard.
+ * <p>
+ * MGET answers nil for a key that holds something other than a string, where
+ * GET would fail with WRONGTYPE.  A GET through this executor therefore cannot
+ * tell a missing key from one of the wrong type.
+ *
+ * @author stella
+ *
+ */
+public class RedisCoalescingExecutor implements RedisExecutor {
+	public static final int DEFAULT_MAX_BATCH=128;
+	
+	/**
+	 * Single key reads that only have to be deduplicated
+	 */
+	private static final Set<String> DEDUPLICATED_COMMANDS=RedisConstants.createSet(
+			"SISMEMBER", "HEXISTS", "EXISTS", "STRLEN", "HLEN", "SCARD", "LLEN", "ZSCORE", "ZCARD", "TTL"
+			);
+	
+	private final RedisExecutor delegate;
+	private final Timer timer;
+	private final long windowMillis;
+	private final int maxBatch;
+	
+	// - guarded by lock
+	private final Object lock=new Object();
+	private LinkedHashMap<String, Promise<RedisResult>> gets=new LinkedHashMap<String, Promise<RedisResult>>();
+	private LinkedHashMap<String, LinkedHashMap<String, Promise<RedisResult>>> hashGets=new LinkedHashMap<String, LinkedHashMap<String,Promise<RedisResult>>>();
+	private List<Object[]> others=new ArrayList<Object[]>();
+	private int held;
+	private Timeout flushTimeout;
+	
+	/**
+	 * Held while a taken batch is sent, so that a write cannot overtake reads
+	 * that another thread has taken but not yet sent
+	 */
+	private final Object sendLock=new Object();
+	
+	/**
+	 * Reads held or in flight by identity, for deduplication
+	 */
+	private final HashMap<String, Promise<RedisResult>> requests=new HashMap<String, Promise<RedisResult>>();
+	
+	private final TimerTask flushTask=new TimerTask() {
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			flush();
+		}
+	};
+	
+	/**
+	 * @param redis Connection whose manager's timer measures the window
+	 * @param windowMillis
+	 */
+	public RedisCoalescingExecutor(Redis redis, long windowMillis) {
+		this(redis, redis.manager.getTimer(), windowMillis, DEFAULT_MAX_BATCH);
+	}
+	
+	/**
+	 * @param delegate
+	 * @param timer
+	 * @param windowMillis How long the first held read waits for others
+	 * @param maxBatch Flush as soon as this many reads are held
+	 */
+	public RedisCoalescingExecutor(RedisExecutor delegate, Timer timer, long windowMillis, int maxBatch) {
+		this.delegate=delegate;
+		this.timer=timer;
+		this.windowMillis=windowMillis;
+		this.maxBatch=maxBatch;
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(String command, Object... arguments) {
+		String upperCommand=command.toUpperCase();
+		if (!isCoalesced(upperCommand, arguments)) {
+			flushForWrite();
+			return delegate.execute(command, arguments);
+		}
+		
+		boolean flushNow;
+		Promise<RedisResult> promise;
+		synchronized (lock) {
+			String identity=identity(upperCommand, arguments);
+			promise=requests.get(identity);
+			if (promise!=null) return promise;
+			
+			promise=new Promise<RedisResult>();
+			requests.put(identity, promise);
+			forget(identity, promise);
+			hold(upperCommand, arguments, promise);
+			
+			flushNow=++held>=maxBatch;
+			if (!flushNow && flushTimeout==null) {
+				flushTimeout=timer.newTimeout(flushTask, windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		if (flushNow) flush();
+		return promise;
+	}
+	
+	@Override
+	public void execute(final Promise<RedisResult> result, String command, Object... arguments) {
+		Promise<RedisResult> shared=execute(command, arguments);
+		if (result==null) return;
+		shared.force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				if (promise.isError()) result.resolveError(promise.getError());
+				else result.resolve(promise.getResolution());
+			}
+		});
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(RedisCommand command) {
+		flushForWrite();
+		return delegate.execute(command);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, RedisCommand command) {
+		flushForWrite();
+		delegate.execute(result, command);
+	}
+	
+	@Override
+	public void executeAndForget(String command, Object... arguments) {
+		flushForWrite();
+		delegate.executeAndForget(command, arguments);
+	}
+	
+	/**
+	 * Send all held reads now
+	 */
+	public void flush() {
+		synchronized (sendLock) {
+			sendHeld();
+		}
+	}
+	
+	private void sendHeld() {
+		LinkedHashMap<String, Promise<RedisResult>> localGets;
+		LinkedHashMap<String, LinkedHashMap<String, Promise<RedisResult>>> localHashGets;
+		List<Object[]> localOthers;
+		synchronized (lock) {
+			if (held==0) return;
+			localGets=gets;
+			localHashGets=hashGets;
+			localOthers=others;
+			gets=new LinkedHashMap<String, Promise<RedisResult>>();
+			hashGets=new LinkedHashMap<String, LinkedHashMap<String,Promise<RedisResult>>>();
+			others=new ArrayList<Object[]>();
+			held=0;
+			if (flushTimeout!=null) {
+				flushTimeout.cancel();
+				flushTimeout=null;
+			}
+		}
+		
+		if (localGets.size()==1) {
+			Map.Entry<String, Promise<RedisResult>> entry=localGets.entrySet().iterator().next();
+			delegate.execute(entry.getValue(), "GET", entry.getKey());
+		} else if (!localGets.isEmpty()) {
+			fanOut(delegate.execute("MGET", localGets.keySet().toArray()), localGets.values());
+		}
+		
+		for (Map.Entry<String, LinkedHashMap<String, Promise<RedisResult>>> hash: localHashGets.entrySet()) {
+			LinkedHashMap<String, Promise<RedisResult>> fields=hash.getValue();
+			if (fields.size()==1) {
+				Map.Entry<String, Promise<RedisResult>> entry=fields.entrySet().iterator().next();
+				delegate.execute(entry.getValue(), "HGET", hash.getKey(), entry.getKey());
+				continue;
+			}
+			
+			Object[] arguments=new Object[fields.size()+1];
+			arguments[0]=hash.getKey();
+			int i=1;
+			for (String field: fields.keySet()) {
+				arguments[i++]=field;
+			}
+			fanOut(delegate.execute("HMGET", arguments), fields.values());
+		}
+		
+		for (Object[] other: localOthers) {
+			@SuppressWarnings("unchecked")
+			Promise<RedisResult> promise=(Promise<RedisResult>) other[0];
+			delegate.execute(promise, (String) other[1], (Object[]) other[2]);
+		}
+	}
+	
+	private void flushForWrite() {
+		synchronized (sendLock) {
+			sendHeld();
+			synchronized (lock) {
+				// Reads after this point must see its effect
+				requests.clear();
+			}
+		}
+	}
+	
+	private static boolean isCoalesced(String command, Object[] arguments) {
+		for (Object argument: arguments) {
+			if (!(argument instanceof String)) return false;
+		}
+		if ("GET".equals(command)) return arguments.length==1;
+		if ("HGET".equals(command)) return arguments.length==2;
+		return DEDUPLICATED_COMMANDS.contains(command);
+	}
+	
+	private static String identity(String command, Object[] arguments) {
+		StringBuilder sb=new StringBuilder(command);
+		for (Object argument: arguments) {
+			sb.append('\0').append(argument);
+		}
+		return sb.toString();
+	}
+	
+	private void hold(String command, Object[] arguments, Promise<RedisResult> promise) {
+		if ("GET".equals(command)) {
+			gets.put((String) arguments[0], promise);
+		} else if ("HGET".equals(command)) {
+			LinkedHashMap<String, Promise<RedisResult>> fields=hashGets.get(arguments[0]);
+			if (fields==null) {
+				fields=new LinkedHashMap<String, Promise<RedisResult>>();
+				hashGets.put((String) arguments[0], fields);
+			}
+			fields.put((String) arguments[1], promise);
+		} else {
+			others.add(new Object[] { promise, command, arguments });
+		}
+	}
+	
+	/**
+	 * Stop sharing a request once its reply is in
+	 */
+	private void forget(final String identity, Promise<RedisResult> shared) {
+		shared.force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				synchronized (lock) {
+					if (requests.get(identity)==promise) requests.remove(identity);
+				}
+			}
+		});
+	}
+	
+	private static void fanOut(Promise<RedisResult> reply, final Iterable<Promise<RedisResult>> promises) {
+		reply.force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				if (promise.isError()) {
+					for (Promise<RedisResult> p: promises) p.resolveError(promise.getError());
+					return;
+				}
+				
+				RedisResult result=promise.getResolution();
+				if (result.getType()!=RedisResult.TYPE_MULTI) {
+					// Error reply
+					for (Promise<RedisResult> p: promises) p.resolve(result);
+					return;
+				}
+				
+				RedisMultiResult items=result.getAsMulti();
+				int i=0;
+				for (Promise<RedisResult> p: promises) {
+					p.resolve(items.get(i++));
+				}
+			}
+		});
+	}
+}
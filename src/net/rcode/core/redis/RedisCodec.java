@@ -0,0 +1,27 @@
+package net.rcode.core.redis;
+
+/**
+ * Converts values of a type to and from redis bulk values for RedisTypedMap
+ * and RedisTypedSet.  Encoding produces something RedisSerializer writes into
+ * the command buffer as is (byte[], ByteBuffer, an integral Number or a
+ * CharSequence) and decoding reads straight from the reply, so a value need
+ * never pass through an intermediate String.  See RedisCodecs for the
+ * standard ones.
+ * 
+ * @author stella
+ *
+ * @param <T>
+ */
+public interface RedisCodec<T> {
+	/**
+	 * @param value
+	 * @return byte[], ByteBuffer, Long, Integer or CharSequence
+	 */
+	public Object encode(T value);
+	
+	/**
+	 * @param result A non-null bulk reply
+	 * @return decoded value
+	 */
+	public T decode(RedisResult result);
+}
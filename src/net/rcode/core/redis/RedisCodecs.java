@@ -0,0 +1,78 @@
+package net.rcode.core.redis;
+
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Standard codecs
+ * 
+ * @author stella
+ *
+ */
+public class RedisCodecs {
+	/**
+	 * UTF-8 strings, as RedisAsyncMap and RedisAsyncSet store them
+	 */
+	public static final RedisCodec<String> STRING=new RedisCodec<String>() {
+		@Override
+		public Object encode(String value) {
+			return value;
+		}
+		
+		@Override
+		public String decode(RedisResult result) {
+			return result.getString();
+		}
+	};
+	
+	/**
+	 * Raw bytes.  Decoding copies the reply once into the array.
+	 */
+	public static final RedisCodec<byte[]> BYTES=new RedisCodec<byte[]>() {
+		@Override
+		public Object encode(byte[] value) {
+			return value;
+		}
+		
+		@Override
+		public byte[] decode(RedisResult result) {
+			ChannelBuffer buffer=result.getChannelBuffer();
+			byte[] bytes=new byte[buffer.readableBytes()];
+			buffer.getBytes(buffer.readerIndex(), bytes);
+			return bytes;
+		}
+	};
+	
+	/**
+	 * Raw bytes without a copy.  The decoded buffer may share the reply's memory
+	 * and should be treated as read only.
+	 */
+	public static final RedisCodec<ByteBuffer> BYTE_BUFFER=new RedisCodec<ByteBuffer>() {
+		@Override
+		public Object encode(ByteBuffer value) {
+			return value;
+		}
+		
+		@Override
+		public ByteBuffer decode(RedisResult result) {
+			return result.getBuffer();
+		}
+	};
+	
+	/**
+	 * Numbers stored as decimal text, so INCRBY and friends work on them.  They
+	 * are written and parsed as ASCII digits without a String.
+	 */
+	public static final RedisCodec<Long> LONG=new RedisCodec<Long>() {
+		@Override
+		public Object encode(Long value) {
+			return value;
+		}
+		
+		@Override
+		public Long decode(RedisResult result) {
+			return result.getLong();
+		}
+	};
+}
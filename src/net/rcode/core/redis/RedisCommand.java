@@ -3,14 +3,23 @@ package net.rcode.core.redis;
 import java.nio.ByteBuffer;
 import java.util.List;
 
+import net.rcode.core.io.BufferPool;
+
 /**
- * Encapsulates a redis command ready to be queued.  
+ * Encapsulates a redis command ready to be queued.  The serialized buffer is
+ * taken from the serializer's pool and given back with release() once it
+ * has been written.  A command is therefore consumed by executing it and should
+ * not be executed twice unless it has been retained.
+ * 
  * @author stella
  *
  */
 public class RedisCommand {
 	public String command;
 	private ByteBuffer buffer;
+	private BufferPool pool;
+	private boolean retained;
+	private Object key;
 	
 	/**
 	 * Create a new RedisCommand.  It is important to give ownership of the buffer
@@ -28,16 +37,30 @@ public class RedisCommand {
 	
 	private RedisCommand() { }
 	
-	public RedisCommand(String command, Object... arguments) {
+	public RedisCommand(RedisSerializer serializer, String command, Object... arguments) {
 		command=command.toUpperCase();
 		this.command=command;
-		this.buffer=RedisSerializer.INSTANCE.serialize(command, arguments);
+		this.buffer=serializer.serialize(command, arguments);
+		this.pool=serializer.getPool();
+		this.key=arguments.length>0 ? arguments[0] : null;
+	}
+	
+	public RedisCommand(String command, Object... arguments) {
+		this(RedisSerializer.INSTANCE, command, arguments);
 	}
 	
 	public RedisCommand(String command, List<?> arguments) {
 		this(command, arguments.toArray());
 	}
 	
+	/**
+	 * @return the first argument, which is the key for keyed commands, or null.
+	 * Used to route the command.
+	 */
+	public Object getKey() {
+		return key;
+	}
+	
 	/**
 	 * @return The upper-cased command
 	 */
@@ -52,6 +75,45 @@ public class RedisCommand {
 		return buffer.slice();
 	}
 	
+	/**
+	 * Keep the buffer of this command so that it can be written more than once
+	 * (ie. a command resent after a cluster redirect).  A retained
+	 * command is never released to the pool.
+	 */
+	public void retain() {
+		retained=true;
+	}
+	
+	/**
+	 * @return a retained copy of this command in a buffer of its own, outside of
+	 * any pool, that can be kept and written any number of times
+	 */
+	RedisCommand copy() {
+		ByteBuffer source=buffer.slice();
+		ByteBuffer copied=ByteBuffer.allocate(source.remaining());
+		copied.put(source);
+		copied.flip();
+		
+		RedisCommand ret=new RedisCommand();
+		ret.command=command;
+		ret.buffer=copied;
+		ret.key=key;
+		ret.retained=true;
+		return ret;
+	}
+	
+	/**
+	 * Give the buffer back to the pool.  Called by the connection when
+	 * the command has been written.  The command cannot be used after this unless it
+	 * has been retained.
+	 */
+	public void release() {
+		if (retained || pool==null || buffer==null) return;
+		ByteBuffer localBuffer=buffer;
+		buffer=null;
+		pool.release(localBuffer);
+	}
+	
 	@Override
 	public String toString() {
 		return command;
@@ -0,0 +1,298 @@
+package net.rcode.core.redis;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Wraps another codec and deflates encoded values of at least a threshold
+ * size.  Compressed values are framed with a small header so that they are
+ * recognized and inflated on decode.  Values that are below the threshold or
+ * that do not shrink are stored as the inner codec encoded them, so existing
+ * uncompressed data reads back unchanged and the codec can be turned on for
+ * a key that already holds values.
+ * <p>
+ * The header starts with the byte 0xff, which never occurs in UTF-8 text.  A
+ * binary value that happens to start like a header is stored with a header
+ * of its own so that it is not mistaken for a compressed one.
+ * <p>
+ * A Deflater and Inflater are kept per thread and per codec and reused, so
+ * codecs should be long lived (ie. constants).  Counters report how much was
+ * compressed, the overall ratio and the time spent.
+ *
+ * @author stella
+ *
+ * @param <T>
+ */
+public class RedisCompressionCodec<T> implements RedisCodec<T> {
+	public static final int DEFAULT_THRESHOLD=1024;
+	
+	private static final byte MAGIC0=(byte)0xff;
+	private static final byte MAGIC1='Z';
+	private static final byte METHOD_STORED=0;
+	private static final byte METHOD_DEFLATE=1;
+	
+	/**
+	 * Magic, method and, for deflate, the inflated length
+	 */
+	private static final int STORED_HEADER=3;
+	private static final int DEFLATE_HEADER=7;
+	
+	private final RedisCodec<T> inner;
+	private final int threshold;
+	private final int level;
+	
+	private final ThreadLocal<Deflater> deflaters=new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(level);
+		}
+	};
+	
+	private final ThreadLocal<Inflater> inflaters=new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	
+	/**
+	 * Per thread scratch space for deflate output
+	 */
+	private final ThreadLocal<byte[]> scratch=new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[DEFAULT_THRESHOLD*4];
+		}
+	};
+	
+	private final AtomicLong compressed=new AtomicLong();
+	private final AtomicLong uncompressedBytes=new AtomicLong();
+	private final AtomicLong compressedBytes=new AtomicLong();
+	private final AtomicLong compressNanos=new AtomicLong();
+	private final AtomicLong decompressed=new AtomicLong();
+	private final AtomicLong decompressNanos=new AtomicLong();
+	
+	/**
+	 * @param inner Codec producing the bytes to compress
+	 * @param threshold Smallest encoded size that is compressed
+	 * @param level Deflater level, ie. Deflater.BEST_SPEED
+	 */
+	public RedisCompressionCodec(RedisCodec<T> inner, int threshold, int level) {
+		this.inner=inner;
+		this.threshold=threshold;
+		this.level=level;
+	}
+	
+	public RedisCompressionCodec(RedisCodec<T> inner) {
+		this(inner, DEFAULT_THRESHOLD, Deflater.BEST_SPEED);
+	}
+	
+	@Override
+	public Object encode(T value) {
+		Object encoded=inner.encode(value);
+		
+		byte[] bytes;
+		int offset, length;
+		if (encoded instanceof byte[]) {
+			bytes=(byte[]) encoded;
+			offset=0;
+			length=bytes.length;
+		} else if (encoded instanceof ByteBuffer) {
+			ByteBuffer buffer=(ByteBuffer) encoded;
+			length=buffer.remaining();
+			if (buffer.hasArray()) {
+				bytes=buffer.array();
+				offset=buffer.arrayOffset()+buffer.position();
+			} else {
+				bytes=new byte[length];
+				offset=0;
+				buffer.duplicate().get(bytes);
+			}
+		} else if (encoded instanceof CharSequence) {
+			if (((CharSequence) encoded).length()*3<threshold) {
+				// Too short to reach the threshold even as UTF-8
+				return encoded;
+			}
+			bytes=utf8(encoded.toString());
+			offset=0;
+			length=bytes.length;
+		} else {
+			// Numbers are always short
+			return encoded;
+		}
+		
+		if (length>=threshold) {
+			byte[] deflated=deflate(bytes, offset, length);
+			if (deflated!=null) return deflated;
+		}
+		
+		if (length>=2 && bytes[offset]==MAGIC0 && bytes[offset+1]==MAGIC1) {
+			byte[] stored=new byte[STORED_HEADER+length];
+			stored[0]=MAGIC0;
+			stored[1]=MAGIC1;
+			stored[2]=METHOD_STORED;
+			System.arraycopy(bytes, offset, stored, STORED_HEADER, length);
+			return stored;
+		}
+		return encoded;
+	}
+	
+	/**
+	 * @return framed deflated value or null if it did not shrink
+	 */
+	private byte[] deflate(byte[] bytes, int offset, int length) {
+		long start=System.nanoTime();
+		Deflater deflater=deflaters.get();
+		byte[] out=scratch.get();
+		int count=0;
+		try {
+			deflater.setInput(bytes, offset, length);
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (count==out.length) {
+					if (count>=length) return null;
+					byte[] grown=new byte[out.length*2];
+					System.arraycopy(out, 0, grown, 0, count);
+					out=grown;
+					scratch.set(out);
+				}
+				count+=deflater.deflate(out, count, out.length-count);
+			}
+		} finally {
+			deflater.reset();
+			compressNanos.addAndGet(System.nanoTime()-start);
+		}
+		
+		if (DEFLATE_HEADER+count>=length) return null;
+		
+		byte[] framed=new byte[DEFLATE_HEADER+count];
+		framed[0]=MAGIC0;
+		framed[1]=MAGIC1;
+		framed[2]=METHOD_DEFLATE;
+		framed[3]=(byte)(length>>>24);
+		framed[4]=(byte)(length>>>16);
+		framed[5]=(byte)(length>>>8);
+		framed[6]=(byte)length;
+		System.arraycopy(out, 0, framed, DEFLATE_HEADER, count);
+		
+		compressed.incrementAndGet();
+		uncompressedBytes.addAndGet(length);
+		compressedBytes.addAndGet(framed.length);
+		return framed;
+	}
+	
+	@Override
+	public T decode(RedisResult result) {
+		ChannelBuffer buffer=result.getChannelBuffer();
+		int index=buffer.readerIndex();
+		int length=buffer.readableBytes();
+		if (length<STORED_HEADER || buffer.getByte(index)!=MAGIC0 || buffer.getByte(index+1)!=MAGIC1) {
+			return inner.decode(result);
+		}
+		
+		byte method=buffer.getByte(index+2);
+		if (method==METHOD_STORED) {
+			return inner.decode(new RedisPrimitiveResult(RedisResult.TYPE_BULK, buffer.slice(index+STORED_HEADER, length-STORED_HEADER)));
+		}
+		if (method!=METHOD_DEFLATE || length<DEFLATE_HEADER) {
+			throw new IllegalStateException("Unknown compressed value format");
+		}
+		
+		int inflatedLength=buffer.getInt(index+3);
+		if (inflatedLength<0) throw new IllegalStateException("Corrupt compressed value");
+		byte[] input;
+		int inputOffset;
+		if (buffer.hasArray()) {
+			input=buffer.array();
+			inputOffset=buffer.arrayOffset()+index+DEFLATE_HEADER;
+		} else {
+			input=new byte[length-DEFLATE_HEADER];
+			inputOffset=0;
+			buffer.getBytes(index+DEFLATE_HEADER, input);
+		}
+		
+		long start=System.nanoTime();
+		Inflater inflater=inflaters.get();
+		byte[] inflated=new byte[inflatedLength];
+		try {
+			inflater.setInput(input, inputOffset, length-DEFLATE_HEADER);
+			int count=0;
+			while (count<inflatedLength && !inflater.finished()) {
+				int n=inflater.inflate(inflated, count, inflatedLength-count);
+				if (n==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				count+=n;
+			}
+			if (count!=inflatedLength) throw new IllegalStateException("Truncated compressed value");
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupt compressed value", e);
+		} finally {
+			inflater.reset();
+			decompressNanos.addAndGet(System.nanoTime()-start);
+		}
+		
+		decompressed.incrementAndGet();
+		return inner.decode(new RedisPrimitiveResult(RedisResult.TYPE_BULK, ByteBuffer.wrap(inflated)));
+	}
+	
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * @return number of values stored compressed
+	 */
+	public long getCompressedCount() {
+		return compressed.get();
+	}
+	
+	/**
+	 * @return bytes of the compressed values before compression
+	 */
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+	
+	/**
+	 * @return bytes of the compressed values as stored, including headers
+	 */
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+	
+	/**
+	 * @return stored size over original size of the compressed values, or 1
+	 * if nothing has been compressed
+	 */
+	public double getCompressionRatio() {
+		long before=uncompressedBytes.get();
+		return before==0 ? 1.0 : (double) compressedBytes.get() / before;
+	}
+	
+	/**
+	 * @return nanoseconds spent deflating, including attempts that did not shrink
+	 */
+	public long getCompressNanos() {
+		return compressNanos.get();
+	}
+	
+	public long getDecompressedCount() {
+		return decompressed.get();
+	}
+	
+	/**
+	 * @return nanoseconds spent inflating
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.get();
+	}
+}
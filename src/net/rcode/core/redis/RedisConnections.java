@@ -9,12 +9,19 @@ package net.rcode.core.redis;
  * connection in each mode should suffice and this class manages the
  * shared connection.  It also has a method for obtaining new connections.
  * <p>
+ * Where one connection is not enough throughput, getPool() provides a
+ * shared pool of streaming connections that routes each command to the
+ * least busy one.  getReplicaRouter() sends reads to the replicas given
+ * with setReplicas().
+ * <p>
  * TODO: If the connections quit, bad things happen.
  * 
  * @author stella
  *
  */
 public class RedisConnections {
+	public static final int DEFAULT_POOL_SIZE=4;
+	
 	private RedisManager manager;
 	private String host;
 	private int port;
@@ -22,6 +29,10 @@ public class RedisConnections {
 	// - Cached connections
 	private Redis streamingConnection;
 	private Redis subscribedConnection;
+	private RedisPool pool;
+	private int poolSize=DEFAULT_POOL_SIZE;
+	private String[] replicas=new String[0];
+	private RedisReplicaRouter replicaRouter;
 	
 	public RedisConnections(RedisManager manager, String host, int port) {
 		this.manager=manager;
@@ -47,6 +58,52 @@ public class RedisConnections {
 		}
 		return streamingConnection;
 	}
+	
+	/**
+	 * Set the number of connections in the shared pool.  Only has an effect
+	 * before the pool is first used.
+	 * @param poolSize
+	 */
+	public synchronized void setPoolSize(int poolSize) {
+		this.poolSize=poolSize;
+	}
+	
+	public synchronized RedisPool getPool() {
+		if (pool==null) {
+			pool=new RedisPool(manager, host, port, poolSize);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Set the replicas that getReplicaRouter() reads from.  Only has an effect
+	 * before the router is first used.
+	 * @param hostPorts "host:port" of each replica
+	 */
+	public synchronized void setReplicas(String... hostPorts) {
+		this.replicas=hostPorts.clone();
+	}
+	
+	/**
+	 * @return shared executor that sends reads to the replicas and everything
+	 * else to this server
+	 */
+	public synchronized RedisReplicaRouter getReplicaRouter() {
+		if (replicaRouter==null) {
+			Redis[] connections=new Redis[replicas.length];
+			for (int i=0; i<replicas.length; i++) {
+				int colon=replicas[i].lastIndexOf(':');
+				if (colon<0) {
+					connections[i]=manager.connect(replicas[i], RedisManager.DEFAULT_PORT);
+				} else {
+					connections[i]=manager.connect(replicas[i].substring(0, colon), Integer.parseInt(replicas[i].substring(colon+1)));
+				}
+			}
+			replicaRouter=new RedisReplicaRouter(manager.connect(host, port), connections);
+		}
+		return replicaRouter;
+	}
+	
 	public synchronized Redis getSubscribedConnection() {
 		if (subscribedConnection==null) {
 			subscribedConnection=manager.connect(host,port);
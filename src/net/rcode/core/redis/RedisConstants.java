@@ -21,6 +21,68 @@ public class RedisConstants {
 			"SELECT"
 			);
 	
+	/**
+	 * Frequently issued commands.  The serializer keeps pre-encoded headers for these.
+	 */
+	public static final Set<String> COMMON_COMMANDS=createSet(
+			"DEL", "EXISTS", "EXPIRE", "TTL",
+			"GET", "SET", "SETEX", "MGET", "MSET", "INCR", "INCRBY", "DECR", "DECRBY",
+			"HGET", "HSET", "HMGET", "HMSET", "HGETALL", "HDEL", "HEXISTS", "HINCRBY", "HLEN",
+			"SADD", "SREM", "SISMEMBER", "SMEMBERS", "SCARD",
+			"LPUSH", "RPUSH", "LPOP", "RPOP", "RPOPLPUSH", "LREM", "LRANGE", "LLEN",
+			"ZADD", "ZREM", "ZSCORE", "ZRANGE", "ZRANGEBYSCORE",
+			"PUBLISH", "PING", "MULTI", "EXEC"
+			);
+	
+	/**
+	 * Commands that only read data and so may be answered by a replica
+	 */
+	public static final Set<String> READ_COMMANDS=createSet(
+			"EXISTS", "TTL", "PTTL", "TYPE", "KEYS", "SCAN", "RANDOMKEY", "DBSIZE",
+			"GET", "MGET", "STRLEN", "GETRANGE", "GETBIT", "BITCOUNT",
+			"HGET", "HMGET", "HGETALL", "HKEYS", "HVALS", "HLEN", "HEXISTS", "HSCAN",
+			"SMEMBERS", "SISMEMBER", "SCARD", "SRANDMEMBER", "SUNION", "SINTER", "SDIFF", "SSCAN",
+			"LRANGE", "LLEN", "LINDEX",
+			"ZRANGE", "ZREVRANGE", "ZRANGEBYSCORE", "ZREVRANGEBYSCORE", "ZSCORE", "ZCARD",
+			"ZCOUNT", "ZRANK", "ZREVRANK", "ZSCAN"
+			);
+	
+	/**
+	 * Commands whose arguments are all keys
+	 */
+	public static final Set<String> ALL_KEY_COMMANDS=createSet(
+			"DEL", "EXISTS", "MGET", "WATCH",
+			"SUNION", "SINTER", "SDIFF", "SUNIONSTORE", "SINTERSTORE", "SDIFFSTORE"
+			);
+	
+	/**
+	 * Commands whose first two arguments are keys
+	 */
+	public static final Set<String> TWO_KEY_COMMANDS=createSet(
+			"RENAME", "RENAMENX", "RPOPLPUSH", "BRPOPLPUSH", "SMOVE"
+			);
+	
+	/**
+	 * Commands whose arguments alternate key and value
+	 */
+	public static final Set<String> KEY_VALUE_COMMANDS=createSet(
+			"MSET", "MSETNX"
+			);
+	
+	/**
+	 * Commands whose arguments are all keys except for a trailing timeout
+	 */
+	public static final Set<String> BLOCKING_KEY_COMMANDS=createSet(
+			"BLPOP", "BRPOP"
+			);
+	
+	/**
+	 * Commands taking a script, a key count and then that many keys
+	 */
+	public static final Set<String> SCRIPT_COMMANDS=createSet(
+			"EVAL", "EVALSHA"
+			);
+	
 	public static final Set<String> SUBSCRIBE_COMMANDS=createSet(
 			"PSUBSCRIBE",
 			"PUNSUBSCRIBE",
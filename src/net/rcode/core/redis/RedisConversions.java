@@ -17,7 +17,7 @@ public class RedisConversions {
 		@Override
 		public Boolean chain(RedisResult result) throws Throwable {
 			result.ifError();
-			return result.getInteger()!=0;
+			return result.getLong()!=0;
 		}
 	};
 	
@@ -47,6 +47,17 @@ public class RedisConversions {
 		}
 	};
 	
+	/**
+	 * Convert an integer (or numeric bulk) result to a Long
+	 */
+	public static final Promise.Chain<RedisResult, Long> INTEGER_RESULT_TO_LONG=new Promise.Chain<RedisResult,Long>() {
+		@Override
+		public Long chain(RedisResult input) throws Throwable {
+			input.ifError();
+			return input.getLong();
+		}
+	};
+	
 	/**
 	 * Just does error checking on the result and evaluates to void
 	 */
@@ -83,4 +94,27 @@ public class RedisConversions {
 		}
 	};
 	
+	/**
+	 * Convert an interleaved Multi Bulk reply to a map of strings, decoding the
+	 * values with the given codec
+	 * @param valueCodec
+	 * @return conversion
+	 */
+	public static Promise.Chain<RedisResult,Map<String,String>> interleavedMultiBulkToMap(final RedisCodec<String> valueCodec) {
+		if (valueCodec==RedisCodecs.STRING) return INTERLEAVED_MULTIBULK_TO_MAP;
+		return new Promise.Chain<RedisResult, Map<String,String>>() {
+			@Override
+			public Map<String, String> chain(RedisResult input) throws Throwable {
+				input.ifError();
+				RedisMultiResult mb=input.getAsMulti();
+				HashMap<String,String> ret=new HashMap<String, String>(mb.getCount()*2);
+				for (int i=0; i<mb.getCount(); i+=2) {
+					RedisResult value=mb.get(i+1);
+					ret.put(mb.get(i).getString(), value.isNull() ? null : valueCodec.decode(value));
+				}
+				return ret;
+			}
+		};
+	}
+	
 }
@@ -0,0 +1,175 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * Walks a keyspace, hash, set or sorted set with the SCAN family of commands.
+ * Each call to next() fetches one page of about COUNT elements, so memory stays
+ * bounded by the page size and redis never has to build one huge reply.  The
+ * next page is only requested when the consumer asks for it:
+ * <pre>
+ * RedisCursor&lt;Map&lt;String,String&gt;&gt; cursor=map.scan(500);
+ * cursor.next().force(...);   // and again from the callback until null
+ * </pre>
+ * As with SCAN itself, elements may be returned more than once and elements
+ * added or removed during the walk may or may not be seen.
+ *
+ * @author stella
+ *
+ * @param <T> decoded page
+ */
+public class RedisCursor<T> {
+	public static final int DEFAULT_COUNT=100;
+	
+	private final RedisExecutor executor;
+	private final String command;
+	private final String key;
+	private final String match;
+	private final int count;
+	private final Promise.Chain<RedisResult, T> decoder;
+	
+	// - guarded by this
+	private String cursor="0";
+	private boolean done;
+	private boolean fetching;
+	
+	/**
+	 * @param executor
+	 * @param command SCAN, HSCAN, SSCAN or ZSCAN
+	 * @param key Key to walk or null for SCAN
+	 * @param match Glob pattern or null
+	 * @param count COUNT hint per page
+	 * @param decoder Decodes the elements of each page
+	 */
+	public RedisCursor(RedisExecutor executor, String command, String key, String match, int count,
+			Promise.Chain<RedisResult, T> decoder) {
+		this.executor=executor;
+		this.command=command;
+		this.key=key;
+		this.match=match;
+		this.count=count;
+		this.decoder=decoder;
+	}
+	
+	/**
+	 * Keys of the selected database
+	 */
+	public static RedisCursor<Collection<String>> scan(RedisExecutor executor, String match, int count) {
+		return new RedisCursor<Collection<String>>(executor, "SCAN", null, match, count, RedisConversions.MULTI_BULK_RESULT_TO_STRINGS);
+	}
+	
+	/**
+	 * Fields and values of a hash
+	 */
+	public static RedisCursor<Map<String,String>> hscan(RedisExecutor executor, String key, String match, int count) {
+		return new RedisCursor<Map<String,String>>(executor, "HSCAN", key, match, count, RedisConversions.INTERLEAVED_MULTIBULK_TO_MAP);
+	}
+	
+	/**
+	 * Members of a set
+	 */
+	public static RedisCursor<Collection<String>> sscan(RedisExecutor executor, String key, String match, int count) {
+		return new RedisCursor<Collection<String>>(executor, "SSCAN", key, match, count, RedisConversions.MULTI_BULK_RESULT_TO_STRINGS);
+	}
+	
+	/**
+	 * Members of a sorted set mapped to their scores
+	 */
+	public static RedisCursor<Map<String,String>> zscan(RedisExecutor executor, String key, String match, int count) {
+		return new RedisCursor<Map<String,String>>(executor, "ZSCAN", key, match, count, RedisConversions.INTERLEAVED_MULTIBULK_TO_MAP);
+	}
+	
+	/**
+	 * @return true once the last page has been returned
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Fetch the next page.  Empty pages are skipped.  Only one page may be
+	 * fetched at a time.
+	 * @return next page or null at the end
+	 */
+	public Promise<T> next() {
+		synchronized (this) {
+			if (fetching) throw new IllegalStateException("A page is already being fetched");
+			if (done) return Promise.fixed(null);
+			fetching=true;
+		}
+		
+		Promise<T> ret=new Promise<T>();
+		fetch(ret);
+		return ret;
+	}
+	
+	private void fetch(final Promise<T> ret) {
+		List<Object> arguments=new ArrayList<Object>(6);
+		if (key!=null) arguments.add(key);
+		synchronized (this) {
+			arguments.add(cursor);
+		}
+		if (match!=null) {
+			arguments.add("MATCH");
+			arguments.add(match);
+		}
+		arguments.add("COUNT");
+		arguments.add(count);
+		
+		executor.execute(command, arguments.toArray()).force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				RedisResult items;
+				boolean last;
+				try {
+					if (promise.isError()) throw promise.getError();
+					RedisResult reply=promise.getResolution();
+					reply.ifError();
+					
+					RedisMultiResult multi=reply.getAsMulti();
+					String nextCursor=multi.get(0).getString();
+					items=multi.get(1);
+					last="0".equals(nextCursor);
+					synchronized (RedisCursor.this) {
+						cursor=nextCursor;
+						done=last;
+					}
+				} catch (Throwable t) {
+					finish();
+					ret.resolveError(t);
+					return;
+				}
+				
+				if (items.getAsMulti().getCount()==0) {
+					if (!last) {
+						fetch(ret);
+						return;
+					}
+					finish();
+					ret.resolve(null);
+					return;
+				}
+				
+				T page;
+				try {
+					page=decoder.chain(items);
+				} catch (Throwable t) {
+					finish();
+					ret.resolveError(t);
+					return;
+				}
+				finish();
+				ret.resolve(page);
+			}
+		});
+	}
+	
+	private synchronized void finish() {
+		fetching=false;
+	}
+}
@@ -1,19 +1,26 @@
 package net.rcode.core.redis;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
 
 public class RedisIntegerResult extends RedisResult {
-	private int value;
+	private long value;
 	
-	public RedisIntegerResult(int value) {
+	public RedisIntegerResult(long value) {
 		this.value=value;
 	}
 	
 	@Override
 	public ByteBuffer getBuffer() {
-		String svalue=String.valueOf(value);
-		return Charset.forName("US-ASCII").encode(svalue);
+		return getChannelBuffer().toByteBuffer();
+	}
+	
+	@Override
+	public ChannelBuffer getChannelBuffer() {
+		return ChannelBuffers.copiedBuffer(String.valueOf(value), CharsetUtil.US_ASCII);
 	}
 
 	@Override
@@ -22,7 +29,7 @@ public class RedisIntegerResult extends RedisResult {
 	}
 
 	@Override
-	public int getInteger() {
+	public long getLong() {
 		return value;
 	}
 	
@@ -0,0 +1,207 @@
+package net.rcode.core.redis;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Key handling shared by the executors that route commands by key.
+ * <p>
+ * A key containing a hash tag, ie. a non-empty run of characters between the
+ * first '{' and the next '}', is hashed on the tag alone so that related keys
+ * such as "{user1000}.following" and "{user1000}.followers" always land
+ * together.  Keys are hashed on their UTF-8 encoding, the same bytes the
+ * serializer sends, so a String and its byte[] form hash alike.
+ * 
+ * @author stella
+ *
+ */
+public final class RedisKeys {
+	private static final int FNV_OFFSET=0x811c9dc5;
+	private static final int FNV_PRIME=0x01000193;
+	
+	/**
+	 * Number of Redis Cluster hash slots
+	 */
+	public static final int SLOT_COUNT=16384;
+	
+	/**
+	 * CRC16-CCITT (XMODEM) lookup table, as used by Redis Cluster
+	 */
+	private static final int[] CRC16_TABLE=new int[256];
+	static {
+		for (int i=0; i<256; i++) {
+			int crc=i<<8;
+			for (int bit=0; bit<8; bit++) {
+				crc=(crc & 0x8000)!=0 ? (crc<<1) ^ 0x1021 : crc<<1;
+			}
+			CRC16_TABLE[i]=crc & 0xffff;
+		}
+	}
+	
+	private RedisKeys() { }
+	
+	/**
+	 * @param command Upper case command name
+	 * @param index Argument index
+	 * @param argumentCount Total arguments
+	 * @return true if the argument at index is a key
+	 */
+	public static boolean isKey(String command, int index, int argumentCount) {
+		if (RedisConstants.ALL_KEY_COMMANDS.contains(command)) return true;
+		if (RedisConstants.TWO_KEY_COMMANDS.contains(command)) return index<2;
+		if (RedisConstants.KEY_VALUE_COMMANDS.contains(command)) return (index & 1)==0;
+		if (RedisConstants.BLOCKING_KEY_COMMANDS.contains(command)) return index<argumentCount-1;
+		return index==0;
+	}
+	
+	/**
+	 * @param command Upper case command name
+	 * @return true if the command can take more than one key
+	 */
+	public static boolean isMultiKey(String command) {
+		return RedisConstants.ALL_KEY_COMMANDS.contains(command) ||
+			RedisConstants.TWO_KEY_COMMANDS.contains(command) ||
+			RedisConstants.KEY_VALUE_COMMANDS.contains(command) ||
+			RedisConstants.BLOCKING_KEY_COMMANDS.contains(command) ||
+			RedisConstants.SCRIPT_COMMANDS.contains(command);
+	}
+	
+	/**
+	 * Hash a key for placement on a consistent hash ring.  This is FNV-1a over
+	 * the UTF-8 bytes of the key (or its hash tag) followed by a final avalanche
+	 * step so that the high bits are as well mixed as the low.
+	 * @param key String, byte[], ByteBuffer or anything with a toString()
+	 * @return hash
+	 */
+	public static int hash(Object key) {
+		if (key instanceof byte[]) {
+			byte[] bytes=(byte[]) key;
+			return hashBytes(bytes, 0, bytes.length);
+		} else if (key instanceof ByteBuffer) {
+			ByteBuffer buffer=((ByteBuffer) key).duplicate();
+			byte[] bytes=new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return hashBytes(bytes, 0, bytes.length);
+		} else {
+			return hashString(String.valueOf(key));
+		}
+	}
+	
+	/**
+	 * Redis Cluster hash slot of a key.  This is the CRC16 of the key (or its
+	 * hash tag, by the same rule as hash()) modulo SLOT_COUNT.
+	 * @param key String, byte[], ByteBuffer or anything with a toString()
+	 * @return slot
+	 */
+	public static int slot(Object key) {
+		byte[] bytes;
+		if (key instanceof byte[]) {
+			bytes=(byte[]) key;
+		} else if (key instanceof ByteBuffer) {
+			ByteBuffer buffer=((ByteBuffer) key).duplicate();
+			bytes=new byte[buffer.remaining()];
+			buffer.get(bytes);
+		} else {
+			try {
+				bytes=String.valueOf(key).getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		int start=0, end=bytes.length;
+		for (int open=0; open<bytes.length; open++) {
+			if (bytes[open]=='{') {
+				for (int close=open+1; close<bytes.length; close++) {
+					if (bytes[close]=='}') {
+						if (close>open+1) {
+							start=open+1;
+							end=close;
+						}
+						break;
+					}
+				}
+				break;
+			}
+		}
+		
+		int crc=0;
+		for (int i=start; i<end; i++) {
+			crc=((crc<<8) ^ CRC16_TABLE[((crc>>>8) ^ bytes[i]) & 0xff]) & 0xffff;
+		}
+		return crc & (SLOT_COUNT-1);
+	}
+	
+	private static int hashBytes(byte[] bytes, int start, int end) {
+		// Hash tag
+		for (int open=start; open<end; open++) {
+			if (bytes[open]=='{') {
+				for (int close=open+1; close<end; close++) {
+					if (bytes[close]=='}') {
+						if (close>open+1) {
+							start=open+1;
+							end=close;
+						}
+						break;
+					}
+				}
+				break;
+			}
+		}
+		
+		int h=FNV_OFFSET;
+		for (int i=start; i<end; i++) {
+			h=(h ^ (bytes[i] & 0xff)) * FNV_PRIME;
+		}
+		return mix(h);
+	}
+	
+	private static int hashString(String key) {
+		int start=0, end=key.length();
+		int open=key.indexOf('{');
+		if (open>=0) {
+			int close=key.indexOf('}', open+1);
+			if (close>open+1) {
+				start=open+1;
+				end=close;
+			}
+		}
+		
+		// Feed the UTF-8 encoding without materializing it
+		int h=FNV_OFFSET;
+		for (int i=start; i<end; i++) {
+			char c=key.charAt(i);
+			if (c<0x80) {
+				h=(h ^ c) * FNV_PRIME;
+			} else if (c<0x800) {
+				h=(h ^ (0xc0 | (c>>6))) * FNV_PRIME;
+				h=(h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+			} else if (c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE) {
+				if (Character.isHighSurrogate(c) && i+1<end && Character.isLowSurrogate(key.charAt(i+1))) {
+					int cp=Character.toCodePoint(c, key.charAt(++i));
+					h=(h ^ (0xf0 | (cp>>18))) * FNV_PRIME;
+					h=(h ^ (0x80 | ((cp>>12) & 0x3f))) * FNV_PRIME;
+					h=(h ^ (0x80 | ((cp>>6) & 0x3f))) * FNV_PRIME;
+					h=(h ^ (0x80 | (cp & 0x3f))) * FNV_PRIME;
+				} else {
+					// Serialized as '?'
+					h=(h ^ '?') * FNV_PRIME;
+				}
+			} else {
+				h=(h ^ (0xe0 | (c>>12))) * FNV_PRIME;
+				h=(h ^ (0x80 | ((c>>6) & 0x3f))) * FNV_PRIME;
+				h=(h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+			}
+		}
+		return mix(h);
+	}
+	
+	private static int mix(int h) {
+		h^=h>>>16;
+		h*=0x85ebca6b;
+		h^=h>>>13;
+		h*=0xc2b2ae35;
+		h^=h>>>16;
+		return h;
+	}
+}
@@ -1,11 +1,17 @@
 package net.rcode.core.redis;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import net.rcode.core.async.Promise;
 import net.rcode.core.io.DnsResolver;
@@ -26,6 +32,8 @@ import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.WriteCompletionEvent;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,6 +52,13 @@ public class RedisManager {
 	ClientBootstrap bootstrap;
 	static final ChannelLocal<Redis> REDIS_INSTANCE_ATTR=new ChannelLocal<Redis>();
 	private int database;
+	private RedisSerializer serializer=RedisSerializer.INSTANCE;
+	private Timer timer;
+	private Executor deadlineExecutor;
+	private ExecutorService defaultDeadlineExecutor;
+	private volatile int largeBulkThreshold=RedisParser.DEFAULT_LARGE_BULK_THRESHOLD;
+	private volatile long spillThreshold=Long.MAX_VALUE;
+	private volatile File spillDirectory;
 	
 	public RedisManager(ChannelFactory channelFactory, Map<String, Object> options) {
 		bootstrap=new ClientBootstrap(channelFactory);
@@ -63,6 +78,111 @@ public class RedisManager {
 		this.database = database;
 	}
 	
+	public RedisSerializer getSerializer() {
+		return serializer;
+	}
+	
+	/**
+	 * Set the serializer used by new connections.  Use this to serialize
+	 * commands into a pool of direct buffers.
+	 * @param serializer
+	 */
+	public void setSerializer(RedisSerializer serializer) {
+		this.serializer = serializer;
+	}
+	
+	/**
+	 * Set the size from which bulk replies spanning packets are received into
+	 * blocks instead of one growing buffer.  Applies to new connections.
+	 * @param largeBulkThreshold bytes
+	 */
+	public void setLargeBulkThreshold(int largeBulkThreshold) {
+		this.largeBulkThreshold=largeBulkThreshold;
+	}
+	
+	/**
+	 * Set the size from which bulk replies are received into a memory-mapped
+	 * temporary file.  Applies to new connections.
+	 * @param spillThreshold bytes or Long.MAX_VALUE to never spill
+	 * @param spillDirectory directory for the files or null for the default
+	 */
+	public void setSpillThreshold(long spillThreshold, File spillDirectory) {
+		this.spillThreshold=spillThreshold;
+		this.spillDirectory=spillDirectory;
+	}
+	
+	/**
+	 * @param events
+	 * @return parser configured with the bulk thresholds of this manager
+	 */
+	RedisParser createParser(RedisParser.Events events) {
+		RedisParser parser=new RedisParser(events);
+		parser.setLargeBulkThreshold(largeBulkThreshold);
+		parser.setSpillThreshold(spillThreshold, spillDirectory);
+		return parser;
+	}
+	
+	/**
+	 * @return timer shared by the connections of this manager for reconnects
+	 * and other delayed work.  Created on first use with a daemon thread.
+	 */
+	public synchronized Timer getTimer() {
+		if (timer==null) {
+			timer=new HashedWheelTimer(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread=new Thread(r, "RedisManager timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, 10, TimeUnit.MILLISECONDS);
+		}
+		return timer;
+	}
+	
+	public synchronized void setTimer(Timer timer) {
+		this.timer = timer;
+	}
+	
+	/**
+	 * @return executor that fails commands whose deadline expired.  Keeps their
+	 * callbacks off the timer thread.  Created on first use with daemon threads.
+	 */
+	public synchronized Executor getDeadlineExecutor() {
+		if (deadlineExecutor==null) {
+			defaultDeadlineExecutor=Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread=new Thread(r, "RedisManager deadlines");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			deadlineExecutor=defaultDeadlineExecutor;
+		}
+		return deadlineExecutor;
+	}
+	
+	public synchronized void setDeadlineExecutor(Executor deadlineExecutor) {
+		this.deadlineExecutor = deadlineExecutor;
+	}
+	
+	/**
+	 * Stop the timer and the default deadline executor.  Call once the
+	 * connections of this manager have been quit.
+	 */
+	public synchronized void close() {
+		if (timer!=null) {
+			timer.stop();
+			timer=null;
+		}
+		if (defaultDeadlineExecutor!=null) {
+			defaultDeadlineExecutor.shutdown();
+			if (deadlineExecutor==defaultDeadlineExecutor) deadlineExecutor=null;
+			defaultDeadlineExecutor=null;
+		}
+	}
+	
 	/**
 	 * Initiate a new connection to Redis.  The returned redis instance will connect
 	 * in the background
@@ -73,7 +193,8 @@ public class RedisManager {
 	 */
 	public Redis connect(SocketAddress address) throws IOException {
 		Redis redis=new Redis(this, database);
-		connectAndBind(address, redis);
+		redis.address=address;
+		open(redis);
 		return redis;
 	}
 	
@@ -84,24 +205,36 @@ public class RedisManager {
 	 * @return redis
 	 */
 	public Redis connect(String host, final int port) {
-		final Redis redis=new Redis(this, database);
-		DnsResolver.DEFAULT.lookup(host).force(new Promise.Callback<InetAddress>() {
+		Redis redis=new Redis(this, database);
+		redis.host=host;
+		redis.port=port;
+		open(redis);
+		return redis;
+	}
+	
+	/**
+	 * Start a connection attempt for the instance.  Host names are resolved on
+	 * each attempt.  Failures are reported to the instance, which schedules
+	 * the next attempt.
+	 * @param redis
+	 */
+	void open(final Redis redis) {
+		if (redis.address!=null) {
+			connectAndBind(redis.address, redis);
+			return;
+		}
+		
+		DnsResolver.DEFAULT.lookup(redis.host).force(new Promise.Callback<InetAddress>() {
 			@Override
 			public void complete(Promise<InetAddress> promise) {
 				if (promise.isError()) {
-					logger.error("Error resolving hostname for redis connection (OOPS - not implemented yet)", promise.getError());
+					redis.connectFailed(promise.getError());
 					return;
 				}
 				
-				SocketAddress address=new InetSocketAddress(promise.getResolution(), port);
-				try {
-					connectAndBind(address, redis);
-				} catch (IOException e) {
-					logger.error("Error initiating connection to redis (OOPS - not implemented yet)", e);
-				}
+				connectAndBind(new InetSocketAddress(promise.getResolution(), redis.port), redis);
 			}
 		});
-		return redis;
 	}
 	
 	/**
@@ -116,9 +249,8 @@ public class RedisManager {
 	 * Initiates a new connection and binds it to the redis instance
 	 * @param address
 	 * @param redis
-	 * @throws IOException 
 	 */
-	void connectAndBind(final SocketAddress address, final Redis redis) throws IOException {
+	void connectAndBind(final SocketAddress address, final Redis redis) {
 		if (logger.isDebugEnabled()) logger.debug("Starting connection to " + address);
 		ChannelFuture future=bootstrap.connect(address);
 		future.addListener(new ChannelFutureListener() {
@@ -131,16 +263,15 @@ public class RedisManager {
 					REDIS_INSTANCE_ATTR.set(channel, redis);
 					redis.bind(address, channel);
 				} else if (future.isCancelled()) {
-					logger.error("Cancelled connecting to redis (OOPS - not implemented yet)");
-					return;
+					redis.connectFailed(new IOException("Cancelled connecting to redis"));
 				} else {
-					logger.error("Error connecting to redis (OOPS - not implemented yet)", future.getCause());
+					redis.connectFailed(future.getCause());
 				}
 			}
 		});
 		
 	}
-
+	
 	class InputChannelHandler extends SimpleChannelUpstreamHandler {
 		@Override
 		public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
@@ -149,26 +280,27 @@ public class RedisManager {
 			
 			Redis instance=REDIS_INSTANCE_ATTR.get(ctx.getChannel());
 			logger.info("RedisManager.InputChannelHandler: channelClosed");
-			instance.connectionClosed();
+			// Only bound on a successful connect.  A failed one is reported by connectFailed.
+			if (instance!=null) instance.connectionClosed(ctx.getChannel());
 		}
 		
 		@Override
 		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
 				throws Exception {
 			super.messageReceived(ctx, e);
-			logger.info("RedisManager.InputChannelHandler: messageReceived");
+			if (logger.isDebugEnabled()) logger.debug("RedisManager.InputChannelHandler: messageReceived");
 			
 			Redis instance=REDIS_INSTANCE_ATTR.get(ctx.getChannel());
 			
 			ChannelBuffer content=(ChannelBuffer) e.getMessage();
-			instance.parser.write(content.toByteBuffer());	// TODO: Convert internals to native ChannelBuffer
+			instance.parser.write(content);
 		}
 		
 		@Override
 		public void writeComplete(ChannelHandlerContext ctx,
 				WriteCompletionEvent e) throws Exception {
 			super.writeComplete(ctx, e);
-			logger.info("RedisManager.InputChannelHandler: writeComplete");
+			if (logger.isDebugEnabled()) logger.debug("RedisManager.InputChannelHandler: writeComplete");
 			
 			Redis instance=REDIS_INSTANCE_ATTR.get(ctx.getChannel());
 			instance.writeComplete(e.getWrittenAmount());
@@ -179,13 +311,16 @@ public class RedisManager {
 		@Override
 		public void writeRequested(ChannelHandlerContext ctx, MessageEvent e)
 				throws Exception {
-			// TODO: Operate natively on ChannelBuffer
-			ByteBuffer bb=(ByteBuffer) e.getMessage();
-			ChannelBuffer cb=ChannelBuffers.wrappedBuffer(bb);
-			e=new DownstreamMessageEvent(e.getChannel(), e.getFuture(), cb, e.getRemoteAddress());
+			// Redis writes ChannelBuffers natively.  Wrap anything else.
+			if (e.getMessage() instanceof ByteBuffer) {
+				ChannelBuffer cb=ChannelBuffers.wrappedBuffer((ByteBuffer) e.getMessage());
+				e=new DownstreamMessageEvent(e.getChannel(), e.getFuture(), cb, e.getRemoteAddress());
+			}
+			
+			if (logger.isDebugEnabled()) {
+				logger.debug("RedisManager.OutputChannelHandler: writeRequested(" + ((ChannelBuffer)e.getMessage()).readableBytes() + ")");
+			}
 			
-			logger.info("RedisManager.OutputChannelHandler: writeRequested(" + cb.readableBytes() + ")");
-
 			ctx.sendDownstream(e);
 		}
 	}
@@ -7,11 +7,37 @@ import net.rcode.core.async.Promise;
 import net.rcode.core.util.Pair;
 
 /**
- * A Multi command.
+ * A Multi command.  Commands executed against the multi are queued between
+ * MULTI and EXEC and sent as one batch, which goes out in a single write.  When
+ * the EXEC reply arrives it is split back out: the promise of each command is
+ * resolved with its own reply before the promise returned by submit() is
+ * resolved with the whole EXEC reply.  If the transaction did not run (EXEC
+ * returned nil because a watched key changed, or an error), each command's
+ * promise is resolved with that EXEC reply instead.
+ * <p>
+ * For optimistic transactions use watch(), which retries the transaction
+ * while EXEC keeps coming back nil.
+ *
  * @author stella
  *
  */
 public class RedisMulti implements RedisExecutor {
+	public static final int DEFAULT_MAX_ATTEMPTS=5;
+	
+	/**
+	 * Body of an optimistic transaction, run once per attempt after the keys
+	 * are watched.  Read what is needed from the connection and queue the
+	 * writes on the multi.
+	 */
+	public static interface Transaction {
+		/**
+		 * @param connection Connection the keys are watched on
+		 * @param multi Fresh multi for this attempt
+		 * @return promise resolved once the multi has been filled in
+		 */
+		public Promise<?> prepare(Redis connection, RedisMulti multi) throws Throwable;
+	}
+	
 	protected List<Pair<RedisCommand, Promise<RedisResult>>> commands=new ArrayList<Pair<RedisCommand,Promise<RedisResult>>>();
 	protected Promise<RedisResult> result;
 	protected RedisBatchSource source=new RedisBatchSource() {
@@ -22,7 +48,12 @@ public class RedisMulti implements RedisExecutor {
 				Pair<RedisCommand,Promise<RedisResult>> item=commands.get(i);
 				executor.execute(null, item.first);
 			}
-			executor.execute(result, "EXEC");
+			executor.execute("EXEC").force(new Promise.Callback<RedisResult>() {
+				@Override
+				public void complete(Promise<RedisResult> promise) {
+					demultiplex(promise);
+				}
+			});
 		}
 	};
 	
@@ -35,13 +66,136 @@ public class RedisMulti implements RedisExecutor {
 		return result;
 	}
 	
+	/**
+	 * Hand each command its reply out of the EXEC reply
+	 * @param exec
+	 */
+	protected void demultiplex(Promise<RedisResult> exec) {
+		if (exec.isError()) {
+			Throwable error=exec.getError();
+			for (Pair<RedisCommand,Promise<RedisResult>> item: commands) {
+				if (item.second!=null) item.second.resolveError(error);
+			}
+			result.resolveError(error);
+			return;
+		}
+		
+		RedisResult reply=exec.getResolution();
+		if (reply.getType()==RedisResult.TYPE_MULTI && !reply.isNull()) {
+			RedisMultiResult replies=(RedisMultiResult) reply;
+			for (int i=0; i<commands.size(); i++) {
+				Promise<RedisResult> promise=commands.get(i).second;
+				if (promise!=null) promise.resolve(i<replies.getCount() ? replies.get(i) : reply);
+			}
+		} else {
+			// Aborted or refused.  None of the commands ran.
+			for (Pair<RedisCommand,Promise<RedisResult>> item: commands) {
+				if (item.second!=null) item.second.resolve(reply);
+			}
+		}
+		result.resolve(reply);
+	}
+	
+	/**
+	 * Run an optimistic transaction with up to DEFAULT_MAX_ATTEMPTS attempts
+	 * @see #watch(Redis, int, Transaction, Object...)
+	 */
+	public static Promise<RedisResult> watch(Redis connection, Transaction transaction, Object... keys) {
+		return watch(connection, DEFAULT_MAX_ATTEMPTS, transaction, keys);
+	}
+	
+	/**
+	 * Run an optimistic transaction.  Each attempt WATCHes the keys, lets the
+	 * transaction read and fill in a fresh multi and submits it.  If a watched
+	 * key changed in between, EXEC returns nil and the transaction is attempted
+	 * again, up to maxAttempts times.
+	 * <p>
+	 * A watch is cleared by any EXEC, DISCARD or UNWATCH on the same connection,
+	 * so use a connection that nothing else runs transactions on.
+	 *
+	 * @param connection
+	 * @param maxAttempts
+	 * @param transaction
+	 * @param keys Keys to watch
+	 * @return the EXEC reply of the attempt that ran, or nil if all were aborted
+	 */
+	public static Promise<RedisResult> watch(Redis connection, int maxAttempts, Transaction transaction, Object... keys) {
+		WatchedTransaction watched=new WatchedTransaction(connection, maxAttempts, transaction, keys);
+		watched.attempt();
+		return watched.result;
+	}
+	
+	/**
+	 * Attempt loop of watch()
+	 */
+	private static final class WatchedTransaction {
+		final Redis connection;
+		final int maxAttempts;
+		final Transaction transaction;
+		final Object[] keys;
+		final Promise<RedisResult> result=new Promise<RedisResult>();
+		int attempts;
+		
+		WatchedTransaction(Redis connection, int maxAttempts, Transaction transaction, Object[] keys) {
+			this.connection=connection;
+			this.maxAttempts=maxAttempts;
+			this.transaction=transaction;
+			this.keys=keys;
+		}
+		
+		void attempt() {
+			attempts++;
+			connection.executeAndForget("WATCH", keys);
+			
+			final RedisMulti multi=new RedisMulti();
+			Promise<?> prepared;
+			try {
+				prepared=transaction.prepare(connection, multi);
+			} catch (Throwable t) {
+				abandon(t);
+				return;
+			}
+			
+			prepared.force(new Promise.Callback<Object>() {
+				@Override
+				public void complete(Promise<Object> promise) {
+					if (promise.isError()) {
+						abandon(promise.getError());
+					} else {
+						submit(multi);
+					}
+				}
+			});
+		}
+		
+		void submit(RedisMulti multi) {
+			multi.submit(connection).force(new Promise.Callback<RedisResult>() {
+				@Override
+				public void complete(Promise<RedisResult> promise) {
+					if (promise.isError()) {
+						result.resolveError(promise.getError());
+					} else if (promise.getResolution().isNull() && attempts<maxAttempts) {
+						attempt();
+					} else {
+						result.resolve(promise.getResolution());
+					}
+				}
+			});
+		}
+		
+		void abandon(Throwable error) {
+			connection.executeAndForget("UNWATCH");
+			result.resolveError(error);
+		}
+	}
+	
 	@Override
 	public Promise<RedisResult> execute(RedisCommand cmd) {
 		Promise<RedisResult> result=new Promise<RedisResult>();
 		commands.add(new Pair<RedisCommand,Promise<RedisResult>>(cmd, result));
 		return result;
 	}
-
+	
 	@Override
 	public void execute(Promise<RedisResult> result, RedisCommand cmd) {
 		commands.add(new Pair<RedisCommand,Promise<RedisResult>>(cmd, result));
@@ -2,6 +2,15 @@ package net.rcode.core.redis;
 
 import java.nio.ByteBuffer;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A multi-bulk reply.  Items may themselves be RedisMultiResult instances for
+ * nested replies (ie. EXEC, SCAN, SLOWLOG).
+ * 
+ * @author stella
+ *
+ */
 public class RedisMultiResult extends RedisResult {
 	private RedisResult[] items;
 	
@@ -26,11 +35,24 @@ public class RedisMultiResult extends RedisResult {
 		return items[index];
 	}
 	
+	/**
+	 * @param index
+	 * @return the item at index as a multi result
+	 */
+	public RedisMultiResult getMulti(int index) {
+		return items[index].getAsMulti();
+	}
+	
 	@Override
 	public ByteBuffer getBuffer() {
 		throw new IllegalStateException("Not a primitive type");
 	}
 
+	@Override
+	public ChannelBuffer getChannelBuffer() {
+		throw new IllegalStateException("Not a primitive type");
+	}
+
 	@Override
 	public String getString() {
 		throw new IllegalStateException("Not a primitive type");
@@ -60,6 +82,7 @@ public class RedisMultiResult extends RedisResult {
 		} else {
 			sb.append("[");
 			for (int i=0; i<items.length; i++) {
+				if (i>0) sb.append(", ");
 				sb.append(items[i].toString());
 			}
 			sb.append("]");
@@ -0,0 +1,244 @@
+package net.rcode.core.redis;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rcode.core.redis.Redis.SubscriptionHandler;
+
+/**
+ * In-process cache of whole redis hashes for RedisCachedAsyncMap.  Hashes that
+ * are read far more often than they change (sessions, configuration) are
+ * served from memory until they are invalidated.
+ * <p>
+ * The cache is bounded by entry count and by an estimate of the bytes held,
+ * evicting the least recently used hash first.  Entries are invalidated by
+ * writes through a RedisCachedAsyncMap and by messages on a subscription
+ * connection, either redis keyspace notifications (listenKeyspace) or an
+ * explicit channel carrying key names (listenChannel).  Notifications can be
+ * missed, ie. while the subscription connection is down, so every entry also
+ * expires after a ttl.
+ *
+ * @author stella
+ *
+ */
+public class RedisNearCache {
+	public static final int DEFAULT_MAX_ENTRIES=10000;
+	public static final long DEFAULT_MAX_BYTES=16*1024*1024;
+	public static final long DEFAULT_TTL=60000;
+	
+	/**
+	 * Rough per entry and per field overhead used in the byte estimate
+	 */
+	private static final int ENTRY_OVERHEAD=96;
+	private static final int FIELD_OVERHEAD=64;
+	
+	/**
+	 * Token shared by the loads of a key that are in flight.  Invalidating the
+	 * key drops it, so those loads do not populate the cache.
+	 */
+	public static final class Load {
+		Load() {
+		}
+	}
+	
+	private static final class Entry {
+		final Map<String,String> values;
+		final long bytes;
+		final long expires;
+		
+		Entry(Map<String,String> values, long bytes, long expires) {
+			this.values=values;
+			this.bytes=bytes;
+			this.expires=expires;
+		}
+	}
+	
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttl;
+	
+	// - guarded by this
+	private final LinkedHashMap<String, Entry> entries=new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long bytes;
+	private final HashMap<String, Load> loading=new HashMap<String, Load>();
+	
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong invalidations=new AtomicLong();
+	private final AtomicLong evictions=new AtomicLong();
+	
+	private final SubscriptionHandler keyspaceHandler=new SubscriptionHandler() {
+		@Override
+		public void handleMessage(String channel, RedisResult message) {
+			// __keyspace@<db>__:<key>
+			int index=channel.indexOf("__:");
+			if (index>=0) invalidate(channel.substring(index+3));
+		}
+	};
+	
+	private final SubscriptionHandler channelHandler=new SubscriptionHandler() {
+		@Override
+		public void handleMessage(String channel, RedisResult message) {
+			invalidate(message.getString());
+		}
+	};
+	
+	public RedisNearCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL);
+	}
+	
+	/**
+	 * @param maxEntries
+	 * @param maxBytes Estimated bytes
+	 * @param ttl Milliseconds an entry is served for at most
+	 */
+	public RedisNearCache(int maxEntries, long maxBytes, long ttl) {
+		this.maxEntries=maxEntries;
+		this.maxBytes=maxBytes;
+		this.ttl=ttl;
+	}
+	
+	/**
+	 * Invalidate on redis keyspace notifications.  The server must have them
+	 * enabled for hashes and generic commands, ie. notify-keyspace-events "Khg".
+	 * @param subscriber Subscription connection
+	 * @param database Database the cached keys live in
+	 */
+	public void listenKeyspace(Redis subscriber, int database) {
+		subscriber.psubscribe(keyspaceHandler, "__keyspace@" + database + "__:*");
+	}
+	
+	/**
+	 * Invalidate on messages published to a channel.  Each message is the name of
+	 * a key that changed.  RedisCachedAsyncMap publishes these for its own writes
+	 * when it is given the channel.
+	 * @param subscriber Subscription connection
+	 * @param channel
+	 */
+	public void listenChannel(Redis subscriber, String channel) {
+		subscriber.subscribe(channelHandler, channel);
+	}
+	
+	/**
+	 * @param key
+	 * @return read-only fields of the cached hash or null
+	 */
+	public Map<String,String> get(String key) {
+		synchronized (this) {
+			Entry entry=entries.get(key);
+			if (entry!=null) {
+				if (entry.expires>System.currentTimeMillis()) {
+					hits.incrementAndGet();
+					return entry.values;
+				}
+				remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Start a load of a key after a miss
+	 * @param key
+	 * @return token to pass to put()
+	 */
+	public synchronized Load beginLoad(String key) {
+		Load load=loading.get(key);
+		if (load==null) {
+			// Loads that fail never come back to put() to drop their token.
+			// Clearing them all only stops the loads in flight from caching.
+			if (loading.size()>=maxEntries) loading.clear();
+			load=new Load();
+			loading.put(key, load);
+		}
+		return load;
+	}
+	
+	/**
+	 * Cache a loaded hash unless the key was invalidated while loading
+	 * @param key
+	 * @param values
+	 * @param load From beginLoad()
+	 */
+	public void put(String key, Map<String,String> values, Load load) {
+		long size=ENTRY_OVERHEAD + key.length()*2;
+		for (Map.Entry<String,String> field: values.entrySet()) {
+			size+=FIELD_OVERHEAD + field.getKey().length()*2 + field.getValue().length()*2;
+		}
+		if (size>maxBytes) return;
+		
+		Entry entry=new Entry(Collections.unmodifiableMap(new HashMap<String,String>(values)),
+				size, System.currentTimeMillis()+ttl);
+		synchronized (this) {
+			if (loading.get(key)!=load) return;
+			loading.remove(key);
+			
+			remove(key);
+			entries.put(key, entry);
+			bytes+=size;
+			
+			// Evict least recently used
+			Iterator<Entry> i=entries.values().iterator();
+			while ((entries.size()>maxEntries || bytes>maxBytes) && i.hasNext()) {
+				Entry eldest=i.next();
+				i.remove();
+				bytes-=eldest.bytes;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+	
+	public void invalidate(String key) {
+		synchronized (this) {
+			loading.remove(key);
+			remove(key);
+		}
+		invalidations.incrementAndGet();
+	}
+	
+	public void invalidateAll() {
+		synchronized (this) {
+			loading.clear();
+			entries.clear();
+			bytes=0;
+		}
+		invalidations.incrementAndGet();
+	}
+	
+	private void remove(String key) {
+		Entry entry=entries.remove(key);
+		if (entry!=null) bytes-=entry.bytes;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return estimated bytes held
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
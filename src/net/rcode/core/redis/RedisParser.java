@@ -1,13 +1,38 @@
 package net.rcode.core.redis;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+import net.rcode.core.io.BlockOutputStream;
+import net.rcode.core.io.BufferPool;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Put buffers in on one end, get high level redis response events
  * on the other.
+ * <p>
+ * The parser works natively on ChannelBuffers.  When fed with ChannelBuffers
+ * via {@link #write(ChannelBuffer)}, any reply that is entirely contained in
+ * the packet is handed to the Events as a slice of the packet and no copy
+ * is made.  Only replies that span packets are accumulated.
+ * <p>
+ * A bulk reply of at least the large bulk threshold that spans packets is
+ * not accumulated in one growing buffer.  It is copied once, chunk by chunk,
+ * into fixed size blocks and handed on as a composite view of those blocks.
+ * Above the spill threshold it goes to a temporary file instead, which is
+ * memory-mapped once complete so the value does not occupy the heap at all.
+ * <p>
+ * The accumulation buffer is only held while part of a reply is being
+ * accumulated.  It is taken from a pool of power of two size classes shared
+ * by all parsers, doubled as needed and given back as soon as the element is
+ * complete, so one large reply does not pin memory to the connection.
  * 
  * @author stella
  *
@@ -15,19 +40,34 @@ import org.slf4j.LoggerFactory;
 public class RedisParser {
 	protected static final Logger logger=LoggerFactory.getLogger(RedisParser.class);
 	
+	/**
+	 * Receiver of parse events.  Content buffers passed to the events are
+	 * owned by the receiver and may be retained.  Their readable bytes are
+	 * the contents without the type prefix or trailing CRLF.
+	 */
 	public static interface Events {
-		public void handleStatus(ByteBuffer contents);
-		public void handleError(ByteBuffer contents);
-		public void handleInteger(int value);
-		public void handleBulk(ByteBuffer contents);
+		public void handleStatus(ChannelBuffer contents);
+		public void handleError(ChannelBuffer contents);
+		public void handleInteger(long value);
+		public void handleBulk(ChannelBuffer contents);
 		
 		// Multi-block
 		public void handleStartMultiBulk(int count);
 		public void handleEndMultiBulk();
 	}
 	
+	public static final int DEFAULT_LARGE_BULK_THRESHOLD=256*1024;
+	
 	private static final int DEFAULT_ACCUM_SIZE=4096;
 	
+	/**
+	 * Accumulation buffers up to 1MB are pooled.  Larger ones are rare given the
+	 * large bulk threshold and are left to the garbage collector.
+	 */
+	private static final BufferPool ACCUM_POOL=new BufferPool(false, DEFAULT_ACCUM_SIZE, 1024*1024, 8);
+	private static final int LARGE_BULK_BLOCK_SIZE=65536;
+	private static final int DEFAULT_MULTI_DEPTH=4;
+	
 	private static final int
 		/**
 		 * We are waiting to get a complete "control" line.  This will be a full line
@@ -37,121 +77,377 @@ public class RedisParser {
 		STATE_CONTROL=0,
 		/**
 		 * Accumulating a block of blockSize.  This may be a standalone block or
-		 * a block within a multi-block depending on the value of multiBlockCount.
+		 * a block within a multi-block depending on the value of multiBulkDepth.
 		 */
 		STATE_BULK=1;
 		
 		
 	protected int state;
 	protected int expectedBulkSize;
-	protected int expectedMultiBulkRemaining;
+	/**
+	 * Stack of the number of elements remaining in each open multi-bulk.  Multi-bulks
+	 * nest arbitrarily deep.
+	 */
+	protected int[] multiBulkRemaining;
+	protected int multiBulkDepth;
 	protected ByteBuffer accumBuffer;
 	protected Events events;
 	
+	private int largeBulkThreshold=DEFAULT_LARGE_BULK_THRESHOLD;
+	private long spillThreshold=Long.MAX_VALUE;
+	private File spillDirectory;
+	
+	/**
+	 * Destination of the large bulk being received, or null
+	 */
+	private LargeBulk largeBulk;
+	
+	/**
+	 * Bytes of the large bulk (including its CRLF) consumed so far
+	 */
+	private int largeBulkReceived;
+	
 	public RedisParser(Events events) {
 		this.events=events;
 		
 		this.state=STATE_CONTROL;
 		this.expectedBulkSize=0;
-		this.expectedMultiBulkRemaining=0;
+		this.multiBulkRemaining=new int[DEFAULT_MULTI_DEPTH];
+		this.multiBulkDepth=0;
 		this.accumBuffer=null;
 	}
 	
 	/**
-	 * Round size up to the next highest KB boundary.  This could still be inefficient for large 
-	 * allocations, but redis isn't really optimized for those anyway.  Should probably be doing
-	 * some kind of power of 2 expansion.
-	 * @param requestedSize
-	 * @return rounded size
+	 * Bulk replies at least this big that span packets are received into
+	 * blocks rather than the accumulation buffer
+	 * @param threshold bytes
+	 */
+	public void setLargeBulkThreshold(int threshold) {
+		this.largeBulkThreshold=threshold;
+	}
+	
+	/**
+	 * Large bulk replies at least this big are received into a temporary file
+	 * and memory-mapped
+	 * @param threshold bytes or Long.MAX_VALUE to never spill
+	 * @param directory Where to create the files or null for the default
+	 * temporary directory
+	 */
+	public void setSpillThreshold(long threshold, File directory) {
+		this.spillThreshold=threshold;
+		this.spillDirectory=directory;
+	}
+	
+	/**
+	 * Drop any partially received large bulk.  Called when the parser is
+	 * abandoned mid-stream.
+	 */
+	public void discard() {
+		releaseAccumBuffer();
+		if (largeBulk!=null) {
+			largeBulk.discard();
+			largeBulk=null;
+		}
+	}
+	
+	/**
+	 * @return pool shared by all parsers for accumulation buffers
 	 */
-	private int roundSize(int requestedSize) {
-		requestedSize|=0x3ff;
-		return requestedSize+1;
+	public static BufferPool getAccumulationPool() {
+		return ACCUM_POOL;
 	}
 	
 	/**
-	 * Make sure that accumBuffer can accomodate at least neededRemaining more bytes
+	 * @return capacity of the accumulation buffer currently held
+	 */
+	public int getHeldBytes() {
+		ByteBuffer localBuffer=accumBuffer;
+		return localBuffer!=null ? localBuffer.capacity() : 0;
+	}
+	
+	/**
+	 * Make sure that accumBuffer can accomodate at least neededRemaining more bytes.
+	 * The pool rounds up to a power of two so repeated growth doubles.
 	 * @param neededRemaining
 	 */
 	protected final void ensureAccumBuffer(int neededRemaining) {
 		if (accumBuffer==null) {
-			accumBuffer=ByteBuffer.allocate(Math.max(neededRemaining, DEFAULT_ACCUM_SIZE));
+			accumBuffer=ACCUM_POOL.acquire(neededRemaining);
 			return;
 		}
 		
-		int sizeDelta=neededRemaining - accumBuffer.remaining();
-		if (sizeDelta>0) {
-			// Resize
-			int newSize=roundSize(accumBuffer.capacity() + sizeDelta);
+		if (neededRemaining>accumBuffer.remaining()) {
+			ByteBuffer newBuffer=ACCUM_POOL.acquire(accumBuffer.position() + neededRemaining);
 			if (logger.isDebugEnabled()) {
-				logger.debug("Resize accumBuffer to " + newSize);
+				logger.debug("Resize accumBuffer to " + newBuffer.capacity());
 			}
-			ByteBuffer newBuffer=ByteBuffer.allocate(newSize);
 			accumBuffer.flip();
 			newBuffer.put(accumBuffer);
+			ACCUM_POOL.release(accumBuffer);
 			accumBuffer=newBuffer;
 		}
 	}
 	
+	/**
+	 * Give the accumulation buffer back once nothing in it is referenced
+	 */
+	private void releaseAccumBuffer() {
+		if (accumBuffer!=null) {
+			ACCUM_POOL.release(accumBuffer);
+			accumBuffer=null;
+		}
+	}
+	
+	/**
+	 * @return true if part of a reply is being held in the accumulation buffer
+	 */
+	private boolean isAccumulating() {
+		return accumBuffer!=null && accumBuffer.position()>0;
+	}
+	
+	/**
+	 * Transfer up to count bytes from the packet to the accumBuffer
+	 */
+	private void accumulate(ChannelBuffer packet, int count) {
+		ensureAccumBuffer(count);
+		int origLimit=accumBuffer.limit();
+		accumBuffer.limit(accumBuffer.position()+count);
+		packet.readBytes(accumBuffer);
+		accumBuffer.limit(origLimit);
+	}
+	
+	/**
+	 * Parse a packet that the caller may reuse after this call returns.  All
+	 * contents passed to the Events are copied.  The packet is fully consumed.
+	 * @param packet
+	 */
 	public void write(ByteBuffer packet) {
-		while (packet.hasRemaining()) {
+		write(ChannelBuffers.wrappedBuffer(packet), false);
+		packet.position(packet.limit());
+	}
+	
+	/**
+	 * Parse a packet that will not be modified after this call.  Replies fully
+	 * contained in the packet are passed to the Events as slices which hold
+	 * a reference to the packet.  The packet is fully consumed.
+	 * @param packet
+	 */
+	public void write(ChannelBuffer packet) {
+		write(packet, true);
+	}
+	
+	private void write(ChannelBuffer packet, boolean retainable) {
+		while (packet.readable()) {
 			if (state==STATE_BULK) {
-				writePacketBlock(packet);
+				writePacketBlock(packet, retainable);
 			} else if (state==STATE_CONTROL) {
-				writePacketControl(packet);
+				writePacketControl(packet, retainable);
 			} else {
 				throw new IllegalStateException();
 			}
 		}
 	}
-
-	private void writePacketBlock(ByteBuffer packet) {
-		int r=Math.min(packet.remaining(), expectedBulkSize-accumBuffer.position());
-		ensureAccumBuffer(r);
+	
+	private void writePacketBlock(ChannelBuffer packet, boolean retainable) {
+		if (largeBulk!=null) {
+			writeLargeBulk(packet);
+			return;
+		}
 		
-		// Write up to r bytes from packet
-		int origLimit=packet.limit();
-		packet.limit(packet.position()+r);
-		accumBuffer.put(packet);
-		packet.limit(origLimit);
+		if (!isAccumulating() && packet.readableBytes()>=expectedBulkSize) {
+			// The whole block (and its CRLF) is in this packet.  Slice it out.
+			ChannelBuffer contents=packet.slice(packet.readerIndex(), expectedBulkSize-2);
+			packet.skipBytes(expectedBulkSize);
+			completeBulk(retainable ? contents : ChannelBuffers.copiedBuffer(contents));
+			return;
+		}
+		
+		if (!isAccumulating() && expectedBulkSize-2>=largeBulkThreshold) {
+			largeBulk=openLargeBulk(expectedBulkSize-2);
+			largeBulkReceived=0;
+			writeLargeBulk(packet);
+			return;
+		}
+		
+		// The block spans packets.  Write up to the end of the block to the accumBuffer.
+		int accumulated=accumBuffer==null ? 0 : accumBuffer.position();
+		int r=Math.min(packet.readableBytes(), expectedBulkSize-accumulated);
+		accumulate(packet, r);
 		
 		// Did we get the whole block?
 		if (accumBuffer.position()==expectedBulkSize) {
-			// Yes we did.  Get out of this state.
-			// Handle specially if we are part of a multi-block
+			// Yes we did.
 			accumBuffer.flip();
 			
 			// The expected size contains the CRLF which we don't pass through
 			accumBuffer.limit(accumBuffer.limit()-2);
-			
-			events.handleBulk(accumBuffer);
-			if (expectedMultiBulkRemaining>0 && --expectedMultiBulkRemaining == 0) {
-				// Last one
-				events.handleEndMultiBulk();
+			ChannelBuffer contents=ChannelBuffers.copiedBuffer(accumBuffer);
+			releaseAccumBuffer();
+			completeBulk(contents);
+		}
+	}
+	
+	/**
+	 * Transfer the packet's part of a large bulk to its destination
+	 */
+	private void writeLargeBulk(ChannelBuffer packet) {
+		int contentSize=expectedBulkSize-2;
+		int r=Math.min(packet.readableBytes(), expectedBulkSize-largeBulkReceived);
+		int content=Math.max(0, Math.min(r, contentSize-largeBulkReceived));
+		if (content>0) {
+			try {
+				largeBulk.write(packet, content);
+			} catch (IOException e) {
+				discard();
+				throw new IllegalStateException("Error receiving large bulk", e);
 			}
-			
-			// Reset and get out of this state
-			state=STATE_CONTROL;
-			accumBuffer.clear();
+		}
+		
+		// Whatever is left of r is the CRLF
+		packet.skipBytes(r-content);
+		largeBulkReceived+=r;
+		
+		if (largeBulkReceived==expectedBulkSize) {
+			ChannelBuffer contents;
+			try {
+				contents=largeBulk.finish();
+			} catch (IOException e) {
+				discard();
+				throw new IllegalStateException("Error receiving large bulk", e);
+			}
+			largeBulk=null;
+			completeBulk(contents);
 		}
 	}
-
-	private void writePacketControl(ByteBuffer packet) {
-		// Scan for an end of packet marker (LF) and transfer that much
-		int packetLimit=packet.limit();
-		int controlLimit;
-		for (controlLimit=packet.position(); controlLimit<packetLimit; controlLimit++) {
-			if (packet.get(controlLimit)==0x0a) {
-				controlLimit+=1;
-				break;
+	
+	private LargeBulk openLargeBulk(int size) {
+		if (size>=spillThreshold) {
+			try {
+				return new SpilledBulk(spillDirectory, size);
+			} catch (IOException e) {
+				logger.warn("Cannot create spill file, receiving bulk into memory: " + e);
+			}
+		}
+		return new BlockBulk();
+	}
+	
+	/**
+	 * Where a large bulk is received
+	 */
+	private static abstract class LargeBulk {
+		/**
+		 * Consume count bytes from the packet
+		 */
+		abstract void write(ChannelBuffer packet, int count) throws IOException;
+		
+		/**
+		 * @return view of the received contents
+		 */
+		abstract ChannelBuffer finish() throws IOException;
+		
+		abstract void discard();
+	}
+	
+	private static final class BlockBulk extends LargeBulk {
+		final BlockOutputStream out=new BlockOutputStream(LARGE_BULK_BLOCK_SIZE);
+		
+		@Override
+		void write(ChannelBuffer packet, int count) throws IOException {
+			packet.readBytes(out, count);
+		}
+		
+		@Override
+		ChannelBuffer finish() {
+			return ChannelBuffers.wrappedBuffer(out.toByteBuffers());
+		}
+		
+		@Override
+		void discard() {
+		}
+	}
+	
+	private static final class SpilledBulk extends LargeBulk {
+		final File file;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		final int size;
+		
+		SpilledBulk(File directory, int size) throws IOException {
+			this.file=File.createTempFile("redis-bulk", ".tmp", directory);
+			this.raf=new RandomAccessFile(file, "rw");
+			this.channel=raf.getChannel();
+			this.size=size;
+		}
+		
+		@Override
+		void write(ChannelBuffer packet, int count) throws IOException {
+			while (count>0) {
+				count-=packet.readBytes(channel, count);
 			}
 		}
 		
-		// Transfer the bytes
-		packet.limit(controlLimit);
-		ensureAccumBuffer(packet.remaining());
-		accumBuffer.put(packet);
-		packet.limit(packetLimit);
+		@Override
+		ChannelBuffer finish() throws IOException {
+			try {
+				return ChannelBuffers.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			} finally {
+				discard();
+			}
+		}
+		
+		@Override
+		void discard() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Nothing more to do
+			}
+			// A mapping outlives its file where the platform allows deleting it
+			if (!file.delete()) file.deleteOnExit();
+		}
+	}
+	
+	private void completeBulk(ChannelBuffer contents) {
+		// Get out of this state
+		state=STATE_CONTROL;
+		events.handleBulk(contents);
+		completeElement();
+	}
+	
+	/**
+	 * Account for a complete element.  If it was the last of its multi-bulk, end
+	 * the multi-bulk, which in turn completes an element of its parent.
+	 */
+	private void completeElement() {
+		while (multiBulkDepth>0 && --multiBulkRemaining[multiBulkDepth-1] == 0) {
+			multiBulkDepth--;
+			events.handleEndMultiBulk();
+		}
+	}
+	
+	private void pushMultiBulk(int count) {
+		if (multiBulkDepth==multiBulkRemaining.length) {
+			int[] newRemaining=new int[multiBulkRemaining.length*2];
+			System.arraycopy(multiBulkRemaining, 0, newRemaining, 0, multiBulkDepth);
+			multiBulkRemaining=newRemaining;
+		}
+		multiBulkRemaining[multiBulkDepth++]=count;
+	}
+	
+	private void writePacketControl(ChannelBuffer packet, boolean retainable) {
+		// Scan for an end of packet marker (LF)
+		int start=packet.readerIndex();
+		int lf=packet.indexOf(start, packet.writerIndex(), (byte)0x0a);
+		
+		if (lf>start && !isAccumulating() && packet.getByte(lf-1)==0x0d) {
+			// The whole control line is in this packet.  Process in place.
+			packet.readerIndex(lf+1);
+			processControlLine(packet.getByte(start), packet.slice(start+1, lf-start-2), retainable);
+			return;
+		}
+		
+		// Transfer the bytes up to and including the LF
+		accumulate(packet, (lf>=0 ? lf+1 : packet.writerIndex()) - start);
 		
 		// If the last two bytes is a CRLF, then we have a complete control line
 		int pos=accumBuffer.position();
@@ -159,17 +455,24 @@ public class RedisParser {
 			// Terminating condition
 			accumBuffer.flip();
 			accumBuffer.limit(accumBuffer.limit()-2);
-			processControlLine(accumBuffer);
-			accumBuffer.clear();
+			byte controlChar=accumBuffer.get();
+			ByteBuffer line=accumBuffer;
+			accumBuffer=null;
+			try {
+				processControlLine(controlChar, ChannelBuffers.wrappedBuffer(line), false);
+			} finally {
+				ACCUM_POOL.release(line);
+			}
 		}
 	}
-
+	
 	/**
-	 * Process a control line without the trailing CRLF
+	 * Process a control line without the control char or trailing CRLF
+	 * @param controlChar
 	 * @param controlPacket
+	 * @param retainable true if the controlPacket can be passed on without copying
 	 */
-	private void processControlLine(ByteBuffer controlPacket) {
-		byte controlChar=controlPacket.get();
+	private void processControlLine(byte controlChar, ChannelBuffer controlPacket, boolean retainable) {
 		boolean startedMulti=false;
 		
 		// Branch based on control type
@@ -195,58 +498,80 @@ public class RedisParser {
 			} else if (multiCount<0) {
 				throw new IllegalStateException("Illegal multi-bulk count");
 			} else {
-				expectedMultiBulkRemaining=multiCount;
+				pushMultiBulk(multiCount);
 				events.handleStartMultiBulk(multiCount);
 				startedMulti=true;
 			}
 		} else if (controlChar=='+') {
-			events.handleStatus(controlPacket);
+			events.handleStatus(retainable ? controlPacket : ChannelBuffers.copiedBuffer(controlPacket));
 		} else if (controlChar=='-') {
-			events.handleError(controlPacket);
+			events.handleError(retainable ? controlPacket : ChannelBuffers.copiedBuffer(controlPacket));
 		} else if (controlChar==':') {
-			int value=decodeInteger(controlPacket);
-			events.handleInteger(value);
+			events.handleInteger(decodeLong(controlPacket));
 		}
 		
 		// Process terminating condition for multi bulk if performed a primitive
-		if (!startedMulti && state==STATE_CONTROL && expectedMultiBulkRemaining>0) {
-			if (--expectedMultiBulkRemaining == 0) {
-				events.handleEndMultiBulk();
-			}
+		// (including a nil or empty multi-bulk)
+		if (!startedMulti && state==STATE_CONTROL) {
+			completeElement();
 		}
 	}
-
+	
 	/**
-	 * Decode all remaining bytes as an ascii number.  It is an error to have non-digits (except for a leading minus).
-	 * @param packet
+	 * Decode a length or count, which must fit in an int
+	 */
+	private int decodeInteger(ChannelBuffer packet) {
+		long value=decodeLong(packet);
+		if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE) {
+			throw new IllegalStateException("Length out of range: " + value);
+		}
+		return (int)value;
+	}
+	
+	/**
+	 * Decode all readable bytes as an ascii number.  It is an error to have non-digits (except for a leading minus).
+	 * The reader index of the buffer is not changed and no intermediate String is created.
+	 * @param buffer
 	 * @return number
+	 * @throws NumberFormatException
 	 */
-	private int decodeInteger(ByteBuffer packet) {
-		int value=0;
+	static long decodeLong(ChannelBuffer buffer) {
+		long value=0;
 		boolean negated=false;
-		if (packet.remaining()==0) {
-			throw new IllegalStateException("Expected integer but got empty buffer");
+		int index=buffer.readerIndex();
+		int limit=buffer.writerIndex();
+		if (index==limit) {
+			throw new NumberFormatException("Expected integer but got empty buffer");
 		}
-		if (packet.get(packet.position())=='-') {
+		if (buffer.getByte(index)=='-') {
 			negated=true;
-			packet.position(packet.position()+1);
-			if (packet.remaining()==0) {
-				throw new IllegalStateException("Expected integer but got minus sign only");
+			index++;
+			if (index==limit) {
+				throw new NumberFormatException("Expected integer but got minus sign only");
 			}
 		}
 		
-		while (packet.hasRemaining()) {
-			byte b=packet.get();
+		// Accumulate negatively (as Long.parseLong does) so that Long.MIN_VALUE
+		// can be represented and overflow is caught before it wraps
+		long min=negated ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multmin=min / 10;
+		for (; index<limit; index++) {
+			byte b=buffer.getByte(index);
 			if (b<'0' || b>'9') {
-				throw new IllegalStateException("Expected integer but encountered non-numeric character");
+				throw new NumberFormatException("Expected integer but encountered non-numeric character");
 			}
 			
-			value=value*10 + (b-'0');
+			int digit=b-'0';
+			if (value<multmin) {
+				throw new NumberFormatException("Integer out of range");
+			}
+			value*=10;
+			if (value<min+digit) {
+				throw new NumberFormatException("Integer out of range");
+			}
+			value-=digit;
 		}
 		
-		if (negated) {
-			value=-value;
-		}
-		return value;
+		return negated ? value : -value;
 	}
 }
@@ -0,0 +1,155 @@
+package net.rcode.core.redis;
+
+import java.util.AbstractList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.rcode.core.async.Promise;
+
+import org.jboss.netty.util.Timeout;
+
+/**
+ * Collects commands to be sent as one unit with a single promise for all of
+ * their replies.  Use this instead of a RedisBatchSource for bulk work where
+ * a promise per command would cost more than the command itself:
+ * <pre>
+ * RedisPipeline pipeline=redis.pipeline();
+ * for (...) pipeline.add("HSET", key, field, value);
+ * redis.execute(pipeline).force(...);
+ * </pre>
+ * Each add() returns the slot index of the command's reply in the Results.
+ * Error replies fill their slot like any other reply; the promise only fails
+ * if the pipeline as a whole could not be run (ie. its deadline passed).
+ * A pipeline is consumed by executing it.
+ *
+ * @author stella
+ *
+ */
+public class RedisPipeline {
+	private final RedisSerializer serializer;
+	private RedisCommand[] commands=new RedisCommand[16];
+	private int count;
+	
+	public RedisPipeline() {
+		this(RedisSerializer.INSTANCE);
+	}
+	
+	public RedisPipeline(RedisSerializer serializer) {
+		this.serializer=serializer;
+	}
+	
+	/**
+	 * Add a command
+	 * @param command
+	 * @param arguments
+	 * @return slot index of its reply
+	 */
+	public int add(String command, Object... arguments) {
+		return add(new RedisCommand(serializer, command, arguments));
+	}
+	
+	/**
+	 * Add a command
+	 * @param command
+	 * @return slot index of its reply
+	 */
+	public int add(RedisCommand command) {
+		if (count==commands.length) {
+			RedisCommand[] newCommands=new RedisCommand[count*2];
+			System.arraycopy(commands, 0, newCommands, 0, count);
+			commands=newCommands;
+		}
+		commands[count]=command;
+		return count++;
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	RedisCommand get(int index) {
+		return commands[index];
+	}
+	
+	/**
+	 * Replies of an executed pipeline in the order the commands were added
+	 */
+	public static final class Results extends AbstractList<RedisResult> {
+		private final RedisResult[] replies;
+		private final AtomicInteger remaining;
+		private final AtomicBoolean settled=new AtomicBoolean();
+		final Promise<Results> promise=new Promise<Results>();
+		volatile Timeout timeout;
+		
+		Results(int count) {
+			this.replies=new RedisResult[count];
+			this.remaining=new AtomicInteger(count);
+			if (count==0) settle();
+		}
+		
+		/**
+		 * Fill a slot.  Called on the I/O thread, so the last call publishes
+		 * all of the slots through the promise.
+		 */
+		void fill(int index, RedisResult reply) {
+			replies[index]=reply;
+			if (remaining.decrementAndGet()==0) settle();
+		}
+		
+		private void settle() {
+			if (!settled.compareAndSet(false, true)) return;
+			Timeout localTimeout=timeout;
+			if (localTimeout!=null) localTimeout.cancel();
+			promise.resolve(this);
+		}
+		
+		void fail(Throwable error) {
+			if (!settled.compareAndSet(false, true)) return;
+			Timeout localTimeout=timeout;
+			if (localTimeout!=null) localTimeout.cancel();
+			promise.resolveError(error);
+		}
+		
+		@Override
+		public RedisResult get(int index) {
+			return replies[index];
+		}
+		
+		@Override
+		public int size() {
+			return replies.length;
+		}
+		
+		public String getString(int index) {
+			RedisResult reply=replies[index];
+			reply.ifError();
+			return reply.getString();
+		}
+		
+		public long getLong(int index) {
+			RedisResult reply=replies[index];
+			reply.ifError();
+			return reply.getLong();
+		}
+		
+		public int getInteger(int index) {
+			RedisResult reply=replies[index];
+			reply.ifError();
+			return reply.getInteger();
+		}
+		
+		public boolean isError(int index) {
+			return replies[index].getType()==RedisResult.TYPE_ERROR;
+		}
+		
+		/**
+		 * Throw the first error reply, if any
+		 * @throws RuntimeException
+		 */
+		public void ifError() throws RuntimeException {
+			for (RedisResult reply: replies) {
+				reply.ifError();
+			}
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package net.rcode.core.redis;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.rcode.core.async.Flow;
+import net.rcode.core.async.Promise;
+
+/**
+ * A fixed set of pipelined connections to the same server presented as a
+ * single executor.  Each command goes to the connection with the fewest
+ * outstanding replies so that one slow reply does not hold up everything
+ * queued behind it.
+ * <p>
+ * Commands routed this way may complete in a different order than they were
+ * issued.  Callers that need a run of commands applied in order without
+ * waiting on each one can pin them with getConnection(key), which always
+ * maps the same key to the same connection.  Batches are always sent whole
+ * on one connection.
+ * 
+ * @author stella
+ *
+ */
+public class RedisPool implements RedisStreamingExecutor {
+	private final Redis[] connections;
+	
+	/**
+	 * Where the least outstanding scan starts.  Rotated so that idle
+	 * connections share the load instead of the first always winning ties.
+	 */
+	private final AtomicInteger scanStart=new AtomicInteger();
+	
+	public RedisPool(Redis... connections) {
+		if (connections.length==0) throw new IllegalArgumentException("Pool requires at least one connection");
+		this.connections=connections.clone();
+	}
+	
+	public RedisPool(RedisManager manager, String host, int port, int size) {
+		this(connect(manager, host, port, size));
+	}
+	
+	private static Redis[] connect(RedisManager manager, String host, int port, int size) {
+		Redis[] connections=new Redis[size];
+		for (int i=0; i<size; i++) {
+			connections[i]=manager.connect(host, port);
+		}
+		return connections;
+	}
+	
+	public int size() {
+		return connections.length;
+	}
+	
+	/**
+	 * @return copy of the pooled connections
+	 */
+	public Redis[] getConnections() {
+		return connections.clone();
+	}
+	
+	/**
+	 * @return the connection with the fewest outstanding replies
+	 */
+	public Redis getConnection() {
+		Redis[] connections=this.connections;
+		int count=connections.length;
+		if (count==1) return connections[0];
+		
+		int start=(scanStart.getAndIncrement() & 0x7fffffff) % count;
+		Redis best=connections[start];
+		int bestOutstanding=best.getOutstandingCount();
+		for (int i=1; i<count && bestOutstanding>0; i++) {
+			Redis candidate=connections[(start+i) % count];
+			int outstanding=candidate.getOutstandingCount();
+			if (outstanding<bestOutstanding) {
+				best=candidate;
+				bestOutstanding=outstanding;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * @param key
+	 * @return the connection that the key is pinned to.  Commands issued on it
+	 * are applied in order.
+	 */
+	public Redis getConnection(String key) {
+		return connections[(key.hashCode() & 0x7fffffff) % connections.length];
+	}
+	
+	/**
+	 * Execute a batch of commands atomically on one connection
+	 * @param source
+	 */
+	public void execute(RedisBatchSource source) {
+		getConnection().execute(source);
+	}
+	
+	/**
+	 * Send a pipeline whole on the least busy connection
+	 * @param pipeline
+	 * @return results
+	 */
+	public Promise<RedisPipeline.Results> execute(RedisPipeline pipeline) {
+		return getConnection().execute(pipeline);
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(RedisCommand command) {
+		return getConnection().execute(command);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, RedisCommand command) {
+		getConnection().execute(result, command);
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(String command, Object... arguments) {
+		return getConnection().execute(command, arguments);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+		getConnection().execute(result, command, arguments);
+	}
+	
+	@Override
+	public void executeAndForget(String command, Object... arguments) {
+		getConnection().executeAndForget(command, arguments);
+	}
+	
+	@Override
+	public void execute(RedisStreamConsumer consumer, RedisCommand command) {
+		getConnection().execute(consumer, command);
+	}
+	
+	@Override
+	public void execute(RedisStreamConsumer consumer, String command, Object... arguments) {
+		getConnection().execute(consumer, command, arguments);
+	}
+	
+	public Flow.Initiator<RedisResult> executeStep(String command, Object... arguments) {
+		return RedisSteps.executeStep(this, command, arguments);
+	}
+	
+	/**
+	 * Quit all connections
+	 * @return promise resolved when every connection has quit
+	 * @throws IOException
+	 */
+	public Promise<Boolean> quit() throws IOException {
+		Flow<Boolean> flow=new Flow<Boolean>();
+		for (Redis connection: connections) {
+			flow.add(connection.quit());
+		}
+		flow.finish(true);
+		return flow;
+	}
+}
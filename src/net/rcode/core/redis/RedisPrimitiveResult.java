@@ -3,36 +3,59 @@ package net.rcode.core.redis;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
 public class RedisPrimitiveResult extends RedisResult {
 	private static final Charset UTF8=Charset.forName("UTF-8");
 	
-	private ByteBuffer buffer;
+	private ChannelBuffer buffer;
 	private int type;
 	private String stringValue;
 	
-	public RedisPrimitiveResult(int type, ByteBuffer buffer) {
+	public RedisPrimitiveResult(int type, ChannelBuffer buffer) {
 		this.type=type;
 		this.buffer=buffer;
 	}
 	
+	public RedisPrimitiveResult(int type, ByteBuffer buffer) {
+		this(type, buffer!=null ? ChannelBuffers.wrappedBuffer(buffer) : null);
+	}
+	
 	public RedisPrimitiveResult(int type, String string) {
-		this(type, UTF8.encode(string));
+		this(type, ChannelBuffers.copiedBuffer(string, UTF8));
 	}
 
 	@Override
 	public ByteBuffer getBuffer() {
 		if (buffer==null) return null;
-		else return buffer.slice();
+		else return buffer.toByteBuffer();
+	}
+	
+	@Override
+	public ChannelBuffer getChannelBuffer() {
+		return buffer;
 	}
 
 	@Override
 	public String getString() {
 		if (stringValue==null && buffer!=null) {
-			stringValue=UTF8.decode(buffer).toString();
+			stringValue=buffer.toString(UTF8);
 		}
 		return stringValue;
 	}
 
+	/**
+	 * Decodes the number directly from the buffer without going through a String
+	 */
+	@Override
+	public long getLong() {
+		if (buffer==null) {
+			throw new NumberFormatException("null");
+		}
+		return RedisParser.decodeLong(buffer);
+	}
+
 	@Override
 	public int getType() {
 		return type;
@@ -0,0 +1,372 @@
+package net.rcode.core.redis;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.rcode.core.async.Flow;
+import net.rcode.core.async.Promise;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends read-only commands (RedisConstants.READ_COMMANDS) to replicas of a
+ * primary and everything else to the primary itself.  Reads are spread over
+ * the replicas round robin or to the one with the fewest outstanding replies.
+ * A replica is skipped while it is not connected, its circuit is open, it has
+ * more than maxOutstanding replies pending or the health check found it
+ * lagging.  With no usable replica reads go to the primary.
+ * <p>
+ * Replicas are asynchronous, so a read right after a write may not see it.
+ * With a read-your-writes window set, a write pins the caller's reads to the
+ * primary for that long.  The router itself is one caller; use session() to
+ * get an executor that tracks its own writes.
+ *
+ * @author stella
+ *
+ */
+public class RedisReplicaRouter implements RedisStreamingExecutor {
+	private static final Logger logger=LoggerFactory.getLogger(RedisReplicaRouter.class);
+	
+	public static final int ROUND_ROBIN=0;
+	public static final int LEAST_OUTSTANDING=1;
+	
+	private static final class Replica {
+		final Redis connection;
+		
+		/**
+		 * Set by the health check
+		 */
+		volatile boolean lagging;
+		
+		Replica(Redis connection) {
+			this.connection=connection;
+		}
+	}
+	
+	private final Redis primary;
+	private final Replica[] replicas;
+	private final AtomicInteger next=new AtomicInteger();
+	private final Session defaultSession=new Session();
+	
+	private volatile int balance=LEAST_OUTSTANDING;
+	private volatile long readYourWritesWindow;
+	private volatile int maxOutstanding=Integer.MAX_VALUE;
+	
+	// - health check
+	private volatile long healthInterval;
+	private volatile long maxLagBytes;
+	private volatile Timeout healthTimeout;
+	private volatile boolean stopped;
+	
+	private final TimerTask healthTask=new TimerTask() {
+		@Override
+		public void run(Timeout timeout) throws Exception {
+			checkHealth();
+		}
+	};
+	
+	public RedisReplicaRouter(Redis primary, Redis... replicas) {
+		this.primary=primary;
+		this.replicas=new Replica[replicas.length];
+		for (int i=0; i<replicas.length; i++) {
+			this.replicas[i]=new Replica(replicas[i]);
+		}
+	}
+	
+	public Redis getPrimary() {
+		return primary;
+	}
+	
+	/**
+	 * @param balance ROUND_ROBIN or LEAST_OUTSTANDING
+	 */
+	public void setBalance(int balance) {
+		if (balance!=ROUND_ROBIN && balance!=LEAST_OUTSTANDING) throw new IllegalArgumentException("Unknown balance " + balance);
+		this.balance=balance;
+	}
+	
+	/**
+	 * @param millis How long reads stay on the primary after a write.  0 to
+	 * disable.
+	 */
+	public void setReadYourWritesWindow(long millis) {
+		this.readYourWritesWindow=millis;
+	}
+	
+	/**
+	 * Skip replicas with more than this many outstanding replies
+	 * @param maxOutstanding
+	 */
+	public void setMaxOutstanding(int maxOutstanding) {
+		this.maxOutstanding=maxOutstanding;
+	}
+	
+	/**
+	 * Poll INFO replication on the primary and each replica every interval.
+	 * A replica is marked lagging while its link to the primary is down or its
+	 * replication offset trails the primary's by more than maxLagBytes.
+	 * @param intervalMillis
+	 * @param maxLagBytes
+	 */
+	public synchronized void startHealthCheck(long intervalMillis, long maxLagBytes) {
+		if (intervalMillis<=0) throw new IllegalArgumentException("Interval must be positive");
+		boolean start=healthInterval==0;
+		this.healthInterval=intervalMillis;
+		this.maxLagBytes=maxLagBytes;
+		if (start) checkHealth();
+	}
+	
+	/**
+	 * @return true if reads can currently be sent to the replica
+	 */
+	public boolean isAvailable(int replica) {
+		return isAvailable(replicas[replica]);
+	}
+	
+	private boolean isAvailable(Replica replica) {
+		Redis connection=replica.connection;
+		return !replica.lagging && connection.isConnected() && !connection.isCircuitOpen()
+			&& connection.getOutstandingCount()<=maxOutstanding;
+	}
+	
+	/**
+	 * @return a usable replica or null
+	 */
+	private Redis selectReplica() {
+		int count=replicas.length;
+		if (count==0) return null;
+		
+		int start=(next.getAndIncrement() & 0x7fffffff) % count;
+		boolean roundRobin=balance==ROUND_ROBIN;
+		Redis best=null;
+		int bestOutstanding=Integer.MAX_VALUE;
+		for (int i=0; i<count; i++) {
+			Replica replica=replicas[(start+i) % count];
+			if (!isAvailable(replica)) continue;
+			if (roundRobin) return replica.connection;
+			
+			int outstanding=replica.connection.getOutstandingCount();
+			if (outstanding<bestOutstanding) {
+				best=replica.connection;
+				bestOutstanding=outstanding;
+				if (outstanding==0) break;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * @return an executor with its own read-your-writes window
+	 */
+	public Session session() {
+		return new Session();
+	}
+	
+	/**
+	 * One caller of the router.  Reads after its own writes are pinned to the
+	 * primary for the read-your-writes window.
+	 */
+	public class Session implements RedisStreamingExecutor {
+		private volatile long pinnedUntil;
+		
+		Session() {
+		}
+		
+		private Redis route(String command) {
+			long window=readYourWritesWindow;
+			if (RedisConstants.READ_COMMANDS.contains(command.toUpperCase())) {
+				if (window>0 && System.currentTimeMillis()<pinnedUntil) return primary;
+				Redis replica=selectReplica();
+				return replica!=null ? replica : primary;
+			}
+			
+			if (window>0) pinnedUntil=System.currentTimeMillis()+window;
+			return primary;
+		}
+		
+		@Override
+		public Promise<RedisResult> execute(RedisCommand command) {
+			return route(command.command).execute(command);
+		}
+		
+		@Override
+		public void execute(Promise<RedisResult> result, RedisCommand command) {
+			route(command.command).execute(result, command);
+		}
+		
+		@Override
+		public Promise<RedisResult> execute(String command, Object... arguments) {
+			return route(command).execute(command, arguments);
+		}
+		
+		@Override
+		public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+			route(command).execute(result, command, arguments);
+		}
+		
+		@Override
+		public void executeAndForget(String command, Object... arguments) {
+			route(command).executeAndForget(command, arguments);
+		}
+		
+		@Override
+		public void execute(RedisStreamConsumer consumer, RedisCommand command) {
+			route(command.command).execute(consumer, command);
+		}
+		
+		@Override
+		public void execute(RedisStreamConsumer consumer, String command, Object... arguments) {
+			route(command).execute(consumer, command, arguments);
+		}
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(RedisCommand command) {
+		return defaultSession.execute(command);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, RedisCommand command) {
+		defaultSession.execute(result, command);
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(String command, Object... arguments) {
+		return defaultSession.execute(command, arguments);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+		defaultSession.execute(result, command, arguments);
+	}
+	
+	@Override
+	public void executeAndForget(String command, Object... arguments) {
+		defaultSession.executeAndForget(command, arguments);
+	}
+	
+	@Override
+	public void execute(RedisStreamConsumer consumer, RedisCommand command) {
+		defaultSession.execute(consumer, command);
+	}
+	
+	@Override
+	public void execute(RedisStreamConsumer consumer, String command, Object... arguments) {
+		defaultSession.execute(consumer, command, arguments);
+	}
+	
+	/**
+	 * Batches may contain writes so they always go to the primary
+	 * @param source
+	 */
+	public void execute(RedisBatchSource source) {
+		primary.execute(source);
+	}
+	
+	// -- health check
+	private void checkHealth() {
+		if (stopped) return;
+		if (!primary.isConnected()) {
+			// Nothing to compare against.  Availability still follows the connections.
+			scheduleHealthCheck();
+			return;
+		}
+		
+		primary.execute("INFO", "replication").force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				long primaryOffset=-1;
+				if (!promise.isError() && promise.getResolution().getType()!=RedisResult.TYPE_ERROR) {
+					primaryOffset=parseLong(promise.getResolution().getString(), "master_repl_offset");
+				}
+				for (Replica replica: replicas) {
+					checkReplica(replica, primaryOffset);
+				}
+				scheduleHealthCheck();
+			}
+		});
+	}
+	
+	private void checkReplica(final Replica replica, final long primaryOffset) {
+		if (!replica.connection.isConnected()) return;
+		
+		replica.connection.execute("INFO", "replication").force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				boolean lagging;
+				if (promise.isError() || promise.getResolution().getType()==RedisResult.TYPE_ERROR) {
+					lagging=true;
+				} else {
+					String info=promise.getResolution().getString();
+					String link=infoValue(info, "master_link_status");
+					long offset=parseLong(info, "slave_repl_offset");
+					lagging=(link!=null && !"up".equals(link))
+						|| (primaryOffset>=0 && offset>=0 && primaryOffset-offset>maxLagBytes);
+				}
+				
+				if (lagging!=replica.lagging) {
+					replica.lagging=lagging;
+					if (lagging) logger.warn("Redis replica lagging, reading from primary");
+					else logger.info("Redis replica caught up");
+				}
+			}
+		});
+	}
+	
+	private synchronized void scheduleHealthCheck() {
+		if (stopped) return;
+		healthTimeout=primary.manager.getTimer().newTimeout(healthTask, healthInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @param info INFO reply of "name:value" lines
+	 * @param name
+	 * @return value or null
+	 */
+	private static String infoValue(String info, String name) {
+		int index=info.indexOf(name + ':');
+		while (index>0 && info.charAt(index-1)!='\n') {
+			index=info.indexOf(name + ':', index+1);
+		}
+		if (index<0) return null;
+		
+		int start=index+name.length()+1;
+		int end=start;
+		while (end<info.length() && info.charAt(end)!='\r' && info.charAt(end)!='\n') end++;
+		return info.substring(start, end);
+	}
+	
+	private static long parseLong(String info, String name) {
+		String value=infoValue(info, name);
+		if (value==null) return -1;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Stop the health check and quit the primary and all replicas
+	 * @return
+	 * @throws IOException
+	 */
+	public Promise<Boolean> quit() throws IOException {
+		synchronized (this) {
+			stopped=true;
+			if (healthTimeout!=null) healthTimeout.cancel();
+		}
+		
+		Flow<Boolean> flow=new Flow<Boolean>();
+		flow.add(primary.quit());
+		for (Replica replica: replicas) {
+			flow.add(replica.connection.quit());
+		}
+		flow.finish(true);
+		return flow;
+	}
+}
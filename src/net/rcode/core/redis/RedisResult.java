@@ -1,7 +1,11 @@
 package net.rcode.core.redis;
 
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+
 /**
  * Encapsulate a result in redis.  This is biased towards primitive results that
  * can be interpreted as a binary buffer.  There is a subclass for dealing with
@@ -42,6 +46,28 @@ public abstract class RedisResult {
 	 */
 	public abstract ByteBuffer getBuffer();
 	
+	/**
+	 * For primitive types, this will return the underlying buffer without
+	 * copying or re-wrapping it.  Results parsed from the network are slices
+	 * of the inbound packet.  The returned buffer is shared: use duplicate() before
+	 * modifying its indexes.
+	 * @return underlying buffer or null if a null bulk reply
+	 * @throws IllegalStateException if not a primitive type
+	 */
+	public abstract ChannelBuffer getChannelBuffer();
+	
+	/**
+	 * For primitive types, a stream over the contents.  Use this for large bulk
+	 * replies, which may be held in blocks or a mapped file.
+	 * @return stream or null if a null bulk reply
+	 * @throws IllegalStateException if not a primitive type
+	 */
+	public InputStream getInputStream() {
+		ChannelBuffer buffer=getChannelBuffer();
+		if (buffer==null) return null;
+		return new ChannelBufferInputStream(buffer.duplicate());
+	}
+	
 	/**
 	 * @return decoded string value
 	 * @throws IllegalStateException if not a primitive type
@@ -50,11 +76,25 @@ public abstract class RedisResult {
 	
 	/**
 	 * @return the integral value
-	 * @throws NumberFormatException if the response does not represent a number
+	 * @throws NumberFormatException if the response does not represent a number or
+	 * is out of the range of an int
 	 * @throws IllegalStateException if not a primitive type
 	 */
 	public int getInteger() {
-		return Integer.parseInt(getString());
+		long value=getLong();
+		if (value<Integer.MIN_VALUE || value>Integer.MAX_VALUE) {
+			throw new NumberFormatException("Value out of int range: " + value);
+		}
+		return (int)value;
+	}
+	
+	/**
+	 * @return the 64bit integral value
+	 * @throws NumberFormatException if the response does not represent a number
+	 * @throws IllegalStateException if not a primitive type
+	 */
+	public long getLong() {
+		return Long.parseLong(getString());
 	}
 	
 	/**
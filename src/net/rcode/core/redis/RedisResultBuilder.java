@@ -1,74 +1,144 @@
 package net.rcode.core.redis;
 
-import java.nio.ByteBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A RedisParser.Events class that constructs RedisResult instances from
  * the event stream.  Override the handleResult method to get them.
+ * Multi-bulk replies may be nested to any depth.
+ * <p>
+ * Multi-bulk replies can alternately be streamed element by element to a
+ * RedisStreamConsumer returned from beginStream().
  * 
  * @author stella
  *
  */
 public abstract class RedisResultBuilder implements RedisParser.Events {
-	private RedisResult[] pendingMulti;
-	private int pendingMultiIndex;
+	private static final Logger logger=LoggerFactory.getLogger(RedisResultBuilder.class);
+	
+	/**
+	 * An open multi-bulk.  Frames are recycled between replies so that nesting
+	 * does not cost any allocation beyond the results themselves.
+	 */
+	private static final class Frame {
+		RedisResult[] items;
+		int index;
+	}
+	
+	private Frame[] frames=new Frame[4];
+	private int depth;
+	private RedisStreamConsumer stream;
 
 	protected abstract void handleResult(RedisResult result);
 	
+	/**
+	 * Called at the start of each top-level multi-bulk reply.  If this returns a consumer,
+	 * the elements are passed to it as they arrive instead of being collected.  Nested
+	 * multi-bulks within a streamed reply are built and passed as single elements.
+	 * @return consumer or null to build a RedisMultiResult
+	 */
+	protected RedisStreamConsumer beginStream() {
+		return null;
+	}
+	
+	/**
+	 * Called after the last element of a streamed reply has been passed to
+	 * the consumer.  Implementations must call handleEnd() on the consumer.
+	 * @param consumer
+	 */
+	protected void handleStreamEnd(RedisStreamConsumer consumer) {
+		consumer.handleEnd();
+	}
+	
+	/**
+	 * Discard any partially built reply.  Called when the stream being parsed
+	 * is replaced, ie. on reconnect.
+	 */
+	protected void reset() {
+		for (int i=0; i<depth; i++) {
+			frames[i].items=null;
+		}
+		depth=0;
+		stream=null;
+	}
+	
 	@Override
 	public final void handleStartMultiBulk(int count) {
-		if (pendingMulti!=null) {
-			throw new IllegalStateException("Cannot nest multi responses");
+		if (depth==0 && stream==null) {
+			stream=beginStream();
+			if (stream!=null) return;
 		}
-		pendingMultiIndex=0;
-		if (count>=0) {
-			pendingMulti=new RedisResult[count];
+		
+		if (depth==frames.length) {
+			Frame[] newFrames=new Frame[frames.length*2];
+			System.arraycopy(frames, 0, newFrames, 0, depth);
+			frames=newFrames;
 		}
+		Frame frame=frames[depth];
+		if (frame==null) {
+			frame=new Frame();
+			frames[depth]=frame;
+		}
+		depth++;
+		
+		// A nil multi has null items
+		frame.items=count>=0 ? new RedisResult[count] : null;
+		frame.index=0;
 	}
+	
 	@Override
 	public final void handleEndMultiBulk() {
-		// It may be nil multi 
-		if (pendingMulti!=null) {
-			handleResult(new RedisMultiResult(pendingMulti));
-			pendingMulti=null;
-		} else {
-			handleResult(new RedisMultiResult());
+		if (depth==0) {
+			// End of a streamed reply
+			if (stream==null) {
+				throw new IllegalStateException("Multi-bulk end without start");
+			}
+			RedisStreamConsumer consumer=stream;
+			stream=null;
+			handleStreamEnd(consumer);
+			return;
 		}
+		
+		Frame frame=frames[--depth];
+		RedisResult[] items=frame.items;
+		frame.items=null;
+		addResult(items!=null ? new RedisMultiResult(items) : new RedisMultiResult());
 	}
 
 	private void addResult(RedisResult result) {
-		if (pendingMulti!=null) {
-			pendingMulti[pendingMultiIndex++]=result;
+		if (depth>0) {
+			Frame frame=frames[depth-1];
+			frame.items[frame.index++]=result;
+		} else if (stream!=null) {
+			try {
+				stream.handleElement(result);
+			} catch (Throwable t) {
+				logger.error("Error in stream consumer", t);
+			}
 		} else {
 			handleResult(result);
 		}
 	}
 	
-	private final ByteBuffer dupBuffer(ByteBuffer contents) {
-		if (contents==null) return null;
-		ByteBuffer dup=ByteBuffer.allocate(contents.remaining());
-		dup.put(contents);
-		dup.flip();
-		return dup;
-	}
-	
 	@Override
-	public final void handleBulk(ByteBuffer contents) {
-		addResult(new RedisPrimitiveResult(RedisResult.TYPE_BULK, dupBuffer(contents)));
+	public final void handleBulk(ChannelBuffer contents) {
+		addResult(new RedisPrimitiveResult(RedisResult.TYPE_BULK, contents));
 	}
 
 	@Override
-	public final void handleError(ByteBuffer contents) {
-		addResult(new RedisPrimitiveResult(RedisResult.TYPE_ERROR, dupBuffer(contents)));
+	public final void handleError(ChannelBuffer contents) {
+		addResult(new RedisPrimitiveResult(RedisResult.TYPE_ERROR, contents));
 	}
 
 	@Override
-	public final void handleStatus(ByteBuffer contents) {
-		addResult(new RedisPrimitiveResult(RedisResult.TYPE_STATUS, dupBuffer(contents)));
+	public final void handleStatus(ChannelBuffer contents) {
+		addResult(new RedisPrimitiveResult(RedisResult.TYPE_STATUS, contents));
 	}
 
 	@Override
-	public final void handleInteger(int value) {
+	public final void handleInteger(long value) {
 		addResult(new RedisIntegerResult(value));
 	}
 }
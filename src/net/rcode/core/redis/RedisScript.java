@@ -0,0 +1,130 @@
+package net.rcode.core.redis;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * A Lua script run on the server with EVALSHA.  The SHA1 is computed locally
+ * so the source only crosses the wire when the server does not have it: a
+ * NOSCRIPT reply is answered by running the script again with EVAL, which also
+ * puts it back in the server's script cache.
+ * <p>
+ * Scripts can be preloaded on a connection with Redis.loadScript() (or through
+ * a RedisScripts registry) so that even the first call after a connect or a
+ * server restart goes out as EVALSHA.
+ *
+ * @author stella
+ *
+ */
+public class RedisScript {
+	private static final Object[] NO_ARGUMENTS=new Object[0];
+	private static final char[] HEX_DIGITS="0123456789abcdef".toCharArray();
+	
+	private final String name;
+	private final String source;
+	private final String sha;
+	
+	public RedisScript(String name, String source) {
+		this.name=name;
+		this.source=source;
+		this.sha=sha1(source);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getSource() {
+		return source;
+	}
+	
+	/**
+	 * @return lower case hex SHA1 of the source, as the server computes it
+	 */
+	public String getSha() {
+		return sha;
+	}
+	
+	/**
+	 * @return a SCRIPT LOAD command for this script
+	 */
+	RedisCommand createLoadCommand(RedisSerializer serializer) {
+		return new RedisCommand(serializer, "SCRIPT", "LOAD", source);
+	}
+	
+	/**
+	 * Run the script with no keys
+	 * @param executor
+	 * @param arguments Passed as ARGV
+	 * @return result
+	 */
+	public Promise<RedisResult> execute(RedisExecutor executor, Object... arguments) {
+		return execute(executor, NO_ARGUMENTS, arguments);
+	}
+	
+	/**
+	 * Run the script
+	 * @param executor
+	 * @param keys Passed as KEYS.  Executors that route by key route on these.
+	 * @param arguments Passed as ARGV
+	 * @return result
+	 */
+	public Promise<RedisResult> execute(final RedisExecutor executor, Object[] keys, Object... arguments) {
+		final Object[] evalArguments=new Object[2+keys.length+arguments.length];
+		evalArguments[0]=sha;
+		evalArguments[1]=keys.length;
+		System.arraycopy(keys, 0, evalArguments, 2, keys.length);
+		System.arraycopy(arguments, 0, evalArguments, 2+keys.length, arguments.length);
+		
+		final Promise<RedisResult> ret=new Promise<RedisResult>();
+		executor.execute("EVALSHA", evalArguments).force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				if (promise.isError()) {
+					ret.resolveError(promise.getError());
+					return;
+				}
+				
+				RedisResult result=promise.getResolution();
+				if (isNoScript(result)) {
+					// Flushed or never loaded.  EVAL runs it and caches it again.
+					evalArguments[0]=source;
+					executor.execute(ret, "EVAL", evalArguments);
+				} else {
+					ret.resolve(result);
+				}
+			}
+		});
+		return ret;
+	}
+	
+	private static boolean isNoScript(RedisResult result) {
+		return result.getType()==RedisResult.TYPE_ERROR && result.getString().startsWith("NOSCRIPT");
+	}
+	
+	private static String sha1(String source) {
+		byte[] digest;
+		try {
+			digest=MessageDigest.getInstance("SHA-1").digest(source.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		
+		char[] hex=new char[digest.length*2];
+		for (int i=0; i<digest.length; i++) {
+			hex[i*2]=HEX_DIGITS[(digest[i]>>4) & 0xf];
+			hex[i*2+1]=HEX_DIGITS[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+	
+	@Override
+	public String toString() {
+		return name + " (" + sha + ")";
+	}
+}
@@ -0,0 +1,87 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * Registry of named Lua scripts.  Scripts are registered once and preloaded on
+ * every attached connection, now and on each reconnect.  Calls go out as
+ * EVALSHA and fall back to EVAL if the server has lost the script (see
+ * RedisScript).
+ * <p>
+ * Use a script to collapse a flow that would otherwise take several round
+ * trips into one server side call.  Scripts must only touch the keys they
+ * are passed if they are to be run through RedisShards.
+ *
+ * @author stella
+ *
+ */
+public class RedisScripts {
+	private final LinkedHashMap<String, RedisScript> scripts=new LinkedHashMap<String, RedisScript>();
+	private final List<Redis> connections=new ArrayList<Redis>();
+	
+	/**
+	 * Register a script, replacing any of the same name, and load it on the
+	 * attached connections
+	 * @param name
+	 * @param source Lua source
+	 * @return script
+	 */
+	public synchronized RedisScript register(String name, String source) {
+		RedisScript existing=scripts.get(name);
+		if (existing!=null && existing.getSource().equals(source)) return existing;
+		
+		RedisScript script=new RedisScript(name, source);
+		scripts.put(name, script);
+		for (Redis redis: connections) {
+			redis.loadScript(script);
+		}
+		return script;
+	}
+	
+	/**
+	 * @param name
+	 * @return registered script or null
+	 */
+	public synchronized RedisScript get(String name) {
+		return scripts.get(name);
+	}
+	
+	/**
+	 * Preload all scripts, including those registered later, on a connection
+	 * @param redis
+	 */
+	public synchronized void attach(Redis redis) {
+		connections.add(redis);
+		for (RedisScript script: scripts.values()) {
+			redis.loadScript(script);
+		}
+	}
+	
+	/**
+	 * Attach each connection of a pool
+	 * @param pool
+	 */
+	public void attach(RedisPool pool) {
+		for (Redis redis: pool.getConnections()) {
+			attach(redis);
+		}
+	}
+	
+	/**
+	 * Run a registered script
+	 * @param executor
+	 * @param name
+	 * @param keys Passed as KEYS
+	 * @param arguments Passed as ARGV
+	 * @return result
+	 */
+	public Promise<RedisResult> execute(RedisExecutor executor, String name, Object[] keys, Object... arguments) {
+		RedisScript script=get(name);
+		if (script==null) throw new IllegalArgumentException("No script registered as " + name);
+		return script.execute(executor, keys, arguments);
+	}
+}
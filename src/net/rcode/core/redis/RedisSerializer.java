@@ -3,116 +3,293 @@ package net.rcode.core.redis;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.rcode.core.io.BufferPool;
 
 /**
  * Convert redis requests to buffers that can be written to the server.  Unlike the parser,
  * which is streaming, the serializer always works with full requests.
+ * <p>
+ * The exact size of the request is computed up front and the request is then encoded
+ * straight into a buffer from the pool in one pass.  Strings are encoded without
+ * intermediate buffers when the charset is UTF-8 (with a fast path for ASCII) and
+ * numbers are written directly as digits.
  * 
  * @author stella
  *
  */
 public class RedisSerializer {
+	private static final Charset UTF8=Charset.forName("UTF-8");
+	private static final BufferPool DEFAULT_POOL=new BufferPool(false);
+	
 	public static final RedisSerializer INSTANCE=new RedisSerializer();
 	
 	private static final byte[] CRLF=new byte[] { (byte)13, (byte)10 };
 	
+	/**
+	 * Pre-encoded "$len\r\nNAME\r\n" for common commands
+	 */
+	private static final Map<String, byte[]> COMMAND_HEADERS=new HashMap<String, byte[]>();
+	
+	/**
+	 * Pre-encoded "*count\r\n" for small argument counts
+	 */
+	private static final byte[][] MULTI_BULK_HEADERS=new byte[16][];
+	
+	static {
+		for (String command: RedisConstants.COMMON_COMMANDS) {
+			COMMAND_HEADERS.put(command, ("$" + command.length() + "\r\n" + command + "\r\n").getBytes(UTF8));
+		}
+		for (int i=0; i<MULTI_BULK_HEADERS.length; i++) {
+			MULTI_BULK_HEADERS[i]=("*" + i + "\r\n").getBytes(UTF8);
+		}
+	}
+	
 	private Charset charset;
+	private boolean utf8;
+	private BufferPool pool;
 	
-	public RedisSerializer(Charset charset) {
+	public RedisSerializer(Charset charset, BufferPool pool) {
 		this.charset=charset;
+		this.utf8=UTF8.equals(charset);
+		this.pool=pool;
+	}
+	public RedisSerializer(Charset charset) {
+		this(charset, DEFAULT_POOL);
 	}
 	public RedisSerializer() {
-		this(Charset.forName("UTF-8"));
+		this(UTF8);
 	}
 	
 	/**
-	 * Perform serialization
-	 * @param arguments either byte[], null or toString() coercible arguments
+	 * @return the pool that serialized buffers are taken from
+	 */
+	public BufferPool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * Perform serialization.  The returned buffer comes from the pool and can be
+	 * handed back to it once written.
+	 * @param arguments either byte[], ByteBuffer, null, numbers or toString() coercible arguments
 	 * @return ByteBuffer
 	 */
 	public ByteBuffer serialize(String command, Object... arguments) {
-		ByteBuffer[] buffers=new ByteBuffer[arguments.length+1];
-		buffers[0]=charset.encode(command);
+		// Anything that can't be written directly is converted once up front
+		Object[] values=arguments;
+		
+		// Compute the exact size
+		byte[] commandHeader=utf8 ? COMMAND_HEADERS.get(command) : null;
+		Object commandValue=null;
+		int size=asciiNumberLength(arguments.length+1) + 3;
+		if (commandHeader!=null) {
+			size+=commandHeader.length;
+		} else {
+			commandValue=convert(command);
+			size+=bulkSize(commandValue);
+		}
+		
 		for (int i=0; i<arguments.length; i++) {
 			Object argument=arguments[i];
-			ByteBuffer buffer;
-			if (argument==null) {
-				buffer=ByteBuffer.allocate(0);
-			} else if (argument instanceof byte[]) {
-				buffer=ByteBuffer.wrap((byte[])argument);
-			} else if (argument instanceof CharSequence) {
-				// Work straight off the CharSequence - saves an extra copy for StringBuilder
-				// and the like
-				buffer=charset.encode(CharBuffer.wrap((CharSequence)argument));
-			} else {
-				buffer=charset.encode(argument.toString());
+			Object converted=convert(argument);
+			if (converted!=argument) {
+				if (values==arguments) values=arguments.clone();
+				values[i]=converted;
 			}
-			
-			buffers[i+1]=buffer;
+			size+=bulkSize(converted);
 		}
 		
-		return serializeBuffers(buffers);
-	}
-	
-	private ByteBuffer serializeBuffers(ByteBuffer[] buffers) {
-		// Come up with a conservative size estimate.
-		// 16 bytes per entry plus size of each entry.
-		// Includes prefix char, \r\n, and ascii size
-		// Plus the message header (16)
-		int size=16*buffers.length + 16;
-		for (int i=0; i<buffers.length; i++) {
-			size+=buffers[i].limit();
+		// Encode
+		ByteBuffer buffer=pool.acquire(size);
+		int count=arguments.length+1;
+		if (count<MULTI_BULK_HEADERS.length) {
+			buffer.put(MULTI_BULK_HEADERS[count]);
+		} else {
+			buffer.put((byte)'*');
+			writeAsciiNumber(buffer, count);
+			buffer.put(CRLF);
 		}
 		
-		ByteBuffer buffer=allocate(size);
-		
-		// Number of arguments
-		buffer.put((byte)'*');
-		writeAsciiNumber(buffer, buffers.length);
-		buffer.put(CRLF);
-		
-		// For each argument
-		for (int i=0; i<buffers.length; i++) {
-			ByteBuffer argument=buffers[i];
-			buffer.put((byte)'$');
-			writeAsciiNumber(buffer, argument.remaining());
-			buffer.put(CRLF);
-			buffer.put(argument);
-			buffer.put(CRLF);
+		if (commandHeader!=null) {
+			buffer.put(commandHeader);
+		} else {
+			writeBulk(buffer, commandValue);
+		}
+		for (int i=0; i<values.length; i++) {
+			writeBulk(buffer, values[i]);
 		}
 		
 		buffer.flip();
 		return buffer;
 	}
 	
-	private void writeAsciiNumber(ByteBuffer buffer, int n) {
-		byte zero=48;
-		byte[] digits=new byte[12];
-		int count=0;
-		boolean neg;
+	/**
+	 * Convert an argument to something that writeBulk can handle directly
+	 */
+	private Object convert(Object argument) {
+		if (argument==null || argument instanceof byte[] || argument instanceof ByteBuffer || isIntegral(argument)) {
+			return argument;
+		} else if (argument instanceof CharSequence) {
+			// Work straight off the CharSequence - saves an extra copy for StringBuilder
+			// and the like
+			return utf8 ? argument : charset.encode(CharBuffer.wrap((CharSequence)argument));
+		} else {
+			return convert(argument.toString());
+		}
+	}
+	
+	private static boolean isIntegral(Object argument) {
+		return argument instanceof Integer || argument instanceof Long || argument instanceof Short || argument instanceof Byte;
+	}
+	
+	/**
+	 * @return the number of bytes that writeBulk will write for a converted argument
+	 */
+	private int bulkSize(Object argument) {
+		int length;
+		if (argument==null) {
+			length=0;
+		} else if (argument instanceof byte[]) {
+			length=((byte[])argument).length;
+		} else if (argument instanceof ByteBuffer) {
+			length=((ByteBuffer)argument).remaining();
+		} else if (argument instanceof CharSequence) {
+			length=utf8Length((CharSequence)argument);
+		} else {
+			length=asciiNumberLength(((Number)argument).longValue());
+		}
 		
-		if (n<0) {
-			neg=true;
-			n=Math.abs(n);
+		// $ + length + CRLF + contents + CRLF
+		return 1 + asciiNumberLength(length) + 2 + length + 2;
+	}
+	
+	private void writeBulk(ByteBuffer buffer, Object argument) {
+		buffer.put((byte)'$');
+		if (argument==null) {
+			buffer.put((byte)'0');
+			buffer.put(CRLF);
+		} else if (argument instanceof byte[]) {
+			byte[] bytes=(byte[])argument;
+			writeAsciiNumber(buffer, bytes.length);
+			buffer.put(CRLF);
+			buffer.put(bytes);
+		} else if (argument instanceof ByteBuffer) {
+			ByteBuffer source=(ByteBuffer)argument;
+			writeAsciiNumber(buffer, source.remaining());
+			buffer.put(CRLF);
+			buffer.put(source.duplicate());
+		} else if (argument instanceof CharSequence) {
+			CharSequence chars=(CharSequence)argument;
+			writeAsciiNumber(buffer, utf8Length(chars));
+			buffer.put(CRLF);
+			writeUtf8(buffer, chars);
 		} else {
-			neg=false;
+			long value=((Number)argument).longValue();
+			writeAsciiNumber(buffer, asciiNumberLength(value));
+			buffer.put(CRLF);
+			writeAsciiNumber(buffer, value);
+		}
+		buffer.put(CRLF);
+	}
+	
+	/**
+	 * @return the number of bytes chars will occupy encoded as UTF-8
+	 */
+	static int utf8Length(CharSequence chars) {
+		int length=chars.length();
+		int count=length;
+		for (int i=0; i<length; i++) {
+			char c=chars.charAt(i);
+			if (c<0x80) continue;
+			if (c<0x800) {
+				count+=1;
+			} else if (Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(chars.charAt(i+1))) {
+				// Pair is 4 bytes for 2 chars
+				count+=2;
+				i++;
+			} else if (c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE) {
+				// Unpaired surrogates are replaced with '?'
+			} else {
+				count+=2;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Encode chars as UTF-8 with the same replacement behavior as the
+	 * standard encoder.
+	 */
+	static void writeUtf8(ByteBuffer buffer, CharSequence chars) {
+		int length=chars.length();
+		int i=0;
+		
+		// ASCII fast path
+		for (; i<length; i++) {
+			char c=chars.charAt(i);
+			if (c>=0x80) break;
+			buffer.put((byte)c);
 		}
 		
-		for (;;) {
-			int rem=n%10;
-			digits[count++]=(byte)(zero+rem);
-			n=n/10;
-			if (n==0) break;
+		for (; i<length; i++) {
+			char c=chars.charAt(i);
+			if (c<0x80) {
+				buffer.put((byte)c);
+			} else if (c<0x800) {
+				buffer.put((byte)(0xc0 | (c>>6)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(chars.charAt(i+1))) {
+				int cp=Character.toCodePoint(c, chars.charAt(++i));
+				buffer.put((byte)(0xf0 | (cp>>18)));
+				buffer.put((byte)(0x80 | ((cp>>12) & 0x3f)));
+				buffer.put((byte)(0x80 | ((cp>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (cp & 0x3f)));
+			} else if (c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE) {
+				buffer.put((byte)'?');
+			} else {
+				buffer.put((byte)(0xe0 | (c>>12)));
+				buffer.put((byte)(0x80 | ((c>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of characters needed to write n in decimal
+	 */
+	static int asciiNumberLength(long n) {
+		int count=1;
+		if (n<0) {
+			count++;
+		} else {
+			n=-n;
 		}
 		
-		// Digits are reversed.  Write them.
-		if (neg) buffer.put((byte)'-');
-		for (int i=count-1; i>=0; i--) {
-			buffer.put(digits[i]);
+		// Work in the negative range so that Long.MIN_VALUE is handled
+		while (n<=-10) {
+			n/=10;
+			count++;
 		}
+		return count;
 	}
 	
-	protected ByteBuffer allocate(int size) {
-		return ByteBuffer.allocate(size);
+	static void writeAsciiNumber(ByteBuffer buffer, long n) {
+		int length=asciiNumberLength(n);
+		int position=buffer.position();
+		if (n<0) {
+			buffer.put(position, (byte)'-');
+		} else {
+			n=-n;
+		}
+		
+		// Digits are written from the end
+		for (int i=position+length-1; ; i--) {
+			buffer.put(i, (byte)('0' - (n%10)));
+			n/=10;
+			if (n==0) break;
+		}
+		buffer.position(position+length);
 	}
 }
@@ -0,0 +1,428 @@
+package net.rcode.core.redis;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import net.rcode.core.async.Flow;
+import net.rcode.core.async.Promise;
+
+/**
+ * Spreads keyed commands over several redis servers with a consistent hash
+ * ring.  Each node is placed on the ring at a number of virtual points derived
+ * from the MD5 of its name (four points per digest, as ketama does) so that
+ * adding or removing a node only moves the keys adjacent to its points.
+ * <p>
+ * Commands are routed by their first argument.  Hash tags are honored (see
+ * RedisKeys) so related keys can be kept on one node.  A multi-key command is
+ * only accepted by execute() if all of its keys land on the same node.
+ * Otherwise use the fan-out helpers mget, del and mset, which split the keys
+ * by node, run the parts in parallel and merge the replies.
+ * 
+ * @author stella
+ *
+ */
+public class RedisShards implements RedisExecutor {
+	public static final int DEFAULT_VIRTUAL_NODES=160;
+	
+	private final String[] names;
+	private final RedisExecutor[] nodes;
+	
+	/**
+	 * Sorted ring points and the index of the node owning each
+	 */
+	private final long[] points;
+	private final int[] owners;
+	
+	/**
+	 * @param names Stable node names used for ring placement.  Keep them the same
+	 * across restarts (and clients) or keys will move.
+	 * @param nodes Executors in the same order as names
+	 * @param virtualNodes Ring points per node.  Rounded up to a multiple of four.
+	 */
+	public RedisShards(String[] names, RedisExecutor[] nodes, int virtualNodes) {
+		if (names.length!=nodes.length) throw new IllegalArgumentException("Names and nodes must correspond");
+		if (nodes.length==0) throw new IllegalArgumentException("At least one node is required");
+		if (nodes.length>0xffff) throw new IllegalArgumentException("Too many nodes");
+		
+		this.names=names.clone();
+		this.nodes=nodes.clone();
+		
+		// Pack point and owner into one long so a single sort orders both
+		int digests=(virtualNodes+3)/4;
+		long[] packed=new long[nodes.length*digests*4];
+		int count=0;
+		for (int i=0; i<nodes.length; i++) {
+			for (int d=0; d<digests; d++) {
+				byte[] digest=md5(names[i] + '-' + d);
+				for (int h=0; h<4; h++) {
+					long point=((long)(digest[h*4+3] & 0xff) << 24)
+						| ((digest[h*4+2] & 0xff) << 16)
+						| ((digest[h*4+1] & 0xff) << 8)
+						| (digest[h*4] & 0xff);
+					packed[count++]=(point << 16) | i;
+				}
+			}
+		}
+		Arrays.sort(packed);
+		
+		points=new long[count];
+		owners=new int[count];
+		for (int i=0; i<count; i++) {
+			points[i]=packed[i] >>> 16;
+			owners[i]=(int)(packed[i] & 0xffff);
+		}
+	}
+	
+	public RedisShards(String[] names, RedisExecutor[] nodes) {
+		this(names, nodes, DEFAULT_VIRTUAL_NODES);
+	}
+	
+	/**
+	 * Connect to each of the given servers.  The "host:port" strings are used
+	 * as the node names.
+	 * @param manager
+	 * @param hostPorts
+	 */
+	public RedisShards(RedisManager manager, String... hostPorts) {
+		this(hostPorts, connect(manager, hostPorts));
+	}
+	
+	private static RedisExecutor[] connect(RedisManager manager, String[] hostPorts) {
+		RedisExecutor[] nodes=new RedisExecutor[hostPorts.length];
+		for (int i=0; i<hostPorts.length; i++) {
+			String hostPort=hostPorts[i];
+			int colon=hostPort.lastIndexOf(':');
+			if (colon<0) {
+				nodes[i]=manager.connect(hostPort, RedisManager.DEFAULT_PORT);
+			} else {
+				nodes[i]=manager.connect(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon+1)));
+			}
+		}
+		return nodes;
+	}
+	
+	private static byte[] md5(String s) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public int size() {
+		return nodes.length;
+	}
+	
+	public String getName(int index) {
+		return names[index];
+	}
+	
+	public RedisExecutor getNode(int index) {
+		return nodes[index];
+	}
+	
+	/**
+	 * @param key
+	 * @return index of the node owning the key
+	 */
+	public int getNodeIndex(Object key) {
+		if (nodes.length==1) return 0;
+		
+		long hash=RedisKeys.hash(key) & 0xffffffffL;
+		int index=Arrays.binarySearch(points, hash);
+		if (index<0) {
+			index=-index-1;
+			if (index==points.length) index=0;
+		}
+		return owners[index];
+	}
+	
+	/**
+	 * @param key
+	 * @return the executor owning the key
+	 */
+	public RedisExecutor getShard(Object key) {
+		return nodes[getNodeIndex(key)];
+	}
+	
+	private RedisExecutor route(String command, Object[] arguments) {
+		if (arguments.length==0) {
+			throw new IllegalArgumentException("Cannot route command without a key: " + command);
+		}
+		
+		String upperCommand=command.toUpperCase();
+		if (RedisConstants.SCRIPT_COMMANDS.contains(upperCommand)) {
+			return routeScript(upperCommand, arguments);
+		}
+		
+		int index=getNodeIndex(arguments[0]);
+		if (RedisKeys.isMultiKey(upperCommand)) {
+			for (int i=1; i<arguments.length; i++) {
+				if (RedisKeys.isKey(upperCommand, i, arguments.length) && getNodeIndex(arguments[i])!=index) {
+					throw new IllegalArgumentException("Keys of " + upperCommand + " span shards");
+				}
+			}
+		}
+		return nodes[index];
+	}
+	
+	/**
+	 * Scripts declare their keys after the script and a key count.  They are
+	 * routed by the first one and all must be on the same node.
+	 */
+	private RedisExecutor routeScript(String command, Object[] arguments) {
+		int keyCount=arguments.length>1 ? Integer.parseInt(String.valueOf(arguments[1])) : 0;
+		if (keyCount<=0 || arguments.length<2+keyCount) {
+			throw new IllegalArgumentException("Cannot route " + command + " without keys");
+		}
+		
+		int index=getNodeIndex(arguments[2]);
+		for (int i=3; i<2+keyCount; i++) {
+			if (getNodeIndex(arguments[i])!=index) {
+				throw new IllegalArgumentException("Keys of " + command + " span shards");
+			}
+		}
+		return nodes[index];
+	}
+	
+	private RedisExecutor route(RedisCommand command) {
+		if (RedisKeys.isMultiKey(command.command)) {
+			// Only the first argument is kept so the others cannot be checked
+			throw new IllegalArgumentException("Multi-key command " + command.command + " must be executed with its arguments");
+		}
+		Object key=command.getKey();
+		if (key==null) {
+			throw new IllegalArgumentException("Cannot route command without a key: " + command.command);
+		}
+		return getShard(key);
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(RedisCommand command) {
+		return route(command).execute(command);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, RedisCommand command) {
+		route(command).execute(result, command);
+	}
+	
+	@Override
+	public Promise<RedisResult> execute(String command, Object... arguments) {
+		return route(command, arguments).execute(command, arguments);
+	}
+	
+	@Override
+	public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+		route(command, arguments).execute(result, command, arguments);
+	}
+	
+	@Override
+	public void executeAndForget(String command, Object... arguments) {
+		route(command, arguments).executeAndForget(command, arguments);
+	}
+	
+	public Flow.Initiator<RedisResult> executeStep(String command, Object... arguments) {
+		return RedisSteps.executeStep(this, command, arguments);
+	}
+	
+	// -- fan-out
+	/**
+	 * Keys of a fan-out split by node.  positions[node] holds the original index
+	 * of each key sent to that node.  The parts are kept as plain arguments so
+	 * that each node serializes its own with its own serializer.
+	 */
+	private class Split {
+		Object[][] arguments;
+		int[][] positions;
+		int[] counts;
+		
+		Split(Object[] items, int stride) {
+			int keyCount=items.length/stride;
+			arguments=new Object[nodes.length][];
+			positions=new int[nodes.length][];
+			counts=new int[nodes.length];
+			
+			int[] owner=new int[keyCount];
+			for (int k=0; k<keyCount; k++) {
+				owner[k]=getNodeIndex(items[k*stride]);
+				counts[owner[k]]++;
+			}
+			for (int n=0; n<nodes.length; n++) {
+				if (counts[n]==0) continue;
+				arguments[n]=new Object[counts[n]*stride];
+				positions[n]=new int[counts[n]];
+			}
+			int[] fill=new int[nodes.length];
+			for (int k=0; k<keyCount; k++) {
+				int n=owner[k];
+				int p=fill[n]++;
+				positions[n][p]=k;
+				System.arraycopy(items, k*stride, arguments[n], p*stride, stride);
+			}
+		}
+	}
+	
+	/**
+	 * Collects the replies of the parts of a fan-out and resolves once
+	 * all have arrived
+	 */
+	private static abstract class Gather {
+		final Promise<RedisResult> result=new Promise<RedisResult>();
+		int remaining;
+		RedisResult error;
+		
+		Gather(int parts) {
+			this.remaining=parts;
+		}
+		
+		void add(Promise<RedisResult> part, final int node) {
+			part.force(new Promise.Callback<RedisResult>() {
+				@Override
+				public void complete(Promise<RedisResult> promise) {
+					handlePart(promise, node);
+				}
+			});
+		}
+		
+		private void handlePart(Promise<RedisResult> promise, int node) {
+			boolean done;
+			synchronized (this) {
+				if (promise.isError()) {
+					if (error==null) error=new RedisPrimitiveResult(RedisResult.TYPE_ERROR, String.valueOf(promise.getError()));
+				} else {
+					RedisResult reply=promise.getResolution();
+					if (reply.getType()==RedisResult.TYPE_ERROR) {
+						if (error==null) error=reply;
+					} else if (error==null) {
+						merge(node, reply);
+					}
+				}
+				done=--remaining==0;
+			}
+			
+			if (done) {
+				result.resolve(error!=null ? error : finish());
+			}
+		}
+		
+		abstract void merge(int node, RedisResult reply);
+		abstract RedisResult finish();
+	}
+	
+	/**
+	 * Get the values of keys spread over any number of nodes
+	 * @param keys
+	 * @return multi-bulk of values in the order of the keys
+	 */
+	public Promise<RedisResult> mget(Object... keys) {
+		if (keys.length==0) return Promise.<RedisResult>fixed(new RedisMultiResult(new RedisResult[0]));
+		
+		final Split split=new Split(keys, 1);
+		final RedisResult[] values=new RedisResult[keys.length];
+		Gather gather=new Gather(countParts(split)) {
+			@Override
+			void merge(int node, RedisResult reply) {
+				RedisMultiResult multi=reply.getAsMulti();
+				int[] positions=split.positions[node];
+				for (int i=0; i<positions.length; i++) {
+					values[positions[i]]=multi.get(i);
+				}
+			}
+			@Override
+			RedisResult finish() {
+				return new RedisMultiResult(values);
+			}
+		};
+		
+		for (int n=0; n<nodes.length; n++) {
+			if (split.counts[n]==0) continue;
+			gather.add(nodes[n].execute("MGET", split.arguments[n]), n);
+		}
+		return gather.result;
+	}
+	
+	/**
+	 * Delete keys spread over any number of nodes
+	 * @param keys
+	 * @return integer count of keys deleted
+	 */
+	public Promise<RedisResult> del(Object... keys) {
+		if (keys.length==0) return Promise.<RedisResult>fixed(new RedisIntegerResult(0));
+		
+		Split split=new Split(keys, 1);
+		Gather gather=new Gather(countParts(split)) {
+			long deleted;
+			
+			@Override
+			void merge(int node, RedisResult reply) {
+				deleted+=reply.getLong();
+			}
+			@Override
+			RedisResult finish() {
+				return new RedisIntegerResult(deleted);
+			}
+		};
+		
+		for (int n=0; n<nodes.length; n++) {
+			if (split.counts[n]==0) continue;
+			gather.add(nodes[n].execute("DEL", split.arguments[n]), n);
+		}
+		return gather.result;
+	}
+	
+	/**
+	 * Set keys spread over any number of nodes.  This is not atomic across nodes.
+	 * @param keysAndValues Alternating keys and values
+	 * @return status reply, or the first error
+	 */
+	public Promise<RedisResult> mset(Object... keysAndValues) {
+		if ((keysAndValues.length & 1)!=0) throw new IllegalArgumentException("Keys and values must be paired");
+		if (keysAndValues.length==0) return Promise.<RedisResult>fixed(new RedisPrimitiveResult(RedisResult.TYPE_STATUS, "OK"));
+		
+		Split split=new Split(keysAndValues, 2);
+		Gather gather=new Gather(countParts(split)) {
+			@Override
+			void merge(int node, RedisResult reply) {
+			}
+			@Override
+			RedisResult finish() {
+				return new RedisPrimitiveResult(RedisResult.TYPE_STATUS, "OK");
+			}
+		};
+		
+		for (int n=0; n<nodes.length; n++) {
+			if (split.counts[n]==0) continue;
+			gather.add(nodes[n].execute("MSET", split.arguments[n]), n);
+		}
+		return gather.result;
+	}
+	
+	private int countParts(Split split) {
+		int parts=0;
+		for (int count: split.counts) {
+			if (count>0) parts++;
+		}
+		return parts;
+	}
+	
+	/**
+	 * Quit every node that is a connection or pool
+	 * @return
+	 * @throws IOException
+	 */
+	public Promise<Boolean> quit() throws IOException {
+		Flow<Boolean> flow=new Flow<Boolean>();
+		for (RedisExecutor node: nodes) {
+			if (node instanceof Redis) flow.add(((Redis)node).quit());
+			else if (node instanceof RedisPool) flow.add(((RedisPool)node).quit());
+		}
+		flow.finish(true);
+		return flow;
+	}
+}
@@ -1,6 +1,7 @@
 package net.rcode.core.redis;
 
 import net.rcode.core.async.Flow;
+import net.rcode.core.async.Promise;
 
 public class RedisSteps {
 	public static final Flow.Consumer<RedisResult> FAIL_ON_ERROR=new Flow.Consumer<RedisResult>() {
@@ -9,5 +10,26 @@ public class RedisSteps {
 			result.ifError();
 		}
 	};
-
+	
+	/**
+	 * Create a flow step that executes a command against the executor when the
+	 * flow reaches it.  The command is only serialized when the step is run.
+	 * @param executor
+	 * @param command
+	 * @param arguments
+	 * @return initiator
+	 */
+	public static Flow.Initiator<RedisResult> executeStep(final RedisExecutor executor, final String command, final Object... arguments) {
+		return new Flow.Initiator<RedisResult>() {
+			@Override
+			public Promise<RedisResult> run() throws Throwable {
+				return executor.execute(command, arguments);
+			}
+			
+			@Override
+			public String toString() {
+				return "RedisExecute " + command;
+			}
+		};
+	}
 }
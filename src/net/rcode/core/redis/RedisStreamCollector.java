@@ -0,0 +1,38 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * A RedisStreamConsumer that decodes each element to a String as it arrives
+ * and resolves a promise with the collection at the end.  Only the strings
+ * are held, not the intermediate RedisResult instances.
+ * 
+ * @author stella
+ *
+ */
+public class RedisStreamCollector implements RedisStreamConsumer {
+	private ArrayList<String> values=new ArrayList<String>();
+	private Promise<Collection<String>> result=new Promise<Collection<String>>();
+	
+	public Promise<Collection<String>> getResult() {
+		return result;
+	}
+	
+	@Override
+	public void handleElement(RedisResult element) {
+		values.add(element.getString());
+	}
+
+	@Override
+	public void handleEnd() {
+		result.resolve(values);
+	}
+
+	@Override
+	public void handleError(Throwable error) {
+		result.resolveError(error);
+	}
+}
@@ -0,0 +1,33 @@
+package net.rcode.core.redis;
+
+/**
+ * Receives the reply to a command incrementally.  When a command is executed
+ * with a RedisStreamConsumer instead of a Promise, each element of a multi-bulk
+ * reply is passed to the consumer as soon as it is parsed and is not retained
+ * by the client.  This keeps memory bounded for very large replies.
+ * <p>
+ * A reply that is not a multi-bulk is delivered as a single element.  Callbacks
+ * are invoked on the connection's I/O thread and should not block.
+ * 
+ * @author stella
+ *
+ */
+public interface RedisStreamConsumer {
+	/**
+	 * Called for each element of the reply in order
+	 * @param element
+	 */
+	public void handleElement(RedisResult element);
+	
+	/**
+	 * Called once after the last element
+	 */
+	public void handleEnd();
+	
+	/**
+	 * Called instead of handleEnd if the command results in an error.  Elements
+	 * may have already been delivered.
+	 * @param error
+	 */
+	public void handleError(Throwable error);
+}
@@ -0,0 +1,21 @@
+package net.rcode.core.redis;
+
+/**
+ * An executor that can also deliver the elements of a multi-bulk reply
+ * to a consumer as they arrive.  Implemented by connections, pools and the
+ * replica router but not by things like RedisMulti that only see replies
+ * after the fact.
+ * 
+ * @author stella
+ *
+ */
+public interface RedisStreamingExecutor extends RedisExecutor {
+	/**
+	 * Execute a command, streaming the elements of its reply to the consumer
+	 * @param consumer
+	 * @param command
+	 */
+	public void execute(RedisStreamConsumer consumer, RedisCommand command);
+	
+	public void execute(RedisStreamConsumer consumer, String command, Object... arguments);
+}
@@ -0,0 +1,261 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.rcode.core.redis.Redis.SubscriptionHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves pub/sub message delivery off the I/O thread.  Each subscription (channel
+ * or pattern) gets a bounded FIFO queue that is run on the executor by at most
+ * one task at a time, so messages of one subscription are delivered in order
+ * while a slow handler only holds up its own subscription.
+ * <p>
+ * When a queue is full the overflow policy decides: drop the oldest queued
+ * message, drop the new one, or pause reading the subscription connection
+ * until every paused queue has drained to half its capacity.  When pausing,
+ * messages already read off the socket are still queued so the bound is soft.
+ * 
+ * @author stella
+ *
+ */
+public class RedisSubscriptionDispatcher {
+	private static final Logger logger=LoggerFactory.getLogger(RedisSubscriptionDispatcher.class);
+	
+	/**
+	 * Messages delivered by one task before yielding the executor to other
+	 * subscriptions
+	 */
+	private static final int DELIVERY_BATCH=64;
+	
+	public static enum OverflowPolicy {
+		DROP_OLDEST,
+		DROP_NEWEST,
+		PAUSE
+	}
+	
+	/**
+	 * Point in time counters for one subscription
+	 */
+	public static final class Stats {
+		public final String name;
+		public final int lag;
+		public final long delivered;
+		public final long dropped;
+		
+		Stats(String name, int lag, long delivered, long dropped) {
+			this.name=name;
+			this.lag=lag;
+			this.delivered=delivered;
+			this.dropped=dropped;
+		}
+		
+		@Override
+		public String toString() {
+			return name + "(lag=" + lag + ", delivered=" + delivered + ", dropped=" + dropped + ")";
+		}
+	}
+	
+	private static final class Entry {
+		final SubscriptionHandler[] handlers;
+		final String channel;
+		final RedisResult message;
+		
+		Entry(SubscriptionHandler[] handlers, String channel, RedisResult message) {
+			this.handlers=handlers;
+			this.channel=channel;
+			this.message=message;
+		}
+	}
+	
+	private final Executor executor;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ConcurrentHashMap<String, SubscriptionQueue> queues=new ConcurrentHashMap<String, SubscriptionQueue>();
+	private final AtomicInteger pausedQueues=new AtomicInteger();
+	private volatile Redis redis;
+	
+	public RedisSubscriptionDispatcher(Executor executor, int capacity, OverflowPolicy policy) {
+		if (capacity<1) throw new IllegalArgumentException("Capacity must be positive");
+		this.executor=executor;
+		this.capacity=capacity;
+		this.policy=policy;
+	}
+	
+	/**
+	 * Called when the dispatcher is installed on a connection
+	 * @param redis
+	 */
+	void attach(Redis redis) {
+		if (this.redis!=null && this.redis!=redis) {
+			throw new IllegalStateException("Dispatcher is already attached to a connection");
+		}
+		this.redis=redis;
+	}
+	
+	/**
+	 * @return true if reading is currently paused for overflow
+	 */
+	public boolean isPaused() {
+		return pausedQueues.get()>0;
+	}
+	
+	/**
+	 * Queue a message for delivery.  Called on the I/O thread.
+	 * @param name Subscription the message arrived on (channel or pattern)
+	 * @param handlers
+	 * @param channel
+	 * @param message
+	 */
+	void dispatch(String name, SubscriptionHandler[] handlers, String channel, RedisResult message) {
+		SubscriptionQueue queue=queues.get(name);
+		if (queue==null) {
+			queue=new SubscriptionQueue(name);
+			SubscriptionQueue existing=queues.putIfAbsent(name, queue);
+			if (existing!=null) queue=existing;
+		}
+		queue.offer(new Entry(handlers, channel, message));
+	}
+	
+	/**
+	 * @param name
+	 * @return counters for the subscription or null if it has never had a message
+	 */
+	public Stats getStats(String name) {
+		SubscriptionQueue queue=queues.get(name);
+		return queue!=null ? queue.getStats() : null;
+	}
+	
+	/**
+	 * @return counters of every subscription that has had a message
+	 */
+	public Map<String, Stats> getStats() {
+		Map<String, Stats> ret=new HashMap<String, Stats>();
+		for (SubscriptionQueue queue: queues.values()) {
+			ret.put(queue.name, queue.getStats());
+		}
+		return ret;
+	}
+	
+	private void setPaused(boolean paused) {
+		Redis localRedis=redis;
+		if (localRedis==null) return;
+		if (paused) {
+			if (pausedQueues.getAndIncrement()==0) {
+				logger.warn("Pausing subscription reads for slow handlers");
+				localRedis.setReadable(false);
+			}
+		} else {
+			if (pausedQueues.decrementAndGet()==0) {
+				logger.info("Resuming subscription reads");
+				localRedis.setReadable(true);
+			}
+		}
+	}
+	
+	private final class SubscriptionQueue implements Runnable {
+		final String name;
+		
+		// - guarded by this
+		final ArrayDeque<Entry> entries=new ArrayDeque<Entry>();
+		boolean scheduled;
+		boolean paused;
+		long delivered;
+		long dropped;
+		
+		SubscriptionQueue(String name) {
+			this.name=name;
+		}
+		
+		synchronized Stats getStats() {
+			return new Stats(name, entries.size(), delivered, dropped);
+		}
+		
+		void offer(Entry entry) {
+			boolean schedule=false;
+			boolean pause=false;
+			synchronized (this) {
+				if (entries.size()>=capacity) {
+					switch (policy) {
+					case DROP_OLDEST:
+						entries.poll();
+						entries.add(entry);
+						dropped++;
+						break;
+					case DROP_NEWEST:
+						dropped++;
+						break;
+					case PAUSE:
+						entries.add(entry);
+						if (!paused) {
+							paused=true;
+							pause=true;
+						}
+						break;
+					}
+				} else {
+					entries.add(entry);
+				}
+				
+				if (!scheduled && !entries.isEmpty()) {
+					scheduled=true;
+					schedule=true;
+				}
+			}
+			
+			if (pause) setPaused(true);
+			if (schedule) schedule();
+		}
+		
+		private void schedule() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// Still the only runner since scheduled is set
+				logger.error("Subscription executor rejected delivery.  Delivering inline.", e);
+				run();
+			}
+		}
+		
+		@Override
+		public void run() {
+			for (int i=0; i<DELIVERY_BATCH; i++) {
+				Entry entry;
+				boolean resume=false;
+				synchronized (this) {
+					entry=entries.poll();
+					if (entry==null) {
+						scheduled=false;
+					} else {
+						delivered++;
+					}
+					if (paused && entries.size()<=capacity/2) {
+						paused=false;
+						resume=true;
+					}
+				}
+				if (resume) setPaused(false);
+				if (entry==null) return;
+				
+				for (SubscriptionHandler handler: entry.handlers) {
+					try {
+						handler.handleMessage(entry.channel, entry.message);
+					} catch (Throwable t) {
+						logger.error("Error in message handler", t);
+					}
+				}
+			}
+			
+			// Give other subscriptions a turn
+			schedule();
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package net.rcode.core.redis;
+
+/**
+ * A redis command did not complete within its deadline, or was refused
+ * because repeated timeouts have opened the connection's circuit.
+ * 
+ * @author stella
+ *
+ */
+public class RedisTimeoutException extends RuntimeException {
+	private static final long serialVersionUID=1L;
+	
+	public RedisTimeoutException(String msg) {
+		super(msg);
+	}
+}
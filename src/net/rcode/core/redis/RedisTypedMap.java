@@ -0,0 +1,82 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * A redis hash with typed fields and values.  Like RedisAsyncMap, but values
+ * go through codecs instead of always being UTF-8 strings.
+ * 
+ * @author stella
+ *
+ * @param <K> field type
+ * @param <V> value type
+ */
+public class RedisTypedMap<K,V> {
+	protected RedisExecutor connection;
+	protected String key;
+	protected RedisCodec<K> fieldCodec;
+	protected RedisCodec<V> valueCodec;
+	
+	public RedisTypedMap(RedisExecutor connection, String key, RedisCodec<K> fieldCodec, RedisCodec<V> valueCodec) {
+		this.connection=connection;
+		this.key=key;
+		this.fieldCodec=fieldCodec;
+		this.valueCodec=valueCodec;
+	}
+	
+	/**
+	 * @param name
+	 * @return value or null
+	 */
+	public Promise<V> get(K name) {
+		return connection.execute("HGET", key, fieldCodec.encode(name)).chain(new Promise.Chain<RedisResult, V>() {
+			@Override
+			public V chain(RedisResult input) throws Throwable {
+				input.ifError();
+				return input.isNull() ? null : valueCodec.decode(input);
+			}
+		});
+	}
+	
+	public Promise<Boolean> put(K name, V value) {
+		return connection.execute("HSET", key, fieldCodec.encode(name), valueCodec.encode(value)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+	}
+	
+	public Promise<Boolean> contains(K name) {
+		return connection.execute("HEXISTS", key, fieldCodec.encode(name)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+	}
+	
+	public Promise<Boolean> remove(K name) {
+		return connection.execute("HDEL", key, fieldCodec.encode(name)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+	}
+	
+	public Promise<Map<K,V>> getAll() {
+		return connection.execute("HGETALL", key).chain(new Promise.Chain<RedisResult, Map<K,V>>() {
+			@Override
+			public Map<K, V> chain(RedisResult input) throws Throwable {
+				input.ifError();
+				RedisMultiResult multi=input.getAsMulti();
+				LinkedHashMap<K,V> ret=new LinkedHashMap<K, V>(multi.getCount());
+				for (int i=0; i+1<multi.getCount(); i+=2) {
+					ret.put(fieldCodec.decode(multi.get(i)), valueCodec.decode(multi.get(i+1)));
+				}
+				return ret;
+			}
+		});
+	}
+	
+	public Promise<Void> putAll(Map<K,V> updates) {
+		List<Object> arguments=new ArrayList<Object>(updates.size()*2+1);
+		arguments.add(key);
+		for (Map.Entry<K, V> entry: updates.entrySet()) {
+			arguments.add(fieldCodec.encode(entry.getKey()));
+			arguments.add(valueCodec.encode(entry.getValue()));
+		}
+		return connection.execute("HMSET", arguments.toArray()).chain(RedisConversions.RESULT_TO_VOID);
+	}
+}
@@ -0,0 +1,57 @@
+package net.rcode.core.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.rcode.core.async.Promise;
+
+/**
+ * A redis set with typed members.  Like RedisAsyncSet, but members go through
+ * a codec instead of always being UTF-8 strings.
+ * 
+ * @author stella
+ *
+ * @param <T> member type
+ */
+public class RedisTypedSet<T> {
+	protected RedisExecutor connection;
+	protected String key;
+	protected RedisCodec<T> codec;
+	
+	public RedisTypedSet(RedisExecutor connection, String key, RedisCodec<T> codec) {
+		this.connection=connection;
+		this.key=key;
+		this.codec=codec;
+	}
+	
+	public Promise<Boolean> add(T value) {
+		return connection.execute("SADD", key, codec.encode(value)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+	}
+	
+	public Promise<Boolean> remove(T value) {
+		return connection.execute("SREM", key, codec.encode(value)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+	}
+	
+	public Promise<Boolean> contains(T value) {
+		return connection.execute("SISMEMBER", key, codec.encode(value)).chain(RedisConversions.INTEGER_RESULT_TO_BOOLEAN);
+	}
+	
+	public Promise<Collection<T>> members() {
+		return connection.execute("SMEMBERS", key).chain(new Promise.Chain<RedisResult, Collection<T>>() {
+			@Override
+			public Collection<T> chain(RedisResult input) throws Throwable {
+				input.ifError();
+				RedisMultiResult multi=input.getAsMulti();
+				ArrayList<T> ret=new ArrayList<T>(multi.getCount());
+				for (int i=0; i<multi.getCount(); i++) {
+					ret.add(codec.decode(multi.get(i)));
+				}
+				return ret;
+			}
+		});
+	}
+	
+	public Promise<Integer> size() {
+		return connection.execute("SCARD", key).chain(RedisConversions.INTEGER_RESULT_TO_INTEGER);
+	}
+}
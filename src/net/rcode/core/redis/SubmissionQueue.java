@@ -0,0 +1,75 @@
+package net.rcode.core.redis;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.rcode.core.async.Promise;
+import net.rcode.core.redis.Redis.QueuedCommand;
+
+/**
+ * Intrusive multi-producer, single-consumer queue of commands awaiting
+ * transmission.  Producers link onto the tail with a single atomic swap and
+ * never block.  Only one thread at a time (the drainer) may consume.
+ * <p>
+ * The head is always a node that has already been consumed (or the initial
+ * stub) and the first live command is its successor.  A producer that has
+ * swapped the tail but not yet linked its predecessor makes the queue appear
+ * to end early.  It always triggers a drain after linking so nothing is lost.
+ * 
+ * @author stella
+ *
+ */
+final class SubmissionQueue {
+	private final AtomicReference<QueuedCommand> tail;
+	private QueuedCommand head;
+	
+	SubmissionQueue() {
+		QueuedCommand stub=new QueuedCommand(null, (Promise<RedisResult>)null);
+		head=stub;
+		tail=new AtomicReference<QueuedCommand>(stub);
+	}
+	
+	/**
+	 * Append a single command.  Safe from any thread.
+	 * @param qc
+	 */
+	void add(QueuedCommand qc) {
+		add(qc, qc);
+	}
+	
+	/**
+	 * Append a chain of commands already linked from first to last.  The
+	 * chain becomes visible to the consumer as a contiguous run.  Safe
+	 * from any thread.
+	 * @param first
+	 * @param last
+	 */
+	void add(QueuedCommand first, QueuedCommand last) {
+		last.next=null;
+		QueuedCommand prev=tail.getAndSet(last);
+		prev.next=first;
+	}
+	
+	/**
+	 * @return the next command without removing it or null.  Consumer only.
+	 */
+	QueuedCommand peek() {
+		return head.next;
+	}
+	
+	/**
+	 * @return the next command or null.  Consumer only.
+	 */
+	QueuedCommand poll() {
+		QueuedCommand next=head.next;
+		if (next==null) return null;
+		head=next;
+		return next;
+	}
+	
+	/**
+	 * @return true if there is nothing visible to the consumer.  Consumer only.
+	 */
+	boolean isEmpty() {
+		return head.next==null;
+	}
+}
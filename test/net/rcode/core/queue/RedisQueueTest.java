@@ -3,6 +3,8 @@ package net.rcode.core.queue;
 import java.util.HashMap;
 import java.util.Map;
 
+import net.rcode.core.redis.RedisCodecs;
+import net.rcode.core.redis.RedisCompressionCodec;
 import net.rcode.core.redis.RedisConnections;
 import net.rcode.core.redis.RedisManager;
 import net.rcode.mrsession.util.TestHelper;
@@ -52,6 +54,28 @@ public class RedisQueueTest {
 		client.commit(id2);
 	}
 	
+	@Test
+	public void testPooledPutTakeCommit() throws InterruptedException {
+		Map<String, String> msg=new HashMap<String, String>();
+		RedisQueue client=new RedisQueue(connections.getPool(), "testqueue3");
+		
+		msg.put("test", "1");
+		String id1=client.put(msg, 0).waitFor();
+		msg.put("test", "2");
+		String id2=client.put(msg, 0).waitFor();
+		
+		QueueEntry entry1=client.take().waitFor();
+		QueueEntry entry2=client.take().waitFor();
+		assertNull(client.take().waitFor());
+		
+		assertEquals(id1, entry1.id);
+		assertEquals(id2, entry2.id);
+		assertEquals("2", entry2.properties.get("test"));
+		
+		client.commit(id1).waitFor();
+		client.commit(id2).waitFor();
+	}
+	
 	@Test
 	public void testPutTakeWithExpiry() throws InterruptedException {
 		Map<String, String> msg=new HashMap<String, String>();
@@ -84,5 +108,23 @@ public class RedisQueueTest {
 		assertNull("entry should be null: " + entry, entry);
 	}
 
+	@Test
+	public void testCompressedPutTake() throws InterruptedException {
+		StringBuilder payload=new StringBuilder();
+		for (int i=0; i<200; i++) payload.append("{\"event\":\"click\",\"n\":").append(i).append('}');
+		
+		Map<String, String> msg=new HashMap<String, String>();
+		msg.put("payload", payload.toString());
+		msg.put("test", "1");
+		RedisCompressionCodec<String> codec=new RedisCompressionCodec<String>(RedisCodecs.STRING);
+		RedisQueue client=new RedisQueue(connections.getStreamingConnection(), "testqueue4", codec);
+		
+		String id=client.put(msg, 0).waitFor();
+		QueueEntry entry=client.take().waitFor();
+		assertEquals(id, entry.id);
+		assertEquals(msg, entry.properties);
+		assertEquals(1, codec.getCompressedCount());
+		client.commit(id).waitFor();
+	}
 }
 
@@ -0,0 +1,87 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+
+import net.rcode.core.redis.RedisCluster;
+import net.rcode.core.redis.RedisKeys;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The local server is not a cluster, so CLUSTER SLOTS fails and everything
+ * goes to the seed.  Redirects are simulated with a script that answers MOVED
+ * or ASK until it has been called a given number of times.
+ */
+public class RedisClusterTest {
+	private static final String REDIRECT="local n=redis.call('INCR', KEYS[1]) "
+		+ "if n<=tonumber(ARGV[2]) then return redis.error_reply(ARGV[1] .. ' 12182 127.0.0.1:6379') end "
+		+ "return n";
+	
+	private RedisCluster cluster;
+	
+	@Before
+	public void setup() {
+		RedisManager rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		cluster=new RedisCluster(rm, "127.0.0.1:6379");
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		cluster.quit().waitFor();
+	}
+	
+	@Test
+	public void testSlots() throws Exception {
+		assertEquals(12182, RedisKeys.slot("foo"));
+		assertEquals(0x31c3, RedisKeys.slot("123456789"));
+		assertEquals(RedisKeys.slot("user1000"), RedisKeys.slot("{user1000}.following"));
+		assertEquals(RedisKeys.slot("user1000"), RedisKeys.slot("user1000".getBytes("UTF-8")));
+		assertEquals(RedisKeys.slot("{}x"), RedisKeys.slot("{}x"));
+		for (int i=0; i<1000; i++) {
+			int slot=RedisKeys.slot("key" + i);
+			assertTrue(slot>=0 && slot<RedisKeys.SLOT_COUNT);
+		}
+	}
+	
+	@Test
+	public void testCommands() throws InterruptedException {
+		cluster.execute("SET", "clustertest.foo", "bar").waitFor();
+		assertEquals("bar", cluster.execute("GET", "clustertest.foo").waitFor().getString());
+		assertEquals("PONG", cluster.execute("PING").waitFor().getString());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testCrossSlot() {
+		cluster.execute("MGET", "clustertest.a", "clustertest.b");
+	}
+	
+	@Test
+	public void testMoved() throws InterruptedException {
+		cluster.execute("DEL", "clustertest.moved").waitFor();
+		RedisResult result=cluster.execute("EVAL", REDIRECT, 1, "clustertest.moved", "MOVED", 2).waitFor();
+		assertEquals(3, result.getInteger());
+	}
+	
+	@Test
+	public void testAsk() throws InterruptedException {
+		cluster.execute("DEL", "clustertest.ask").waitFor();
+		RedisResult result=cluster.execute("EVAL", REDIRECT, 1, "clustertest.ask", "ASK", 1).waitFor();
+		assertEquals(2, result.getInteger());
+	}
+	
+	@Test
+	public void testRedirectLimit() throws InterruptedException {
+		cluster.execute("DEL", "clustertest.limit").waitFor();
+		RedisResult result=cluster.execute("EVAL", REDIRECT, 1, "clustertest.limit", "MOVED", 100).waitFor();
+		assertEquals(RedisResult.TYPE_ERROR, result.getType());
+		assertTrue(result.getString().startsWith("MOVED"));
+		assertEquals(RedisCluster.MAX_REDIRECTS+1, cluster.execute("GET", "clustertest.limit").waitFor().getInteger());
+	}
+}
@@ -0,0 +1,158 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.rcode.core.async.Promise;
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisAsyncMap;
+import net.rcode.core.redis.RedisAsyncSet;
+import net.rcode.core.redis.RedisCoalescingExecutor;
+import net.rcode.core.redis.RedisCommand;
+import net.rcode.core.redis.RedisExecutor;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisCoalescingExecutorTest {
+	private RedisManager rm;
+	private Redis redis;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		redis=rm.connect();
+		redis.execute("DEL", "coalesce-hash", "coalesce-set").waitFor();
+		for (int i=0; i<10; i++) {
+			redis.execute("SET", "coalesce-" + i, "value" + i).waitFor();
+			redis.execute("HSET", "coalesce-hash", "field" + i, "hvalue" + i).waitFor();
+			redis.execute("SADD", "coalesce-set", "member" + i).waitFor();
+		}
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		RedisCoalescingExecutor executor=new RedisCoalescingExecutor(redis, 20);
+		RedisAsyncMap map=new RedisAsyncMap(executor, "coalesce-hash");
+		
+		List<Promise<RedisResult>> gets=new ArrayList<Promise<RedisResult>>();
+		List<Promise<String>> fields=new ArrayList<Promise<String>>();
+		for (int i=0; i<10; i++) {
+			gets.add(executor.execute("GET", "coalesce-" + i));
+			fields.add(map.get("field" + i));
+		}
+		Promise<RedisResult> missing=executor.execute("GET", "coalesce-missing");
+		Promise<Boolean> exists=map.contains("field3");
+		
+		for (int i=0; i<10; i++) {
+			assertEquals("value" + i, gets.get(i).waitFor().getString());
+			assertEquals("hvalue" + i, fields.get(i).waitFor());
+		}
+		assertTrue(missing.waitFor().isNull());
+		assertTrue(exists.waitFor());
+	}
+	
+	@Test
+	public void testSet() throws InterruptedException {
+		RedisCoalescingExecutor executor=new RedisCoalescingExecutor(redis, 20);
+		RedisAsyncSet set=new RedisAsyncSet(executor, "coalesce-set");
+		
+		Promise<Boolean> first=set.contains("member1");
+		Promise<Boolean> second=set.contains("member1");
+		Promise<Boolean> missing=set.contains("member-missing");
+		assertTrue(first.waitFor());
+		assertTrue(second.waitFor());
+		assertFalse(missing.waitFor());
+		assertEquals(10, set.members().waitFor().size());
+	}
+	
+	@Test
+	public void testDeduplicate() throws InterruptedException {
+		RedisCoalescingExecutor executor=new RedisCoalescingExecutor(redis, 20);
+		Promise<RedisResult> first=executor.execute("GET", "coalesce-1");
+		Promise<RedisResult> second=executor.execute("GET", "coalesce-1");
+		assertSame(first, second);
+		assertEquals("value1", second.waitFor().getString());
+	}
+	
+	@Test
+	public void testWriteOrder() throws InterruptedException {
+		RedisCoalescingExecutor executor=new RedisCoalescingExecutor(redis, 20);
+		Promise<RedisResult> before=executor.execute("GET", "coalesce-1");
+		executor.execute("SET", "coalesce-1", "changed");
+		Promise<RedisResult> after=executor.execute("GET", "coalesce-1");
+		
+		assertNotSame(before, after);
+		assertEquals("value1", before.waitFor().getString());
+		assertEquals("changed", after.waitFor().getString());
+	}
+	
+	@Test
+	public void testWriteWaitsForTimerFlush() throws InterruptedException {
+		final Thread caller=Thread.currentThread();
+		final CountDownLatch flushing=new CountDownLatch(1);
+		final CountDownLatch written=new CountDownLatch(1);
+		final List<String> sent=Collections.synchronizedList(new ArrayList<String>());
+		RedisExecutor slowReads=new RedisExecutor() {
+			@Override
+			public Promise<RedisResult> execute(RedisCommand command) {
+				return redis.execute(command);
+			}
+			@Override
+			public void execute(Promise<RedisResult> result, RedisCommand command) {
+				redis.execute(result, command);
+			}
+			@Override
+			public Promise<RedisResult> execute(String command, Object... arguments) {
+				Promise<RedisResult> result=new Promise<RedisResult>();
+				execute(result, command, arguments);
+				return result;
+			}
+			@Override
+			public void execute(Promise<RedisResult> result, String command, Object... arguments) {
+				if (Thread.currentThread()!=caller) {
+					// Timer flush: give the caller time to issue its write
+					flushing.countDown();
+					try {
+						written.await(200, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				sent.add(command);
+				redis.execute(result, command, arguments);
+			}
+			@Override
+			public void executeAndForget(String command, Object... arguments) {
+				sent.add(command);
+				redis.executeAndForget(command, arguments);
+			}
+		};
+		
+		RedisCoalescingExecutor executor=new RedisCoalescingExecutor(slowReads, rm.getTimer(), 1, RedisCoalescingExecutor.DEFAULT_MAX_BATCH);
+		Promise<RedisResult> before=executor.execute("GET", "coalesce-1");
+		assertTrue(flushing.await(5, TimeUnit.SECONDS));
+		Promise<RedisResult> write=executor.execute("SET", "coalesce-1", "changed");
+		written.countDown();
+		
+		assertEquals("value1", before.waitFor().getString());
+		write.waitFor();
+		assertEquals(Arrays.asList("GET", "SET"), sent);
+	}
+}
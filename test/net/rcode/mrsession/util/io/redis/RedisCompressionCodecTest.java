@@ -0,0 +1,93 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisAsyncMap;
+import net.rcode.core.redis.RedisCodecs;
+import net.rcode.core.redis.RedisCompressionCodec;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisPrimitiveResult;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisCompressionCodecTest {
+	private RedisManager rm;
+	private Redis redis;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		redis=rm.connect();
+		redis.execute("DEL", "compressiontest").waitFor();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		redis.quit().waitFor();
+	}
+	
+	private static String json(int records) {
+		StringBuilder sb=new StringBuilder("[");
+		for (int i=0; i<records; i++) {
+			if (i>0) sb.append(',');
+			sb.append("{\"id\":").append(i).append(",\"name\":\"record\",\"tags\":[\"a\",\"b\"],\"active\":true}");
+		}
+		return sb.append(']').toString();
+	}
+	
+	@Test
+	public void testMap() throws InterruptedException {
+		RedisCompressionCodec<String> codec=new RedisCompressionCodec<String>(RedisCodecs.STRING);
+		RedisAsyncMap map=new RedisAsyncMap(redis, "compressiontest", codec);
+		
+		String large=json(100);
+		Map<String,String> values=new HashMap<String,String>();
+		values.put("large", large);
+		values.put("small", "tiny é");
+		map.putAll(values).waitFor();
+		
+		assertEquals(large, map.get("large").waitFor());
+		assertEquals(values, map.getAll().waitFor());
+		assertNull(map.get("missing").waitFor());
+		
+		// Only the large value is stored compressed
+		RedisResult raw=redis.execute("HGET", "compressiontest", "large").waitFor();
+		assertTrue(raw.getChannelBuffer().readableBytes()<large.length()/4);
+		assertEquals("tiny é", redis.execute("HGET", "compressiontest", "small").waitFor().getString());
+		
+		assertEquals(1, codec.getCompressedCount());
+		assertEquals(large.length(), codec.getUncompressedBytes());
+		assertTrue(codec.getCompressionRatio()<0.25);
+		assertTrue(codec.getDecompressedCount()>=2);
+		
+		// Values written without the codec still read back
+		redis.execute("HSET", "compressiontest", "plain", large).waitFor();
+		assertEquals(large, map.get("plain").waitFor());
+	}
+	
+	@Test
+	public void testBinaryHeaderCollision() {
+		RedisCompressionCodec<byte[]> codec=new RedisCompressionCodec<byte[]>(RedisCodecs.BYTES);
+		byte[] value=new byte[] { (byte)0xff, 'Z', 1, 2, 3 };
+		byte[] encoded=(byte[]) codec.encode(value);
+		assertEquals(value.length+3, encoded.length);
+		assertArrayEquals(value, codec.decode(new RedisPrimitiveResult(RedisResult.TYPE_BULK, ByteBuffer.wrap(encoded))));
+		
+		// Random data does not shrink and is left alone
+		byte[] noise=new byte[4096];
+		new Random(1).nextBytes(noise);
+		noise[0]=0;
+		assertSame(noise, codec.encode(noise));
+	}
+}
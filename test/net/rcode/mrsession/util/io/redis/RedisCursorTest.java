@@ -0,0 +1,86 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisAsyncMap;
+import net.rcode.core.redis.RedisAsyncSet;
+import net.rcode.core.redis.RedisCursor;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisPipeline;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisCursorTest {
+	private RedisManager rm;
+	private Redis redis;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		redis=rm.connect();
+		
+		RedisPipeline pipeline=redis.pipeline();
+		pipeline.add("DEL", "cursor-hash", "cursor-set");
+		for (int i=0; i<1000; i++) {
+			pipeline.add("HSET", "cursor-hash", "field" + i, "value" + i);
+			pipeline.add("SADD", "cursor-set", "member" + i);
+		}
+		redis.execute(pipeline).waitFor();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testHashScan() throws InterruptedException {
+		RedisCursor<Map<String,String>> cursor=new RedisAsyncMap(redis, "cursor-hash").scan(100);
+		Map<String,String> all=new HashMap<String,String>();
+		int pages=0;
+		Map<String,String> page;
+		while ((page=cursor.next().waitFor())!=null) {
+			pages++;
+			all.putAll(page);
+		}
+		assertTrue(cursor.isDone());
+		assertTrue(pages>1);
+		assertEquals(1000, all.size());
+		assertEquals("value42", all.get("field42"));
+		assertNull(cursor.next().waitFor());
+	}
+	
+	@Test
+	public void testSetScan() throws InterruptedException {
+		RedisCursor<Collection<String>> cursor=new RedisAsyncSet(redis, "cursor-set").scan(100);
+		Set<String> all=new HashSet<String>();
+		Collection<String> page;
+		while ((page=cursor.next().waitFor())!=null) {
+			all.addAll(page);
+		}
+		assertEquals(1000, all.size());
+	}
+	
+	@Test
+	public void testKeyScan() throws InterruptedException {
+		RedisCursor<Collection<String>> cursor=redis.scan("cursor-*", 1000);
+		Set<String> all=new HashSet<String>();
+		Collection<String> page;
+		while ((page=cursor.next().waitFor())!=null) {
+			all.addAll(page);
+		}
+		assertTrue(all.contains("cursor-hash"));
+		assertTrue(all.contains("cursor-set"));
+	}
+}
@@ -0,0 +1,138 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisCachedAsyncMap;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisNearCache;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisNearCacheTest {
+	private RedisManager rm;
+	private Redis redis;
+	private Redis subscriber;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		redis=rm.connect();
+		subscriber=rm.connect();
+		redis.execute("DEL", "near-a", "near-b", "near-c").waitFor();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		subscriber.quit().waitFor();
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testHitsAndEviction() throws InterruptedException {
+		RedisNearCache cache=new RedisNearCache(2, RedisNearCache.DEFAULT_MAX_BYTES, RedisNearCache.DEFAULT_TTL);
+		redis.execute("HSET", "near-a", "f", "1").waitFor();
+		redis.execute("HSET", "near-b", "f", "2").waitFor();
+		redis.execute("HSET", "near-c", "f", "3").waitFor();
+		
+		RedisCachedAsyncMap a=new RedisCachedAsyncMap(redis, "near-a", cache);
+		assertEquals("1", a.get("f").waitFor());
+		assertEquals("1", a.get("f").waitFor());
+		assertTrue(a.contains("f").waitFor());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		
+		// Served from memory even though redis changed underneath
+		redis.execute("HSET", "near-a", "f", "changed").waitFor();
+		assertEquals("1", a.get("f").waitFor());
+		
+		new RedisCachedAsyncMap(redis, "near-b", cache).getAll().waitFor();
+		new RedisCachedAsyncMap(redis, "near-c", cache).getAll().waitFor();
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertEquals("changed", a.get("f").waitFor());
+	}
+	
+	@Test
+	public void testWriteInvalidates() throws InterruptedException {
+		RedisNearCache cache=new RedisNearCache();
+		RedisCachedAsyncMap a=new RedisCachedAsyncMap(redis, "near-a", cache);
+		assertNull(a.get("f").waitFor());
+		a.put("f", "1").waitFor();
+		assertEquals("1", a.get("f").waitFor());
+		
+		Map<String,String> all=a.getAll().waitFor();
+		all.put("f", "local");
+		assertEquals("1", a.get("f").waitFor());
+		
+		Map<String,String> updates=new HashMap<String,String>();
+		updates.put("f", "2");
+		a.putAll(updates).waitFor();
+		assertEquals("2", a.get("f").waitFor());
+	}
+	
+	@Test
+	public void testLoadInvalidation() {
+		RedisNearCache cache=new RedisNearCache();
+		Map<String,String> values=new HashMap<String,String>();
+		values.put("f", "1");
+		
+		RedisNearCache.Load a=cache.beginLoad("near-a");
+		RedisNearCache.Load b=cache.beginLoad("near-b");
+		cache.invalidate("near-b");
+		cache.put("near-a", values, a);
+		cache.put("near-b", values, b);
+		
+		// Only the load of the invalidated key is discarded
+		assertEquals("1", cache.get("near-a").get("f"));
+		assertNull(cache.get("near-b"));
+		
+		RedisNearCache.Load c=cache.beginLoad("near-c");
+		cache.invalidateAll();
+		cache.put("near-c", values, c);
+		assertNull(cache.get("near-c"));
+	}
+	
+	@Test
+	public void testChannelInvalidation() throws InterruptedException {
+		RedisNearCache cache=new RedisNearCache();
+		cache.listenChannel(subscriber, "near-invalidate");
+		// Let the subscription get established
+		for (int i=0; i<50; i++) {
+			if (redis.execute("PUBSUB", "NUMSUB", "near-invalidate").waitFor().getAsMulti().get(1).getLong()>0) break;
+			Thread.sleep(20);
+		}
+		
+		RedisCachedAsyncMap reader=new RedisCachedAsyncMap(redis, "near-a", cache);
+		assertNull(reader.get("f").waitFor());
+		
+		// Another process writing through its own cache
+		RedisCachedAsyncMap writer=new RedisCachedAsyncMap(redis, "near-a", new RedisNearCache(), "near-invalidate");
+		writer.put("f", "1").waitFor();
+		
+		for (int i=0; i<50 && cache.getInvalidations()==0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, cache.getInvalidations());
+		assertEquals("1", reader.get("f").waitFor());
+	}
+	
+	@Test
+	public void testTtl() throws InterruptedException {
+		RedisNearCache cache=new RedisNearCache(100, RedisNearCache.DEFAULT_MAX_BYTES, 50);
+		RedisCachedAsyncMap a=new RedisCachedAsyncMap(redis, "near-a", cache);
+		assertNull(a.get("f").waitFor());
+		redis.execute("HSET", "near-a", "f", "1").waitFor();
+		assertNull(a.get("f").waitFor());
+		
+		Thread.sleep(100);
+		assertEquals("1", a.get("f").waitFor());
+	}
+}
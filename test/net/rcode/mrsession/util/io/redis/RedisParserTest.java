@@ -1,16 +1,22 @@
 package net.rcode.mrsession.util.io.redis;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
+import net.rcode.core.io.BufferPool;
 import net.rcode.core.redis.DebugEvents;
 import net.rcode.core.redis.RedisParser;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.BasicConfigurator;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -48,6 +54,10 @@ public class RedisParserTest {
 			if (previous!=null) {
 				assertEquals("Current differs from previous at block size=" + blockSize + " (orig size=" + origBlockSize + ")", previous, results);
 			}
+			
+			streamBuffer.rewind();
+			assertEquals("ChannelBuffer parse differs at block size=" + blockSize, results, 
+					parseChannelBufferWithBlockSize(streamBuffer, blockSize));
 			previous=results;
 			blockSize-=1;
 		}
@@ -77,11 +87,43 @@ public class RedisParserTest {
 		System.out.println("  = '" + StringEscapeUtils.escapeJava(ret) + "'");
 		return ret;
 	}
-
+	
+	private String parseChannelBufferWithBlockSize(ByteBuffer streamBuffer, int blockSize) {
+		output.setLength(0);
+		
+		while (streamBuffer.hasRemaining()) {
+			int r=Math.min(blockSize, streamBuffer.remaining());
+			byte[] block=new byte[r];
+			streamBuffer.get(block);
+			parser.write(ChannelBuffers.wrappedBuffer(block));
+		}
+		
+		return output.toString();
+	}
+	
 	@Test
 	public void testPrimitives() throws IOException {
 		assertEquals("handleStatus(OK)\n", parse("+OK\r\n"));
 		assertEquals("handleStatus(OK)\nhandleError(Error)\nhandleInteger(12345)\n", parse("+OK\r\n-Error\r\n:12345\r\n"));
+		assertEquals("handleInteger(9223372036854775807)\nhandleInteger(-4294967296)\n", parse(":9223372036854775807\r\n:-4294967296\r\n"));
+	}
+	
+	@Test
+	public void testIntegerRange() throws IOException {
+		assertEquals("handleInteger(-9223372036854775808)\n", parse(":-9223372036854775808\r\n"));
+		assertIntegerOverflow(":9223372036854775808\r\n");
+		assertIntegerOverflow(":-9223372036854775809\r\n");
+		assertIntegerOverflow(":12345678901234567890\r\n");
+	}
+	
+	private void assertIntegerOverflow(String stream) throws IOException {
+		try {
+			parse(stream);
+			fail("Expected NumberFormatException for " + stream);
+		} catch (NumberFormatException e) {
+			// Expected - start the next stream on a fresh parser
+			setup();
+		}
 	}
 	
 	@Test
@@ -98,4 +140,86 @@ public class RedisParserTest {
 		assertEquals("handleStartMultiBulk(4)\nhandleBulk(first)\nhandleBulk(<null>)\nhandleBulk(done)\nhandleBulk(<null>)\nhandleEndMultiBulk()\n",
 				parse("*4\r\n$5\r\nfirst\r\n$-1\r\n$4\r\ndone\r\n$-1\r\n"));
 	}
+	
+	@Test
+	public void testNestedMultiBulk() throws IOException {
+		assertEquals("handleStartMultiBulk(2)\nhandleStartMultiBulk(2)\nhandleBulk(a)\nhandleInteger(1)\nhandleEndMultiBulk()\n" +
+				"handleStartMultiBulk(0)\nhandleEndMultiBulk()\nhandleEndMultiBulk()\n",
+				parse("*2\r\n*2\r\n$1\r\na\r\n:1\r\n*0\r\n"));
+		assertEquals("handleStartMultiBulk(2)\nhandleStartMultiBulk(1)\nhandleStartMultiBulk(1)\nhandleBulk(deep)\nhandleEndMultiBulk()\n" +
+				"handleEndMultiBulk()\nhandleBulk(<null>)\nhandleEndMultiBulk()\nhandleStatus(OK)\n",
+				parse("*2\r\n*1\r\n*1\r\n$4\r\ndeep\r\n$-1\r\n+OK\r\n"));
+	}
+	
+	@Test
+	public void testContainedBulkIsSlice() throws IOException {
+		final ChannelBuffer[] received=new ChannelBuffer[1];
+		RedisParser sliceParser=new RedisParser(new DebugEvents() {
+			@Override
+			public void handleBulk(ChannelBuffer contents) {
+				received[0]=contents;
+			}
+		});
+		
+		byte[] packet="$9\r\nsomevalue\r\n".getBytes("UTF-8");
+		sliceParser.write(ChannelBuffers.wrappedBuffer(packet));
+		assertSame(packet, received[0].array());
+		assertEquals("somevalue", received[0].toString(Charset.forName("UTF-8")));
+	}
+	
+	@Test
+	public void testLargeBulk() throws IOException {
+		String expected="handleStartMultiBulk(3)\nhandleBulk(0123456789)\nhandleBulk(abc)\nhandleBulk(<null>)\nhandleEndMultiBulk()\nhandleStatus(OK)\n";
+		String stream="*3\r\n$10\r\n0123456789\r\n$3\r\nabc\r\n$-1\r\n+OK\r\n";
+		
+		parser.setLargeBulkThreshold(4);
+		assertEquals(expected, parse(stream));
+		
+		parser.setSpillThreshold(4, null);
+		assertEquals(expected, parse(stream));
+	}
+	
+	@Test
+	public void testLargeBulkBlocks() throws IOException {
+		final ChannelBuffer[] received=new ChannelBuffer[1];
+		RedisParser blockParser=new RedisParser(new DebugEvents() {
+			@Override
+			public void handleBulk(ChannelBuffer contents) {
+				received[0]=contents;
+			}
+		});
+		blockParser.setLargeBulkThreshold(1024);
+		
+		byte[] value=new byte[200000];
+		for (int i=0; i<value.length; i++) value[i]=(byte)i;
+		byte[] header=("$" + value.length + "\r\n").getBytes("UTF-8");
+		blockParser.write(ChannelBuffers.wrappedBuffer(header));
+		for (int i=0; i<value.length; i+=1500) {
+			blockParser.write(ChannelBuffers.wrappedBuffer(value, i, Math.min(1500, value.length-i)));
+		}
+		blockParser.write(ChannelBuffers.wrappedBuffer("\r\n".getBytes("UTF-8")));
+		
+		assertEquals(ChannelBuffers.wrappedBuffer(value), received[0]);
+	}
+	
+	@Test
+	public void testAccumulationReleased() throws IOException {
+		BufferPool pool=RedisParser.getAccumulationPool();
+		
+		// A bulk spanning packets is accumulated and the buffer given back
+		parser.write(ChannelBuffers.wrappedBuffer("$10\r\n01234".getBytes("UTF-8")));
+		assertTrue(parser.getHeldBytes()>0);
+		parser.write(ChannelBuffers.wrappedBuffer("56789\r\n+O".getBytes("UTF-8")));
+		assertTrue(parser.getHeldBytes()>0);
+		parser.write(ChannelBuffers.wrappedBuffer("K\r\n".getBytes("UTF-8")));
+		assertEquals(0, parser.getHeldBytes());
+		assertEquals("handleBulk(0123456789)\nhandleStatus(OK)\n", output.toString());
+		
+		// The next accumulation is served from the pool
+		long hits=pool.getHits();
+		parser.write(ChannelBuffers.wrappedBuffer("+O".getBytes("UTF-8")));
+		parser.write(ChannelBuffers.wrappedBuffer("K\r\n".getBytes("UTF-8")));
+		assertTrue(pool.getHits()>hits);
+		assertEquals(0, parser.getHeldBytes());
+	}
 }
@@ -0,0 +1,72 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rcode.core.async.Promise;
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisAsyncMap;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisPool;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisPoolTest {
+	private RedisManager rm;
+	private RedisPool pool;
+	
+	@Before
+	public void setup() {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		pool=new RedisPool(rm, "localhost", RedisManager.DEFAULT_PORT, 3);
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		pool.quit().waitFor();
+	}
+	
+	@Test
+	public void testRouting() throws InterruptedException {
+		List<Promise<RedisResult>> results=new ArrayList<Promise<RedisResult>>();
+		for (int i=0; i<1000; i++) {
+			results.add(pool.execute("ECHO", "value" + i));
+		}
+		for (int i=0; i<1000; i++) {
+			assertEquals("value" + i, results.get(i).waitFor().getString());
+		}
+		
+		for (int i=0; i<pool.size(); i++) {
+			assertEquals(0, pool.getConnection().getOutstandingCount());
+		}
+	}
+	
+	@Test
+	public void testPinnedOrdering() throws InterruptedException {
+		Redis pinned=pool.getConnection("testpoolcounter");
+		assertSame(pinned, pool.getConnection("testpoolcounter"));
+		
+		pinned.execute("DEL", "testpoolcounter");
+		Promise<RedisResult> last=null;
+		for (int i=0; i<100; i++) {
+			last=pinned.execute("INCR", "testpoolcounter");
+		}
+		assertEquals(100, last.waitFor().getLong());
+		pinned.execute("DEL", "testpoolcounter").waitFor();
+	}
+	
+	@Test
+	public void testAsyncMap() throws InterruptedException {
+		RedisAsyncMap map=new RedisAsyncMap(pool, "testpoolmap");
+		assertTrue(map.put("a", "1").waitFor());
+		assertEquals("1", map.get("a").waitFor());
+		assertTrue(map.remove("a").waitFor());
+	}
+}
@@ -0,0 +1,202 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rcode.core.async.Promise;
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisReconnectTest {
+	private RedisManager rm;
+	private Redis admin;
+	
+	@Before
+	public void setup() {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		admin=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions()).connect();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		admin.quit().waitFor();
+	}
+	
+	/**
+	 * Drop every client connection but the admin's
+	 */
+	private void killClients() throws InterruptedException {
+		admin.execute("CLIENT", "KILL", "TYPE", "normal").waitFor().ifError();
+	}
+	
+	@Test
+	public void testReconnectReplaysSetup() throws InterruptedException, IOException {
+		rm.setDatabase(15);
+		Redis redis=rm.connect();
+		redis.setReconnectDelay(20, 200);
+		redis.execute("SET", "testreconnect", "db15").waitFor().ifError();
+		
+		killClients();
+		
+		// Commands on the wire at the time fail, later ones run on the new connection
+		RedisResult result=null;
+		for (int i=0; i<100; i++) {
+			result=redis.execute("GET", "testreconnect").waitFor();
+			if (result.getType()!=RedisResult.TYPE_ERROR) break;
+			Thread.sleep(50);
+		}
+		assertEquals("db15", result.getString());
+		
+		redis.execute("DEL", "testreconnect").waitFor();
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testReconnectAuthenticatesFirst() throws InterruptedException, IOException {
+		rm.setDatabase(15);
+		Redis redis=rm.connect();
+		redis.setReconnectDelay(20, 200);
+		redis.execute("SET", "testreconnectauth", "db15").waitFor().ifError();
+		
+		// Connections made before the password was set stay authenticated
+		admin.execute("CONFIG", "SET", "requirepass", "testsecret").waitFor().ifError();
+		try {
+			admin.execute("AUTH", "testsecret").waitFor().ifError();
+			redis.execute("AUTH", "testsecret").waitFor().ifError();
+			killClients();
+			
+			// SELECT was registered before AUTH but has to be replayed after it
+			RedisResult result=null;
+			for (int i=0; i<100; i++) {
+				result=redis.execute("GET", "testreconnectauth").waitFor();
+				if (result.getType()!=RedisResult.TYPE_ERROR) break;
+				Thread.sleep(50);
+			}
+			assertEquals("db15", result.getString());
+			redis.execute("DEL", "testreconnectauth").waitFor();
+		} finally {
+			admin.execute("CONFIG", "SET", "requirepass", "").waitFor();
+			redis.quit().waitFor();
+		}
+	}
+	
+	@Test
+	public void testSetupCommandSentOnce() throws InterruptedException, IOException {
+		admin.execute("CONFIG", "RESETSTAT").waitFor().ifError();
+		Redis redis=rm.connect();
+		
+		// Issued before the connection is bound, so the replay is the only send
+		assertEquals("OK", redis.execute("SELECT", "15").waitFor().getString());
+		String stats=admin.execute("INFO", "commandstats").waitFor().getString();
+		assertTrue(stats, stats.contains("cmdstat_select:calls=1,"));
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testReconnectResubscribes() throws InterruptedException, IOException {
+		Redis redis=rm.connect();
+		redis.setReconnectDelay(20, 200);
+		final List<String> messages=new ArrayList<String>();
+		redis.subscribe(new Redis.SubscriptionHandler() {
+			@Override
+			public void handleMessage(String channel, RedisResult message) {
+				synchronized (messages) {
+					messages.add(message.getString());
+				}
+			}
+		}, "testreconnectchannel");
+		
+		killClients();
+		
+		for (int i=0; i<100; i++) {
+			admin.execute("PUBLISH", "testreconnectchannel", "hello").waitFor();
+			synchronized (messages) {
+				if (!messages.isEmpty()) break;
+			}
+			Thread.sleep(50);
+		}
+		synchronized (messages) {
+			assertFalse(messages.isEmpty());
+			assertEquals("hello", messages.get(0));
+		}
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testReconnectResubscribesBeyondInFlightLimit() throws InterruptedException, IOException {
+		Redis redis=rm.connect();
+		redis.setReconnectDelay(20, 200);
+		String[] channels=new String[Redis.DEFAULT_MAX_IN_FLIGHT + 1000];
+		for (int i=0; i<channels.length; i++) {
+			channels[i]="testreconnectmany" + i;
+		}
+		redis.subscribe(new Redis.SubscriptionHandler() {
+			@Override
+			public void handleMessage(String channel, RedisResult message) {
+			}
+		}, channels);
+		
+		killClients();
+		
+		String subscriber=null;
+		for (int i=0; i<100 && subscriber==null; i++) {
+			Thread.sleep(50);
+			subscriber=findSubscriber(channels.length);
+		}
+		assertNotNull(subscriber);
+		
+		// All acknowledgements are consumed without dropping the connection
+		for (int i=0; i<200 && redis.getOutstandingCount()>0; i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, redis.getOutstandingCount());
+		assertEquals(subscriber, findSubscriber(channels.length));
+		redis.quit().waitFor();
+	}
+	
+	/**
+	 * @return address of the client subscribed to this many channels, or null
+	 */
+	private String findSubscriber(int channelCount) throws InterruptedException {
+		String clients=admin.execute("CLIENT", "LIST").waitFor().getString();
+		for (String client: clients.split("\n")) {
+			if (!client.contains(" sub=" + channelCount + " ")) continue;
+			for (String field: client.split(" ")) {
+				if (field.startsWith("addr=")) return field;
+			}
+		}
+		return null;
+	}
+	
+	@Test
+	public void testOfflineBound() throws InterruptedException, IOException {
+		// Nothing listens on port 1 so every attempt fails
+		Redis redis=rm.connect("localhost", 1);
+		redis.setReconnectDelay(1000, 1000);
+		redis.setMaxOfflineCommands(5);
+		Thread.sleep(500);
+		
+		List<Promise<RedisResult>> results=new ArrayList<Promise<RedisResult>>();
+		for (int i=0; i<10; i++) {
+			results.add(redis.execute("PING"));
+		}
+		for (int i=0; i<10; i++) {
+			assertEquals(i>=5, results.get(i).isComplete());
+		}
+		
+		// Quitting fails whatever is still held
+		redis.quit().waitFor();
+		for (int i=0; i<10; i++) {
+			assertEquals(RedisResult.TYPE_ERROR, results.get(i).waitFor().getType());
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisAsyncSet;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisReplicaRouter;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Database 12 of the local server stands in for the primary and database 13
+ * for its replica, so a read only sees a write if it went to the primary.
+ */
+public class RedisReplicaRouterTest {
+	private Redis primary;
+	private Redis replica;
+	private RedisReplicaRouter router;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		primary=connect(12);
+		replica=connect(13);
+		router=new RedisReplicaRouter(primary, replica);
+		primary.execute("DEL", "replicatest", "replicatest-set").waitFor();
+		replica.execute("DEL", "replicatest", "replicatest-set").waitFor();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		router.quit().waitFor();
+	}
+	
+	private Redis connect(int database) {
+		RedisManager rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		rm.setDatabase(database);
+		return rm.connect();
+	}
+	
+	@Test
+	public void testRouting() throws InterruptedException {
+		router.execute("SET", "replicatest", "primary").waitFor();
+		assertTrue(router.execute("GET", "replicatest").waitFor().isNull());
+		assertEquals("primary", primary.execute("GET", "replicatest").waitFor().getString());
+		
+		replica.execute("SET", "replicatest", "replica").waitFor();
+		assertEquals("replica", router.execute("get", "replicatest").waitFor().getString());
+	}
+	
+	@Test
+	public void testSet() throws InterruptedException {
+		RedisAsyncSet set=new RedisAsyncSet(router, "replicatest-set");
+		set.add("primary").waitFor();
+		replica.execute("SADD", "replicatest-set", "replica1", "replica2").waitFor();
+		
+		// Members are streamed from the replica
+		assertEquals(2, set.members().waitFor().size());
+		assertTrue(set.contains("replica1").waitFor());
+		assertFalse(set.contains("primary").waitFor());
+	}
+	
+	@Test
+	public void testReadYourWrites() throws InterruptedException {
+		router.setReadYourWritesWindow(60000);
+		RedisReplicaRouter.Session other=router.session();
+		
+		router.execute("SET", "replicatest", "primary").waitFor();
+		assertEquals("primary", router.execute("GET", "replicatest").waitFor().getString());
+		
+		// Another caller has not written so still reads from the replica
+		assertTrue(other.execute("GET", "replicatest").waitFor().isNull());
+	}
+	
+	@Test
+	public void testFallback() throws InterruptedException, IOException {
+		router.execute("SET", "replicatest", "primary").waitFor();
+		assertTrue(router.isAvailable(0));
+		
+		RedisManager rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		RedisReplicaRouter down=new RedisReplicaRouter(primary, rm.connect("127.0.0.1", 1));
+		assertFalse(down.isAvailable(0));
+		assertEquals("primary", down.execute("GET", "replicatest").waitFor().getString());
+	}
+	
+	@Test
+	public void testHealthCheck() throws InterruptedException {
+		router.startHealthCheck(50, 0);
+		Thread.sleep(200);
+		// Not actually replicating, so nothing to lag behind
+		assertTrue(router.isAvailable(0));
+	}
+}
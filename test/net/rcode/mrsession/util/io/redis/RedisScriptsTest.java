@@ -0,0 +1,69 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.core.redis.RedisScript;
+import net.rcode.core.redis.RedisScripts;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisScriptsTest {
+	private static final String INCR_BY_ARG="return redis.call('INCRBY', KEYS[1], ARGV[1])";
+	
+	private RedisManager rm;
+	private Redis redis;
+	
+	@Before
+	public void setup() {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		redis=rm.connect();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testSha() {
+		// Known SHA1 of the empty string
+		assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", new RedisScript("empty", "").getSha());
+	}
+	
+	@Test
+	public void testPreload() throws InterruptedException {
+		RedisScripts scripts=new RedisScripts();
+		RedisScript script=scripts.register("incrBy", INCR_BY_ARG);
+		redis.execute("SCRIPT", "FLUSH").waitFor();
+		
+		scripts.attach(redis);
+		RedisResult exists=redis.execute("SCRIPT", "EXISTS", script.getSha()).waitFor();
+		assertEquals(1, exists.getAsMulti().get(0).getInteger());
+		
+		// Registering after attach loads too
+		RedisScript echo=scripts.register("echo", "return ARGV[1]");
+		exists=redis.execute("SCRIPT", "EXISTS", echo.getSha()).waitFor();
+		assertEquals(1, exists.getAsMulti().get(0).getInteger());
+	}
+	
+	@Test
+	public void testNoScriptFallback() throws InterruptedException {
+		RedisScripts scripts=new RedisScripts();
+		scripts.register("incrBy", INCR_BY_ARG);
+		redis.execute("DEL", "script-counter").waitFor();
+		redis.execute("SCRIPT", "FLUSH").waitFor();
+		
+		Object[] keys=new Object[] { "script-counter" };
+		assertEquals(5, scripts.execute(redis, "incrBy", keys, 5).waitFor().getLong());
+		// The fallback EVAL cached it again so this one goes through EVALSHA
+		assertEquals(7, scripts.execute(redis, "incrBy", keys, 2).waitFor().getLong());
+	}
+}
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 
+import net.rcode.core.io.BufferPool;
 import net.rcode.core.redis.RedisSerializer;
 
 import org.junit.Test;
@@ -29,5 +30,41 @@ public class RedisSerializerTest {
 		String msg=cb.toString();
 		assertEquals("*3\r\n$3\r\nSET\r\n$5\r\nmykey\r\n$17\r\nmyvalue1234567890\r\n", msg);
 	}
-
+	
+	private String serializeToString(RedisSerializer serializer, String command, Object... arguments) {
+		ByteBuffer b=serializer.serialize(command, arguments);
+		return Charset.forName("UTF8").decode(b).toString();
+	}
+	
+	@Test
+	public void testArgumentTypes() {
+		RedisSerializer serializer=new RedisSerializer();
+		assertEquals("*6\r\n$6\r\nEXPIRE\r\n$3\r\nkey\r\n$2\r\n10\r\n$20\r\n-9223372036854775808\r\n$0\r\n\r\n$3\r\nabc\r\n", 
+				serializeToString(serializer, "EXPIRE", "key", 10, Long.MIN_VALUE, null, new byte[] { 'a', 'b', 'c' }));
+		assertEquals("*3\r\n$5\r\nsetex\r\n$3\r\n1.5\r\n$2\r\nxy\r\n", 
+				serializeToString(serializer, "setex", 1.5, ByteBuffer.wrap(new byte[] { 'x', 'y' })));
+	}
+	
+	@Test
+	public void testUtf8() {
+		RedisSerializer serializer=new RedisSerializer();
+		String value="caf\u00e9 \u20ac \ud83d\ude00";
+		int length=value.getBytes(Charset.forName("UTF8")).length;
+		assertEquals("*2\r\n$3\r\nGET\r\n$" + length + "\r\n" + value + "\r\n", 
+				serializeToString(serializer, "GET", new StringBuilder(value)));
+	}
+	
+	@Test
+	public void testPooledBuffers() {
+		BufferPool pool=new BufferPool(true);
+		RedisSerializer serializer=new RedisSerializer(Charset.forName("UTF8"), pool);
+		ByteBuffer first=serializer.serialize("SET", "mykey", "myvalue");
+		assertTrue(first.isDirect());
+		pool.release(first);
+		
+		ByteBuffer second=serializer.serialize("SET", "mykey", "othervalue");
+		assertSame(first, second);
+		assertEquals("*3\r\n$3\r\nSET\r\n$5\r\nmykey\r\n$10\r\nothervalue\r\n", 
+				Charset.forName("UTF8").decode(second).toString());
+	}
 }
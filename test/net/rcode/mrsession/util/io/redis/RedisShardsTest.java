@@ -0,0 +1,161 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisExecutor;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisMultiResult;
+import net.rcode.core.redis.RedisResult;
+import net.rcode.core.redis.RedisSerializer;
+import net.rcode.core.redis.RedisShards;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Shards over databases 12-14 of the local server, which stand in for
+ * separate servers.  Pass "host:port" names to the RedisShards constructor
+ * to run against several real instances.
+ */
+public class RedisShardsTest {
+	private static final String[] NAMES=new String[] { "node0", "node1", "node2" };
+	private Redis[] connections;
+	private RedisShards shards;
+	
+	@Before
+	public void setup() {
+		connections=new Redis[NAMES.length];
+		for (int i=0; i<NAMES.length; i++) {
+			RedisManager rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+			rm.setDatabase(12+i);
+			connections[i]=rm.connect();
+		}
+		shards=new RedisShards(NAMES, connections);
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		shards.quit().waitFor();
+	}
+	
+	@Test
+	public void testDistribution() {
+		int[] counts=new int[NAMES.length];
+		for (int i=0; i<30000; i++) {
+			counts[shards.getNodeIndex("key" + i)]++;
+		}
+		for (int count: counts) {
+			assertTrue("Uneven distribution: " + count, count>7000 && count<13000);
+		}
+	}
+	
+	@Test
+	public void testHashTags() throws Exception {
+		int index=shards.getNodeIndex("{user1000}.following");
+		assertEquals(index, shards.getNodeIndex("{user1000}.followers"));
+		assertEquals(index, shards.getNodeIndex("user1000"));
+		assertEquals(index, shards.getNodeIndex("user1000".getBytes("UTF-8")));
+		assertEquals(shards.getNodeIndex("{}x"), shards.getNodeIndex("{}x"));
+	}
+	
+	@Test
+	public void testStability() {
+		// Adding a node only moves keys to the new node
+		RedisShards grown=new RedisShards(new String[] { "node0", "node1", "node2", "node3" },
+				new RedisExecutor[] { connections[0], connections[1], connections[2], connections[0] });
+		int moved=0;
+		for (int i=0; i<10000; i++) {
+			int before=shards.getNodeIndex("key" + i);
+			int after=grown.getNodeIndex("key" + i);
+			if (before!=after) {
+				assertEquals(3, after);
+				moved++;
+			}
+		}
+		assertTrue(moved>1500 && moved<3500);
+	}
+	
+	@Test
+	public void testFanOut() throws InterruptedException {
+		Object[] keysAndValues=new Object[40];
+		Object[] keys=new Object[20];
+		for (int i=0; i<20; i++) {
+			keys[i]="testshard" + i;
+			keysAndValues[i*2]=keys[i];
+			keysAndValues[i*2+1]="value" + i;
+		}
+		
+		assertEquals(RedisResult.TYPE_STATUS, shards.mset(keysAndValues).waitFor().getType());
+		
+		// Each key lives only on its own node
+		for (int i=0; i<20; i++) {
+			int owner=shards.getNodeIndex(keys[i]);
+			for (int n=0; n<connections.length; n++) {
+				RedisResult value=connections[n].execute("GET", keys[i]).waitFor();
+				assertEquals(n==owner, !value.isNull());
+			}
+			assertEquals("value" + i, shards.execute("GET", keys[i]).waitFor().getString());
+		}
+		
+		RedisMultiResult values=shards.mget(keys).waitFor().getAsMulti();
+		assertEquals(20, values.getCount());
+		for (int i=0; i<20; i++) {
+			assertEquals("value" + i, values.get(i).getString());
+		}
+		
+		assertEquals(20, shards.del(keys).waitFor().getLong());
+		assertTrue(shards.mget(keys).waitFor().getAsMulti().get(0).isNull());
+	}
+	
+	@Test
+	public void testFanOutUsesNodeSerializer() throws IOException, InterruptedException {
+		Charset latin1=Charset.forName("ISO-8859-1");
+		Redis[] latin1Connections=new Redis[NAMES.length];
+		for (int i=0; i<NAMES.length; i++) {
+			RedisManager rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+			rm.setDatabase(12+i);
+			rm.setSerializer(new RedisSerializer(latin1));
+			latin1Connections[i]=rm.connect();
+		}
+		RedisShards latin1Shards=new RedisShards(NAMES, latin1Connections);
+		
+		Object[] keysAndValues=new Object[20];
+		Object[] keys=new Object[10];
+		for (int i=0; i<10; i++) {
+			keys[i]="testshardlatin" + i;
+			keysAndValues[i*2]=keys[i];
+			keysAndValues[i*2+1]="caf\u00e9";
+		}
+		assertEquals(RedisResult.TYPE_STATUS, latin1Shards.mset(keysAndValues).waitFor().getType());
+		
+		// One byte per character, as the node would have written it
+		for (int i=0; i<10; i++) {
+			assertEquals(4, latin1Shards.execute("STRLEN", keys[i]).waitFor().getLong());
+		}
+		assertEquals(10, latin1Shards.del(keys).waitFor().getLong());
+		latin1Shards.quit().waitFor();
+	}
+	
+	@Test
+	public void testEmptyFanOut() throws InterruptedException {
+		assertEquals(0, shards.mget().waitFor().getAsMulti().getCount());
+		assertEquals(0, shards.del().waitFor().getLong());
+		assertEquals(RedisResult.TYPE_STATUS, shards.mset().waitFor().getType());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testSpanningCommandRejected() {
+		String other=null;
+		int index=shards.getNodeIndex("a");
+		for (int i=0; other==null; i++) {
+			if (shards.getNodeIndex("b" + i)!=index) other="b" + i;
+		}
+		shards.execute("MGET", "a", other);
+	}
+}
@@ -1,10 +1,25 @@
 package net.rcode.mrsession.util.io.redis;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import net.rcode.core.async.Promise;
 import net.rcode.core.redis.Redis;
 import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisMulti;
+import net.rcode.core.redis.RedisPipeline;
 import net.rcode.core.redis.RedisResult;
+import net.rcode.core.redis.RedisStreamConsumer;
+import net.rcode.core.redis.RedisSubscriptionDispatcher;
+import net.rcode.core.redis.RedisTimeoutException;
 import net.rcode.core.redis.Redis.SubscriptionHandler;
 import net.rcode.mrsession.util.TestHelper;
 
@@ -14,16 +29,18 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.*;
+
 
 public class RedisTest {
 	private static RedisManager rm;
 	private Redis redis;
-
+	
 	@BeforeClass
 	public static void init() throws IOException {
 		BasicConfigurator.configure();
 	}
-
+	
 	
 	@Before
 	public void setup() throws InterruptedException, IOException {
@@ -38,6 +55,7 @@ public class RedisTest {
 		System.out.println("==== > Tearing down redis");
 		redis.quit().waitFor();
 		redis=null;
+		rm.close();
 	}
 	
 	@Test
@@ -47,7 +65,7 @@ public class RedisTest {
 		result=redis.execute("PING").waitFor();
 		System.out.println("Got result: " + result);
 	}
-
+	
 	@Test
 	public void testPing2() throws IOException, InterruptedException {
 		RedisResult result;
@@ -61,7 +79,7 @@ public class RedisTest {
 		result=redis.execute("PING").waitFor();
 		System.out.println("Got result: " + result);
 	}
-
+	
 	@Test
 	public void testPubSub() throws InterruptedException, IOException {
 		Redis subRedis=rm.connect();
@@ -85,4 +103,379 @@ public class RedisTest {
 		
 		Thread.sleep(1000);
 	}
+	
+	@Test
+	public void testPatternSubscribe() throws InterruptedException, IOException {
+		Redis subRedis=rm.connect();
+		final List<String> received=new ArrayList<String>();
+		SubscriptionHandler handler=new SubscriptionHandler() {
+			@Override
+			public void handleMessage(String channel, RedisResult message) {
+				synchronized (received) {
+					received.add(channel + "=" + message.getString());
+					received.notifyAll();
+				}
+			}
+		};
+		subRedis.psubscribe(handler, "testpattern.*");
+		subRedis.subscribe(handler, "testpattern.direct");
+		Thread.sleep(500);
+		
+		redis.execute("PUBLISH", "testpattern.a", "1").waitFor();
+		redis.execute("PUBLISH", "testpattern.direct", "2").waitFor();
+		redis.execute("PUBLISH", "other", "3").waitFor();
+		
+		synchronized (received) {
+			long deadline=System.currentTimeMillis()+5000;
+			while (received.size()<3 && System.currentTimeMillis()<deadline) {
+				received.wait(100);
+			}
+			// The direct channel matches both subscriptions
+			assertEquals(3, received.size());
+			assertTrue(received.contains("testpattern.a=1"));
+			assertTrue(received.contains("testpattern.direct=2"));
+		}
+		
+		subRedis.punsubscribe(handler, "testpattern.*");
+		subRedis.unsubscribe(handler, "testpattern.direct");
+		
+		// Back out of the subscription state
+		assertEquals("PONG", subRedis.execute("PING").waitFor().getString());
+		subRedis.quit().waitFor();
+	}
+	
+	@Test
+	public void testSubscribeAfterCommand() throws InterruptedException, IOException {
+		final int count=20;
+		byte[] value=new byte[2*1024*1024];
+		Redis[] subscribers=new Redis[count];
+		SubscriptionHandler handler=new SubscriptionHandler() {
+			@Override
+			public void handleMessage(String channel, RedisResult message) {
+			}
+		};
+		for (int i=0; i<count; i++) {
+			subscribers[i]=rm.connect();
+			subscribers[i].execute("PING").waitFor();
+			// Keep the write below the high watermark so that it does not suspend
+			subscribers[i].setWriteWatermarks(value.length*2, value.length*4);
+			
+			// The subscribe is queued while the SET is still being written
+			subscribers[i].execute("SET", "testsubscribeafter" + i, value);
+			subscribers[i].subscribe(handler, "testsubscribeafter");
+		}
+		
+		long receivers=0;
+		long deadline=System.currentTimeMillis()+5000;
+		while (System.currentTimeMillis()<deadline) {
+			receivers=redis.execute("PUBLISH", "testsubscribeafter", "x").waitFor().getInteger();
+			if (receivers==count) break;
+			Thread.sleep(50);
+		}
+		assertEquals(count, receivers);
+		
+		for (int i=0; i<count; i++) {
+			subscribers[i].quit().waitFor();
+			redis.execute("DEL", "testsubscribeafter" + i).waitFor();
+		}
+	}
+	
+	@Test
+	public void testSubscriptionDispatcher()throws InterruptedException, IOException {
+		ExecutorService executor=Executors.newSingleThreadExecutor();
+		RedisSubscriptionDispatcher dispatcher=new RedisSubscriptionDispatcher(executor, 2,
+				RedisSubscriptionDispatcher.OverflowPolicy.DROP_NEWEST);
+		Redis subRedis=rm.connect();
+		subRedis.setSubscriptionDispatcher(dispatcher);
+		
+		final CountDownLatch entered=new CountDownLatch(1);
+		final CountDownLatch release=new CountDownLatch(1);
+		final List<String> received=new ArrayList<String>();
+		subRedis.subscribe(new SubscriptionHandler() {
+			@Override
+			public void handleMessage(String channel, RedisResult message) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+				synchronized (received) {
+					received.add(message.getString());
+				}
+			}
+		}, "testdispatch");
+		Thread.sleep(500);
+		
+		// The first message blocks the handler, two more fit in the queue
+		redis.execute("PUBLISH", "testdispatch", "1").waitFor();
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		for (int i=2; i<=5; i++) {
+			redis.execute("PUBLISH", "testdispatch", String.valueOf(i)).waitFor();
+		}
+		Thread.sleep(200);
+		
+		RedisSubscriptionDispatcher.Stats stats=dispatcher.getStats("testdispatch");
+		assertEquals(2, stats.lag);
+		assertEquals(2, stats.dropped);
+		
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("1", "2", "3"), received);
+		subRedis.quit().waitFor();
+	}
+	
+	@Test
+	public void testLongIntegers() throws InterruptedException {
+		redis.execute("SET", "testlongcounter", Long.MAX_VALUE-10);
+		RedisResult result=redis.execute("INCRBY", "testlongcounter", 5).waitFor();
+		assertEquals(Long.MAX_VALUE-5, result.getLong());
+		
+		result=redis.execute("GET", "testlongcounter").waitFor();
+		assertEquals(Long.MAX_VALUE-5, result.getLong());
+		redis.execute("DEL", "testlongcounter").waitFor();
+	}
+	
+	@Test
+	public void testStreaming() throws InterruptedException {
+		redis.execute("DEL", "teststreamlist");
+		for (int i=0; i<100; i++) {
+			redis.execute("RPUSH", "teststreamlist", "item" + i);
+		}
+		
+		final List<String> items=new ArrayList<String>();
+		final boolean[] ended=new boolean[1];
+		redis.execute(new RedisStreamConsumer() {
+			@Override
+			public void handleElement(RedisResult element) {
+				items.add(element.getString());
+			}
+			@Override
+			public void handleEnd() {
+				ended[0]=true;
+			}
+			@Override
+			public void handleError(Throwable error) {
+				fail("Unexpected error: " + error);
+			}
+		}, "LRANGE", "teststreamlist", 0, -1);
+		
+		// Commands are pipelined so this completes after the stream
+		redis.execute("DEL", "teststreamlist").waitFor();
+		assertTrue(ended[0]);
+		assertEquals(100, items.size());
+		assertEquals("item0", items.get(0));
+		assertEquals("item99", items.get(99));
+	}
+	
+	@Test
+	public void testConcurrentSubmission() throws InterruptedException {
+		final int threadCount=4, perThread=2000;
+		final List<Promise<RedisResult>> results=new ArrayList<Promise<RedisResult>>();
+		Thread[] threads=new Thread[threadCount];
+		for (int t=0; t<threadCount; t++) {
+			final int id=t;
+			threads[t]=new Thread() {
+				public void run() {
+					List<Promise<RedisResult>> mine=new ArrayList<Promise<RedisResult>>(perThread);
+					for (int i=0; i<perThread; i++) {
+						mine.add(redis.execute("ECHO", id + ":" + i));
+					}
+					synchronized (results) {
+						results.addAll(mine);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread: threads) thread.join();
+		
+		assertEquals(threadCount*perThread, results.size());
+		for (int t=0; t<threadCount; t++) {
+			String id=results.get(t*perThread).waitFor().getString().split(":")[0];
+			for (int i=0; i<perThread; i++) {
+				// Each thread's replies line up with its own commands
+				RedisResult result=results.get(t*perThread+i).waitFor();
+				assertEquals(id + ":" + i, result.getString());
+			}
+		}
+	}
+	
+	@Test
+	public void testWriteWatermarks() throws InterruptedException {
+		// Every gathered write crosses the high watermark and suspends writing
+		redis.setWriteWatermarks(1024, 4096);
+		redis.setTransmitBudget(8192);
+		
+		char[] padding=new char[1000];
+		Arrays.fill(padding, 'x');
+		String suffix=new String(padding);
+		
+		List<Promise<RedisResult>> results=new ArrayList<Promise<RedisResult>>();
+		for (int i=0; i<2000; i++) {
+			results.add(redis.execute("ECHO", i + ":" + suffix));
+		}
+		for (int i=0; i<results.size(); i++) {
+			assertEquals(i + ":" + suffix, results.get(i).waitFor().getString());
+		}
+		assertEquals("PONG", redis.execute("PING").waitFor().getString());
+	}
+	
+	@Test
+	public void testDeadline() throws InterruptedException {
+		redis.execute("DEL", "deadline-list").waitFor();
+		
+		Promise<RedisResult> blocked=redis.executeWithTimeout(100, "BLPOP", "deadline-list", 1);
+		try {
+			blocked.waitFor(2000);
+			fail("Expected timeout");
+		} catch (RedisTimeoutException e) {
+			// Expected
+		}
+		
+		// The late BLPOP reply is discarded and later replies stay aligned
+		assertEquals("hello", redis.execute("ECHO", "hello").waitFor().getString());
+	}
+	
+	@Test
+	public void testDeadlineCallbackOffTimerThread() throws InterruptedException {
+		redis.execute("DEL", "deadline-list").waitFor();
+		
+		final CountDownLatch failed=new CountDownLatch(1);
+		final String[] threadName=new String[1];
+		redis.executeWithTimeout(100, "BLPOP", "deadline-list", 1).force(new Promise.Callback<RedisResult>() {
+			@Override
+			public void complete(Promise<RedisResult> promise) {
+				threadName[0]=Thread.currentThread().getName();
+				failed.countDown();
+			}
+		});
+		assertTrue(failed.await(2, TimeUnit.SECONDS));
+		assertEquals("RedisManager deadlines", threadName[0]);
+	}
+	
+	@Test
+	public void testCircuitBreaker() throws InterruptedException {
+		redis.execute("DEL", "deadline-list").waitFor();
+		redis.setCircuitBreaker(2, 100);
+		
+		Promise<RedisResult> first=redis.executeWithTimeout(100, "BLPOP", "deadline-list", 1);
+		Promise<RedisResult> second=redis.executeWithTimeout(100, "BLPOP", "deadline-list", 1);
+		for (Promise<RedisResult> p: Arrays.asList(first, second)) {
+			try {
+				p.waitFor(2000);
+				fail("Expected timeout");
+			} catch (RedisTimeoutException e) {
+				// Expected
+			}
+		}
+		assertTrue(redis.isCircuitOpen());
+		
+		Promise<RedisResult> rejected=redis.execute("PING");
+		assertTrue(rejected.isComplete());
+		assertTrue(rejected.getError() instanceof RedisTimeoutException);
+		
+		// Probes get through once the blocked commands return
+		for (int i=0; i<50 && redis.isCircuitOpen(); i++) {
+			Thread.sleep(100);
+		}
+		assertFalse(redis.isCircuitOpen());
+		assertEquals("PONG", redis.execute("PING").waitFor().getString());
+	}
+	
+	@Test
+	public void testPipeline() throws InterruptedException {
+		redis.execute("DEL", "pipeline-hash").waitFor();
+		
+		RedisPipeline pipeline=redis.pipeline();
+		for (int i=0; i<10000; i++) {
+			pipeline.add("HSET", "pipeline-hash", "field" + i, "value" + i);
+		}
+		int len=pipeline.add("HLEN", "pipeline-hash");
+		int value=pipeline.add("HGET", "pipeline-hash", "field42");
+		int error=pipeline.add("INCR", "pipeline-hash");
+		
+		RedisPipeline.Results results=redis.execute(pipeline).waitFor();
+		assertEquals(10003, results.size());
+		assertEquals(1, results.getLong(0));
+		assertEquals(10000, results.getLong(len));
+		assertEquals("value42", results.getString(value));
+		assertTrue(results.isError(error));
+		
+		assertEquals(0, redis.execute(redis.pipeline()).waitFor().size());
+	}
+	
+	@Test
+	public void testMulti() throws InterruptedException {
+		redis.execute("DEL", "multi-counter").waitFor();
+		
+		RedisMulti multi=new RedisMulti();
+		Promise<RedisResult> first=multi.execute("INCR", "multi-counter");
+		multi.executeAndForget("INCR", "multi-counter");
+		Promise<RedisResult> third=multi.execute("INCRBY", "multi-counter", 10);
+		
+		RedisResult exec=multi.submit(redis).waitFor();
+		assertEquals(3, exec.getAsMulti().getCount());
+		assertEquals(1, first.waitFor().getLong());
+		assertEquals(12, third.waitFor().getLong());
+	}
+	
+	@Test
+	public void testWatch() throws InterruptedException, IOException {
+		redis.execute("SET", "watch-counter", "10").waitFor();
+		final Redis other=rm.connect();
+		try {
+			final AtomicInteger attempts=new AtomicInteger();
+			RedisResult exec=RedisMulti.watch(redis, new RedisMulti.Transaction() {
+				@Override
+				public Promise<?> prepare(Redis connection, final RedisMulti multi) throws Throwable {
+					final boolean first=attempts.incrementAndGet()==1;
+					final Promise<RedisResult> ready=new Promise<RedisResult>();
+					connection.execute("GET", "watch-counter").force(new Promise.Callback<RedisResult>() {
+						@Override
+						public void complete(Promise<RedisResult> promise) {
+							long value=Long.parseLong(promise.getResolution().getString());
+							multi.execute("SET", "watch-counter", String.valueOf(value*2));
+							
+							// Change the key behind the first attempt's back
+							if (first) other.execute(ready, "INCR", "watch-counter");
+							else ready.resolve(promise.getResolution());
+						}
+					});
+					return ready;
+				}
+			}, "watch-counter").waitFor();
+			
+			assertFalse(exec.isNull());
+			assertEquals(2, attempts.get());
+			assertEquals("22", redis.execute("GET", "watch-counter").waitFor().getString());
+		} finally {
+			other.quit().waitFor();
+		}
+	}
+	
+	@Test
+	public void testLargeValue() throws IOException, InterruptedException {
+		byte[] value=new byte[3*1024*1024];
+		for (int i=0; i<value.length; i++) value[i]=(byte)(i*31);
+		
+		RedisManager spillManager=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		spillManager.setSpillThreshold(2*1024*1024, null);
+		Redis spilling=spillManager.connect();
+		try {
+			redis.execute("SET", "largevalue", value).waitFor();
+			
+			RedisResult blocks=redis.execute("GET", "largevalue").waitFor();
+			assertArrayEquals(value, blocks.getBuffer().array());
+			
+			RedisResult mapped=spilling.execute("GET", "largevalue").waitFor();
+			assertEquals(value.length, mapped.getChannelBuffer().readableBytes());
+			byte[] read=new byte[value.length];
+			new DataInputStream(mapped.getInputStream()).readFully(read);
+			assertArrayEquals(value, read);
+		} finally {
+			redis.execute("DEL", "largevalue").waitFor();
+			spilling.quit().waitFor();
+		}
+	}
 }
@@ -0,0 +1,81 @@
+package net.rcode.mrsession.util.io.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.rcode.core.redis.Redis;
+import net.rcode.core.redis.RedisCodecs;
+import net.rcode.core.redis.RedisManager;
+import net.rcode.core.redis.RedisTypedMap;
+import net.rcode.core.redis.RedisTypedSet;
+import net.rcode.mrsession.util.TestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RedisTypedMapTest {
+	private RedisManager rm;
+	private Redis redis;
+	
+	@Before
+	public void setup() throws InterruptedException {
+		rm=new RedisManager(TestHelper.getClientChannelFactory(), TestHelper.getClientOptions());
+		redis=rm.connect();
+		redis.execute("DEL", "typed-map", "typed-set").waitFor();
+	}
+	
+	@After
+	public void teardown() throws IOException, InterruptedException {
+		redis.quit().waitFor();
+	}
+	
+	@Test
+	public void testBinaryValues() throws InterruptedException {
+		RedisTypedMap<String, byte[]> map=new RedisTypedMap<String, byte[]>(redis, "typed-map", RedisCodecs.STRING, RedisCodecs.BYTES);
+		byte[] blob=new byte[] { 0, (byte)0xff, '\r', '\n', (byte)0xc3, 0x28 };
+		assertTrue(map.put("blob", blob).waitFor());
+		assertTrue(Arrays.equals(blob, map.get("blob").waitFor()));
+		assertNull(map.get("missing").waitFor());
+		
+		RedisTypedMap<String, ByteBuffer> buffers=new RedisTypedMap<String, ByteBuffer>(redis, "typed-map", RedisCodecs.STRING, RedisCodecs.BYTE_BUFFER);
+		assertEquals(ByteBuffer.wrap(blob), buffers.get("blob").waitFor());
+	}
+	
+	@Test
+	public void testLongValues() throws InterruptedException {
+		RedisTypedMap<Long, Long> map=new RedisTypedMap<Long, Long>(redis, "typed-map", RedisCodecs.LONG, RedisCodecs.LONG);
+		Map<Long,Long> values=new HashMap<Long, Long>();
+		values.put(1L, -5L);
+		values.put(2L, Long.MAX_VALUE);
+		map.putAll(values).waitFor();
+		
+		redis.execute("HINCRBY", "typed-map", "1", 3).waitFor();
+		Map<Long,Long> all=map.getAll().waitFor();
+		assertEquals(Long.valueOf(-2), all.get(1L));
+		assertEquals(Long.valueOf(Long.MAX_VALUE), all.get(2L));
+		assertTrue(map.contains(2L).waitFor());
+		assertTrue(map.remove(2L).waitFor());
+		assertFalse(map.contains(2L).waitFor());
+	}
+	
+	@Test
+	public void testSet() throws InterruptedException {
+		RedisTypedSet<Long> set=new RedisTypedSet<Long>(redis, "typed-set", RedisCodecs.LONG);
+		assertTrue(set.add(42L).waitFor());
+		assertFalse(set.add(42L).waitFor());
+		assertTrue(set.add(7L).waitFor());
+		assertTrue(set.contains(7L).waitFor());
+		
+		Collection<Long> members=set.members().waitFor();
+		assertEquals(2, members.size());
+		assertTrue(members.contains(42L));
+		assertEquals(2, set.size().waitFor().intValue());
+	}
+}